@@ -85,6 +85,11 @@ interface RadarConfiguration {
         const val KAFKA_UPLOAD_RATE_KEY = "kafka_upload_rate"
         const val DATABASE_COMMIT_RATE_KEY = "database_commit_rate"
         const val KAFKA_RECORDS_SEND_LIMIT_KEY = "kafka_records_send_limit"
+        const val KAFKA_UPLOAD_CONCURRENCY_KEY = "kafka_upload_concurrency"
+        const val KAFKA_ADAPTIVE_BATCH_SIZE_KEY = "kafka_adaptive_batch_size"
+        const val KAFKA_UPLOAD_TARGET_LATENCY_KEY = "kafka_upload_target_latency_ms"
+        const val KAFKA_UPLOAD_PREFETCH_KEY = "kafka_upload_prefetch"
+        const val KAFKA_TOPIC_WEIGHTS_KEY = "kafka_topic_weights"
         const val KAFKA_RECORDS_SIZE_LIMIT_KEY = "kafka_records_size_limit"
         const val SENDER_CONNECTION_TIMEOUT_KEY = "sender_connection_timeout"
         const val FIREBASE_FETCH_TIMEOUT_MS_KEY = "firebase_fetch_timeout_ms"
@@ -96,6 +101,22 @@ interface RadarConfiguration {
         const val KAFKA_UPLOAD_MINIMUM_BATTERY_LEVEL = "kafka_upload_minimum_battery_level"
         const val KAFKA_UPLOAD_REDUCED_BATTERY_LEVEL = "kafka_upload_reduced_battery_level"
         const val MAX_CACHE_SIZE = "cache_max_size_bytes"
+        const val CACHE_QUEUE_FILE_TYPE_KEY = "cache_queue_file_type"
+        const val CACHE_DURABILITY_KEY = "cache_durability"
+        const val CACHE_SYNC_INTERVAL_KEY = "cache_sync_interval_ms"
+        const val CACHE_ELEMENT_INDEX_CAPACITY_KEY = "cache_element_index_capacity"
+        const val CACHE_READ_BUFFER_SIZE_KEY = "cache_read_buffer_size_bytes"
+        const val CACHE_WRITE_BUFFER_SIZE_KEY = "cache_write_buffer_size_bytes"
+        const val CACHE_READ_AHEAD_KEY = "cache_read_ahead"
+        const val CACHE_COMPRESSION_KEY = "cache_compression"
+        const val CACHE_CHECKSUM_KEY = "cache_checksum"
+        const val CACHE_TRUSTED_READ_KEY = "cache_trusted_read"
+        const val CACHE_SERIALIZE_ON_ADD_KEY = "cache_serialize_on_add"
+        const val CACHE_FLUSH_RECORD_COUNT_KEY = "cache_flush_record_count"
+        const val CACHE_FLUSH_SIZE_KEY = "cache_flush_size_bytes"
+        const val CACHE_COLUMNAR_TOPICS_KEY = "cache_columnar_topics"
+        const val CACHE_EXECUTOR_STRATEGY_KEY = "cache_executor_strategy"
+        const val CACHE_EXECUTOR_STRIPES_KEY = "cache_executor_stripes"
         const val SEND_ONLY_WITH_WIFI = "send_only_with_wifi"
         const val SEND_BINARY_CONTENT = "send_binary_content"
         const val SEND_WITH_COMPRESSION = "send_with_compression"
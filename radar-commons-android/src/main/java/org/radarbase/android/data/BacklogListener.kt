@@ -0,0 +1,32 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.radarbase.android.data
+
+/**
+ * Listener to the number of unsent records in a [DataCache].
+ * @see DataCache.setBacklogListener
+ */
+fun interface BacklogListener {
+    /**
+     * Called when the number of unsent records of [cache] grew beyond the threshold that this
+     * listener was registered with. It is called on the thread of the cache, so it should return
+     * quickly.
+     * @param numberOfRecords number of unsent records in the cache.
+     */
+    fun onBacklog(cache: DataCache<*, *>, numberOfRecords: Long)
+}
@@ -2,8 +2,15 @@ package org.radarbase.android.data
 
 import org.radarbase.android.RadarConfiguration
 import org.radarbase.android.config.SingleRadarConfiguration
+import org.radarbase.android.util.takeTrimmedIfNotEmpty
+import org.radarbase.util.ElementQueue
+import org.radarbase.util.QueueDurability
 import org.radarbase.util.QueueFile
+import org.radarbase.util.QueueFileChecksum
+import org.radarbase.util.QueueFileCodec
+import org.radarbase.util.SegmentedQueueFile
 import java.io.File
+import java.io.IOException
 
 data class CacheConfiguration(
         /** Time in milliseconds until data is committed to disk. */
@@ -12,15 +19,115 @@ data class CacheConfiguration(
         var maximumSize: Long = 450_000_000,
         /** Type of queue file implementation to use. */
         var queueFileType: QueueFileFactory = QueueFileFactory.DIRECT,
+        /** When committed data is forced to disk. */
+        var durability: QueueDurability = QueueDurability.ALWAYS,
+        /** Minimum time in milliseconds between forcing data to disk with [QueueDurability.INTERVAL]. */
+        var syncInterval: Long = 60_000L,
+        /** Maximum number of element positions per cache to keep in memory. */
+        var elementIndexCapacity: Int = 4096,
+        /** Size in bytes of the buffer that records are read into. */
+        var readBufferSize: Int = 8192,
+        /** Size in bytes of the buffer that records are written from. */
+        var writeBufferSize: Int = 8192,
+        /** Whether to fill the complete read buffer when reading, to speed up reading batches. */
+        var readAhead: Boolean = false,
+        /** Codec to compress records with in new or empty caches. */
+        var codec: QueueFileCodec = QueueFileCodec.NONE,
+        /** Checksum to verify records with in new or empty caches. */
+        var checksum: QueueFileChecksum = QueueFileChecksum.NONE,
+        /** Whether to skip validating records that were added since the cache was opened. */
+        var trustedRead: Boolean = false,
+        /**
+         * Whether to serialize records when they are added, rather than when they are committed.
+         * Record values may then be reused once they were added. Keys must not be modified.
+         */
+        var serializeOnAdd: Boolean = false,
+        /** Number of pending records that triggers a flush before the commit rate. Disabled if not positive. */
+        var flushRecordCount: Int = 0,
+        /**
+         * Estimated size in bytes of pending records that triggers a flush before the commit
+         * rate. Disabled if not positive.
+         */
+        var flushByteSize: Long = 0L,
+        /**
+         * Topics to store new records of with [org.radarbase.android.data.serialization.TapeAvroFormat.COLUMNAR].
+         * This suits high-rate topics whose values have only numeric fields.
+         */
+        var columnarTopics: Set<String> = emptySet(),
+        /** Threads to run cache operations on. Only applies to caches that are loaded afterwards. */
+        var executorStrategy: CacheExecutorStrategy = CacheExecutorStrategy.SHARED,
+        /** Number of threads to spread caches over with [CacheExecutorStrategy.STRIPED]. */
+        var executorStripes: Int = 4,
 ) {
     fun configure(config: SingleRadarConfiguration) {
         maximumSize = config.getLong(RadarConfiguration.MAX_CACHE_SIZE, maximumSize)
         commitRate = config.getLong(RadarConfiguration.DATABASE_COMMIT_RATE_KEY, commitRate)
+        queueFileType = config.optString(RadarConfiguration.CACHE_QUEUE_FILE_TYPE_KEY)
+            ?.let { value -> QueueFileFactory.values().find { it.name.equals(value, ignoreCase = true) } }
+            ?: queueFileType
+        durability = config.optString(RadarConfiguration.CACHE_DURABILITY_KEY)
+            ?.let { value -> QueueDurability.values().find { it.name.equals(value, ignoreCase = true) } }
+            ?: durability
+        syncInterval = config.getLong(RadarConfiguration.CACHE_SYNC_INTERVAL_KEY, syncInterval)
+        elementIndexCapacity = config.getInt(RadarConfiguration.CACHE_ELEMENT_INDEX_CAPACITY_KEY, elementIndexCapacity)
+        readBufferSize = config.getInt(RadarConfiguration.CACHE_READ_BUFFER_SIZE_KEY, readBufferSize)
+        writeBufferSize = config.getInt(RadarConfiguration.CACHE_WRITE_BUFFER_SIZE_KEY, writeBufferSize)
+        readAhead = config.getBoolean(RadarConfiguration.CACHE_READ_AHEAD_KEY, readAhead)
+        codec = config.optString(RadarConfiguration.CACHE_COMPRESSION_KEY)
+            ?.let { value -> QueueFileCodec.values().find { it.name.equals(value, ignoreCase = true) } }
+            ?: codec
+        checksum = config.optString(RadarConfiguration.CACHE_CHECKSUM_KEY)
+            ?.let { value -> QueueFileChecksum.values().find { it.name.equals(value, ignoreCase = true) } }
+            ?: checksum
+        trustedRead = config.getBoolean(RadarConfiguration.CACHE_TRUSTED_READ_KEY, trustedRead)
+        serializeOnAdd = config.getBoolean(RadarConfiguration.CACHE_SERIALIZE_ON_ADD_KEY, serializeOnAdd)
+        flushRecordCount = config.getInt(RadarConfiguration.CACHE_FLUSH_RECORD_COUNT_KEY, flushRecordCount)
+        flushByteSize = config.getLong(RadarConfiguration.CACHE_FLUSH_SIZE_KEY, flushByteSize)
+        columnarTopics = config.optString(RadarConfiguration.CACHE_COLUMNAR_TOPICS_KEY)
+            ?.let { value ->
+                value.split(topicSeparator)
+                    .mapNotNullTo(HashSet(), String::takeTrimmedIfNotEmpty)
+            }
+            ?: columnarTopics
+        executorStrategy = config.optString(RadarConfiguration.CACHE_EXECUTOR_STRATEGY_KEY)
+            ?.let { value -> CacheExecutorStrategy.values().find { it.name.equals(value, ignoreCase = true) } }
+            ?: executorStrategy
+        executorStripes = config.getInt(RadarConfiguration.CACHE_EXECUTOR_STRIPES_KEY, executorStripes)
     }
 
-    enum class QueueFileFactory(val generator: (File, Long) -> QueueFile) {
-        DIRECT(QueueFile::newDirect);
+    enum class QueueFileFactory(
+        val generator: (File, Long) -> ElementQueue,
+        /** Maximum size in bytes that the queue file may have. */
+        val maximumLength: Long,
+        /**
+         * Opens an existing queue that is partially corrupted, keeping the elements that can
+         * still be read. Null if this queue type cannot be recovered.
+         */
+        val recoverer: ((File, Long) -> ElementQueue)? = null,
+    ) {
+        /** Buffered file channel, reading and writing elements with system calls. */
+        DIRECT(QueueFile::newDirect, Int.MAX_VALUE.toLong(), { file, size -> QueueFile.newDirect(file, size, recover = true) }),
+        /**
+         * Memory-mapped file, reading and writing elements with memory copies. The file is mapped
+         * in chunks, so it may exceed 2 GB if the process has enough address space.
+         */
+        MAPPED(QueueFile::newMapped, Long.MAX_VALUE, { file, size -> QueueFile.newMapped(file, size, recover = true) }),
+        /**
+         * Directory of fixed-size segment files. Data is never moved when the queue grows, and
+         * the queue may exceed 2 GB. A corrupted segment is cut off at its first invalid element
+         * without affecting other segments. Elements are stored without compression or checksum
+         * and the element index and buffer sizes do not apply.
+         */
+        SEGMENTED(SegmentedQueueFile::newSegmented, Long.MAX_VALUE, { file, size -> SegmentedQueueFile.newSegmented(file, size, recover = true) });
 
         fun generate(file: File, size: Long) = generator(file, size)
+
+        @Throws(IOException::class)
+        fun recover(file: File, size: Long): ElementQueue = recoverer?.invoke(file, size)
+            ?: throw IOException("Cannot recover queue of type $this")
+    }
+
+    companion object {
+        private val topicSeparator = ",".toRegex()
     }
 }
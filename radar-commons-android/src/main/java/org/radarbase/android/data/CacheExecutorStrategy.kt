@@ -0,0 +1,31 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarbase.android.data
+
+/**
+ * Threads that [CacheStore] runs the flushes, reads and removals of data caches on, set with
+ * [CacheConfiguration.executorStrategy]. Operations of caches that share a thread wait for each
+ * other.
+ */
+enum class CacheExecutorStrategy {
+    /** All caches share a single thread. */
+    SHARED,
+    /** Each topic has its own thread. */
+    PER_TOPIC,
+    /** Topics are spread over a fixed number of threads by their name. */
+    STRIPED,
+}
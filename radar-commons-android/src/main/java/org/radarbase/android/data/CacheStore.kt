@@ -22,6 +22,7 @@ import org.apache.avro.Schema
 import org.apache.avro.specific.SpecificRecord
 import org.radarbase.android.BuildConfig
 import org.radarbase.android.data.serialization.SerializationFactory
+import org.radarbase.android.data.serialization.TapeAvroFormat
 import org.radarbase.android.data.serialization.TapeAvroSerializationFactory
 import org.radarbase.android.util.SafeHandler
 import org.radarbase.topic.AvroTopic
@@ -35,17 +36,40 @@ import java.io.OutputStreamWriter
 import java.nio.charset.StandardCharsets
 import java.util.*
 
+/**
+ * Store of data caches per topic. New records are stored with the first of the
+ * [serializationFactories], or with [columnarSerialization] for topics in
+ * [CacheConfiguration.columnarTopics]. Caches of the other serialization factories are only read
+ * until they are empty, so they can be migrated to a new serialization.
+ *
+ * Cache operations run on threads chosen by [CacheConfiguration.executorStrategy] when the cache
+ * is loaded. Threads of the [CacheExecutorStrategy.PER_TOPIC] and [CacheExecutorStrategy.STRIPED]
+ * strategies are stopped once all caches that use them are closed. A closed cache group is
+ * loaded again by the next call to [getOrCreateCaches].
+ */
 class CacheStore(
-        private val serializationFactories: List<SerializationFactory> = listOf(TapeAvroSerializationFactory())
+        private val serializationFactories: List<SerializationFactory> = listOf(
+                TapeAvroSerializationFactory(TapeAvroFormat.BATCHED),
+                TapeAvroSerializationFactory(TapeAvroFormat.LEGACY),
+        ),
+        private val columnarSerialization: SerializationFactory? = TapeAvroSerializationFactory(TapeAvroFormat.COLUMNAR),
 ) {
+    /** Serialization factories that existing caches may be read with. */
+    private val readSerializationFactories: List<SerializationFactory> =
+        if (columnarSerialization == null || columnarSerialization in serializationFactories) {
+            serializationFactories
+        } else serializationFactories + columnarSerialization
+
     private val tables: MutableMap<String, SynchronizedReference<DataCacheGroup<*, *>>> = HashMap()
     private val handler = SafeHandler.getInstance("DataCache", THREAD_PRIORITY_BACKGROUND)
+    /** Number of loaded cache groups per handler that this store started besides [handler]. */
+    private val handlerUsers: MutableMap<SafeHandler, Int> = HashMap()
 
     init {
         require(serializationFactories.isNotEmpty()) { "Need to specify at least one serialization method" }
         if (BuildConfig.DEBUG) {
-            check(serializationFactories.none { s1 ->
-                serializationFactories.any { s2 -> s1.fileExtension.endsWith(s2.fileExtension, ignoreCase = true) }
+            check(readSerializationFactories.none { s1 ->
+                readSerializationFactories.any { s2 -> s1 !== s2 && s1.fileExtension.endsWith(s2.fileExtension, ignoreCase = true) }
             }) { "Serialization factories cannot have overlapping extensions, to avoid the wrong deserialization method being chosen."}
         }
         handler.start()
@@ -60,31 +84,81 @@ class CacheStore(
             config: CacheConfiguration,
             handler: SafeHandler? = null,
     ): DataCacheGroup<K, V> {
-        val useHandler = if (handler != null) {
+        if (handler != null) {
             require(handler.isStarted) { "Cannot load a cache from a stopped handler" }
-            handler
-        } else this.handler
+        }
         val ref = tables[topic.name] as SynchronizedReference<DataCacheGroup<K, V>>?
                 ?: SynchronizedReference {
-                    loadCache(
-                        context.cacheDir.absolutePath + "/" + topic.name,
-                        topic,
-                        config,
-                        useHandler,
-                    )
+                    val cacheHandler = handler ?: acquireHandler(topic.name, config)
+                    val onClose = { closeCaches(topic.name, cacheHandler.takeIf { handler == null }) }
+                    try {
+                        loadCache(
+                            context.cacheDir.absolutePath + "/" + topic.name,
+                            topic,
+                            config,
+                            cacheHandler,
+                            onClose,
+                        )
+                    } catch (ex: IOException) {
+                        onClose()
+                        throw ex
+                    }
                 }.also { tables[topic.name] = it as SynchronizedReference<DataCacheGroup<*, *>> }
 
         return ref.get()
     }
 
+    /**
+     * Handler to run the cache of given topic on, according to
+     * [CacheConfiguration.executorStrategy]. Release it with [closeCaches].
+     */
+    @Synchronized
+    private fun acquireHandler(topicName: String, config: CacheConfiguration): SafeHandler {
+        val topicHandler = when (config.executorStrategy) {
+            CacheExecutorStrategy.SHARED -> return handler
+            CacheExecutorStrategy.PER_TOPIC -> SafeHandler.getInstance("DataCache-$topicName", THREAD_PRIORITY_BACKGROUND)
+            CacheExecutorStrategy.STRIPED -> {
+                val stripe = (topicName.hashCode() and Int.MAX_VALUE) % config.executorStripes.coerceAtLeast(1)
+                SafeHandler.getInstance("DataCache-$stripe", THREAD_PRIORITY_BACKGROUND)
+            }
+        }
+        val users = handlerUsers[topicHandler] ?: 0
+        if (users == 0 && !topicHandler.isStarted) {
+            topicHandler.start()
+        }
+        handlerUsers[topicHandler] = users + 1
+        return topicHandler
+    }
+
+    /**
+     * Forget the caches of given topic after they were closed, and stop [topicHandler] if it
+     * was acquired with [acquireHandler] and no other caches use it.
+     */
+    @Synchronized
+    private fun closeCaches(topicName: String, topicHandler: SafeHandler?) {
+        tables.remove(topicName)
+        if (topicHandler == null || topicHandler === handler) return
+        val users = handlerUsers[topicHandler] ?: return
+        if (users > 1) {
+            handlerUsers[topicHandler] = users - 1
+        } else {
+            handlerUsers -= topicHandler
+            topicHandler.stop()
+        }
+    }
+
     @Throws(IOException::class)
     private fun <K: Any, V: Any> loadCache(
             base: String,
             topic: AvroTopic<K, V>,
             config: CacheConfiguration,
             handler: SafeHandler,
+            onClose: () -> Unit,
     ): DataCacheGroup<K, V> {
         val fileBases = getFileBases(base)
+        val writeSerialization = columnarSerialization
+            ?.takeIf { topic.name in config.columnarTopics }
+            ?: serializationFactories.first()
         logger.debug("Files for topic {}: {}", topic.name, fileBases)
 
         var activeDataCache: DataCache<K, V>? = null
@@ -101,7 +175,7 @@ class CacheStore(
 
             if (keySchema == topic.keySchema
                     && valueSchema == topic.valueSchema
-                    && serialization == serializationFactories.first()) {
+                    && serialization == writeSerialization) {
                 if (activeDataCache != null) {
                     logger.error("Cannot have more than one active cache")
                 }
@@ -121,7 +195,7 @@ class CacheStore(
             if (!baseDir.exists() && !baseDir.mkdirs()) {
                 throw IOException("Cannot make data cache directory")
             }
-            val serialization = serializationFactories.first()
+            val serialization = writeSerialization
             activeDataCache = IntRange(0, 99)
                     .map { "$base/cache-$it" }
                     .find { fileBase -> fileBases.none { it.first == fileBase } }
@@ -140,7 +214,7 @@ class CacheStore(
                     } ?: throw IOException("No empty slot to store active data cache in.")
         }
 
-        return DataCacheGroup(activeDataCache, deprecatedDataCaches)
+        return DataCacheGroup(activeDataCache, deprecatedDataCaches, onClose)
     }
 
     private fun loadSchemas(topic: AvroTopic<*, *>, base: String): Pair<Schema, Schema>? {
@@ -164,16 +238,16 @@ class CacheStore(
     }
 
     private fun getFileBases(base: String): List<Pair<String, SerializationFactory>> {
-        val regularFiles = serializationFactories
+        val regularFiles = readSerializationFactories
                 .filter { sf -> File(base + sf.fileExtension).isFile }
                 .map { sf -> Pair(base + sf.fileExtension, sf) }
 
         val dirFiles = File(base)
                 .takeIf { it.isDirectory }
-                ?.listFiles { _, fileName -> serializationFactories.any { sf -> fileName.endsWith(sf.fileExtension) } }
+                ?.listFiles { _, fileName -> readSerializationFactories.any { sf -> fileName.endsWith(sf.fileExtension) } }
                 ?.map { f ->
                     val fileName = f.name
-                    val sf = serializationFactories.first { fileName.endsWith(it.fileExtension) }
+                    val sf = readSerializationFactories.first { fileName.endsWith(it.fileExtension) }
                     Pair(base + "/" + fileName.substring(0, fileName.length - sf.fileExtension.length), sf)
                 }
 
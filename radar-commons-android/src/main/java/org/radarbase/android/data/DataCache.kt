@@ -32,4 +32,25 @@ interface DataCache<K, V> : Flushable, ReadableDataCache {
 
     /** Trigger a flush to happen as soon as possible. */
     fun triggerFlush()
+
+    /** Number of flushes that wrote records to storage, per cause of the flush. */
+    val flushCounts: Map<FlushTrigger, Long>
+        get() = emptyMap()
+
+    /**
+     * Set a listener that is called when records are written to the cache and the number of
+     * unsent records grows from at most [threshold] to more than [threshold]. If the cache
+     * already has more than [threshold] records, the listener is called once soon after. Use
+     * threshold 0 to be notified when the cache becomes non-empty. Setting a new listener
+     * replaces the previous one, and setting null removes it. Caches that do not support
+     * listeners ignore this, so [numberOfRecords] should be polled instead.
+     */
+    fun setBacklogListener(threshold: Long, listener: BacklogListener?) = Unit
+
+    /**
+     * Call the backlog listener again when records are next written while the cache has more
+     * than its threshold of records, even if the listener was already called for that backlog.
+     * Use this when a backlog could not be uploaded completely.
+     */
+    fun rearmBacklogListener() = Unit
 }
@@ -5,9 +5,16 @@ import java.io.Closeable
 import java.io.File
 import java.io.IOException
 
+/**
+ * Caches of a single topic: the active cache that new records are written to, and deprecated
+ * caches that are only read until they are empty.
+ *
+ * @param onClose called after the caches were closed.
+ */
 class DataCacheGroup<K, V>(
         val activeDataCache: DataCache<K, V>,
-        val deprecatedCaches: MutableList<ReadableDataCache>
+        val deprecatedCaches: MutableList<ReadableDataCache>,
+        private val onClose: (() -> Unit)? = null,
 ) : Closeable {
 
     val topicName: String = activeDataCache.topic.name
@@ -23,7 +30,7 @@ class DataCacheGroup<K, V>(
             cacheIterator.remove()
             storedCache.close()
             val tapeFile = storedCache.file
-            if (!tapeFile.delete()) {
+            if (!tapeFile.deleteRecursively()) {
                 logger.warn("Cannot remove old DataCache file " + tapeFile + " for topic " + storedCache.readTopic.name)
             }
             val name = tapeFile.absolutePath
@@ -41,8 +48,12 @@ class DataCacheGroup<K, V>(
 
     @Throws(IOException::class)
     override fun close() {
-        activeDataCache.close()
-        deprecatedCaches.forEach(ReadableDataCache::close)
+        try {
+            activeDataCache.close()
+            deprecatedCaches.forEach(ReadableDataCache::close)
+        } finally {
+            onClose?.invoke()
+        }
     }
 
     companion object {
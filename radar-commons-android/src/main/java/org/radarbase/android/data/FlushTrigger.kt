@@ -0,0 +1,29 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarbase.android.data
+
+/** Cause of a data cache writing its pending records to storage. */
+enum class FlushTrigger {
+    /** The commit rate elapsed since the first pending record was added. */
+    COMMIT_RATE,
+    /** The number of pending records reached [CacheConfiguration.flushRecordCount]. */
+    RECORD_COUNT,
+    /** The estimated size of pending records reached [CacheConfiguration.flushByteSize]. */
+    BYTE_SIZE,
+    /** A flush was requested with [DataCache.flush] or [DataCache.triggerFlush]. */
+    REQUESTED,
+}
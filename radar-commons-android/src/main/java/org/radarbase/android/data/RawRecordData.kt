@@ -0,0 +1,66 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarbase.android.data
+
+import org.apache.avro.Schema
+import org.apache.avro.io.Encoder
+import java.io.IOException
+
+/**
+ * Records with a single key, whose values are kept in the Avro binary encoding that they were
+ * stored with. The values are stored consecutively in a single array, so that they can be sent
+ * without decoding and encoding them again.
+ *
+ * @property topicName name of the topic that the records belong to.
+ * @property keySchema schema that the key was encoded with.
+ * @property valueSchema schema that the values are encoded with.
+ * @property key decoded key of all records.
+ */
+class RawRecordData(
+    val topicName: String,
+    val keySchema: Schema,
+    val valueSchema: Schema,
+    val key: Any,
+    /** Encoded values, one after the other. */
+    private val data: ByteArray,
+    /** Start of each value in [data], followed by the end of the last value. */
+    private val offsets: IntArray,
+) {
+    init {
+        require(offsets.isNotEmpty()) { "Offsets must include the end of the data" }
+    }
+
+    /** Number of records. */
+    val size: Int
+        get() = offsets.size - 1
+
+    val isEmpty: Boolean
+        get() = size == 0
+
+    /** Total number of bytes of the encoded values. */
+    val dataSize: Int
+        get() = offsets[size] - offsets[0]
+
+    /** Write the value at given index as Avro bytes. */
+    @Throws(IOException::class)
+    fun writeValue(index: Int, encoder: Encoder) {
+        if (index < 0 || index >= size) throw IndexOutOfBoundsException("Index $index out of bounds for size $size")
+        encoder.writeBytes(data, offsets[index], offsets[index + 1] - offsets[index])
+    }
+
+    override fun toString(): String = "RawRecordData[topic=$topicName, key=$key, size=$size, dataSize=$dataSize]"
+}
@@ -39,6 +39,55 @@ interface ReadableDataCache : Closeable {
     @Throws(IOException::class)
     fun getUnsentRecords(limit: Int, sizeLimit: Long): RecordData<Any, Any?>?
 
+    /**
+     * Get unsent records that follow the records returned by previous calls of this method,
+     * even if those were not removed yet. This allows reading the next batch of records while
+     * the previous batch is still being sent. Records are still only removed with [remove], in
+     * the order in which they were returned. By default, this returns the same records as
+     * [getUnsentRecords].
+     *
+     * @param limit maximum number of records.
+     * @param sizeLimit maximum serialized size of those records.
+     * @return records or null if none are found. Records that could not be read are returned as
+     *         null values, so that the number of records to remove equals the size of the result.
+     *         If none of the records could be read, the key of the result has no meaning.
+     */
+    @Throws(IOException::class)
+    fun getNextUnsentRecords(limit: Int, sizeLimit: Long): RecordData<Any, Any?>? = getUnsentRecords(limit, sizeLimit)
+
+    /**
+     * Whether [getNextUnsentRecords] returns the records after those that it returned before,
+     * rather than the same records as [getUnsentRecords].
+     */
+    val canReadAhead: Boolean
+        get() = false
+
+    /**
+     * Read records returned by [getNextUnsentRecords] that were not yet removed again, for
+     * example after they could not be sent.
+     */
+    fun resetUnsentRecords() = Unit
+
+    /**
+     * Offer records returned by [getUnsentRecords] or [getNextUnsentRecords] that are no longer
+     * used, so that their values can be reused to read later records into. The records must not
+     * be used after this call. By default, they are discarded.
+     */
+    fun recycle(records: RecordData<Any, Any?>) = Unit
+
+    /**
+     * Get unsent records from the cache without decoding their values, so they can be sent in
+     * the encoding they were stored with. Records are not validated. Like [getUnsentRecords],
+     * the records start at the head of the cache and all have the same key.
+     *
+     * @param limit maximum number of records.
+     * @param sizeLimit maximum serialized size of those records.
+     * @return records or null if none are found, or if the cache cannot read records without
+     *         decoding them. Use [getUnsentRecords] in that case.
+     */
+    @Throws(IOException::class)
+    fun getUnsentRawRecords(limit: Int, sizeLimit: Long): RawRecordData? = null
+
     /**
      * Get latest records in the cache, from new to old.
      *
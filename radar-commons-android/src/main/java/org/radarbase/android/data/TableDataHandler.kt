@@ -21,6 +21,7 @@ import android.os.Process.THREAD_PRIORITY_BACKGROUND
 import androidx.localbroadcastmanager.content.LocalBroadcastManager
 import org.apache.avro.specific.SpecificRecord
 import org.radarbase.android.kafka.KafkaDataSubmitter
+import org.radarbase.android.kafka.RawRecordSender
 import org.radarbase.android.kafka.ServerStatusListener
 import org.radarbase.android.source.SourceService.Companion.CACHE_RECORDS_UNSENT_NUMBER
 import org.radarbase.android.source.SourceService.Companion.CACHE_TOPIC
@@ -28,6 +29,7 @@ import org.radarbase.android.util.BatteryStageReceiver
 import org.radarbase.android.util.NetworkConnectedReceiver
 import org.radarbase.android.util.SafeHandler
 import org.radarbase.android.util.send
+import org.radarbase.config.ServerConfig
 import org.radarbase.producer.rest.RestClient
 import org.radarbase.producer.rest.RestSender
 import org.radarbase.topic.AvroTopic
@@ -169,11 +171,7 @@ class TableDataHandler(
 
         updateServerStatus(ServerStatusListener.Status.CONNECTING)
 
-        val client = RestClient.global()
-                .server(kafkaConfig)
-                .gzipCompression(config.restConfig.useCompression)
-                .timeout(config.restConfig.connectionTimeout, TimeUnit.SECONDS)
-                .build()
+        val client = config.restConfig.restClient(kafkaConfig)
 
         val sender = RestSender.Builder().apply {
             httpClient(client)
@@ -184,7 +182,19 @@ class TableDataHandler(
             sender = it
         }
 
-        this.submitter = KafkaDataSubmitter(this, sender, config.submitterConfig)
+        this.submitter = KafkaDataSubmitter(this, sender, config.submitterConfig, config.restConfig.rawRecordSender(client))
+    }
+
+    private fun RestConfiguration.restClient(kafkaConfig: ServerConfig): RestClient = RestClient.global()
+            .server(kafkaConfig)
+            .gzipCompression(useCompression)
+            .timeout(connectionTimeout, TimeUnit.SECONDS)
+            .build()
+
+    /** Sender of records in their stored encoding, if records are sent in binary encoding. */
+    private fun RestConfiguration.rawRecordSender(client: RestClient): RawRecordSender? {
+        val retriever = schemaRetriever ?: return null
+        return if (hasBinaryContent) RawRecordSender(client, retriever, headers) else null
     }
 
     /**
@@ -332,7 +342,10 @@ class TableDataHandler(
     ): DataCache<ObservationKey, V> {
         return cacheStore
                 .getOrCreateCaches(context.applicationContext, topic, config.cacheConfig, handler)
-                .also { tables[topic.name] = it }
+                .also {
+                    tables[topic.name] = it
+                    synchronized(this) { submitter }?.watchCaches()
+                }
                 .activeDataCache
     }
 
@@ -391,6 +404,7 @@ class TableDataHandler(
                     setKafkaConfig(kafkaConfig)
                     resetConnection()
                 }
+                submitter?.rawSender = newRest.rawRecordSender(newRest.restClient(kafkaConfig))
             }
         }
 
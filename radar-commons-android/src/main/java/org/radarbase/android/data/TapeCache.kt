@@ -16,7 +16,9 @@
 
 package org.radarbase.android.data
 
+import org.radarbase.android.data.CacheConfiguration.QueueFileFactory
 import org.radarbase.android.data.serialization.SerializationFactory
+import org.radarbase.android.data.serialization.ValueRecycler
 import org.radarbase.android.util.ChangeRunner
 import org.radarbase.android.util.SafeHandler
 import org.radarbase.data.AvroRecordData
@@ -24,12 +26,23 @@ import org.radarbase.data.Record
 import org.radarbase.data.RecordData
 import org.radarbase.topic.AvroTopic
 import org.radarbase.util.BackedObjectQueue
+import org.radarbase.util.BatchedElementQueue
+import org.radarbase.util.ByteBufferPool
+import org.radarbase.util.ElementArena
+import org.radarbase.util.ElementCursor
+import org.radarbase.util.ElementQueue
+import org.radarbase.util.MpscBuffer
 import org.radarbase.util.QueueFile
+import org.radarbase.util.QueueFileChecksum
+import org.radarbase.util.QueueFileCodec
 import org.slf4j.LoggerFactory
 import java.io.File
 import java.io.IOException
 import java.util.*
 import java.util.concurrent.ExecutionException
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
 
 /**
  * Caches measurement on a BackedObjectQueue. Internally, all data is first cached on a local queue,
@@ -56,53 +69,214 @@ constructor(
     config: CacheConfiguration,
 ) : DataCache<K, V> {
 
+    /** Records that were added by any thread, and that are not yet being written. */
+    private val pendingMeasurements = MpscBuffer<Record<K, V>>()
+    /** Records that are being written to the queue, only used from the handler thread. */
     private val measurementsToAdd = mutableListOf<Record<K, V>>()
+
+    /** Configuration that is read when records are added, from any thread. */
+    @Volatile
+    private var addConfig: CacheConfiguration = config.copy()
+    /** Number of records that were added since the last flush. */
+    private val pendingRecordCount = AtomicInteger()
+    /** Estimated size in bytes of the records that were added since the last flush. */
+    private val pendingByteSize = AtomicLong()
+    /** Average serialized size of records, to estimate the size of records that were not serialized yet. */
+    @Volatile
+    private var recordSizeEstimate: Int = INITIAL_RECORD_SIZE_ESTIMATE
+    /** Whether a flush was requested because a flush threshold was reached. */
+    private val isEarlyFlushRequested = AtomicBoolean(false)
+    /** Number of flushes per trigger, only used from the handler thread. */
+    private val flushTriggerCounts = EnumMap<FlushTrigger, Long>(FlushTrigger::class.java)
+    /** Serializer of added records, only used while holding [arenaLock]. */
+    private val arenaSerializer = serialization.createSerializer(topic)
+    private val arenaLock = Any()
+    /** Records that were serialized when they were added, guarded by [arenaLock]. */
+    private var pendingArena = ElementArena()
+    /**
+     * Arena that is swapped with [pendingArena] to write its records to the queue, only used from
+     * the handler thread.
+     */
+    private var flushingArena = ElementArena()
     private val serializer = serialization.createSerializer(topic)
     private val deserializer = serialization.createDeserializer(readTopic)
+    private val rawRecordReader = serialization.createRawRecordReader(topic)
 
-    private var queueFile: QueueFile
+    private var queueFile: ElementQueue
     private var queue: BackedObjectQueue<Record<K, V>, Record<Any, Any>>
-    private val queueFileFactory = config.queueFileType
+
+    /** Cursor after the records that were returned by [getNextUnsentRecords]. */
+    private var readCursor: ElementCursor
+    /**
+     * Cursor after the records that were in the queue before it was opened. The records after it
+     * were validated when they were added, so they need not be validated again when read.
+     */
+    private var trustedCursor: ElementCursor
+    /** Whether records are read with the same schemas that they were validated with. */
+    private val isReadTopicTrusted = topic.keySchema == readTopic.keySchema
+            && topic.valueSchema == readTopic.valueSchema
+    private val configuredQueueFileFactory = config.queueFileType
+    private var queueFileFactory = configuredQueueFileFactory
 
     private var addMeasurementFuture: SafeHandler.HandlerFuture? = null
 
+    /** Listener to the number of unsent records, only used from the handler thread. */
+    private var backlogListener: BacklogListener? = null
+    /** Number of unsent records beyond which [backlogListener] is called. */
+    private var backlogThreshold: Long = 0L
+    /** Whether [backlogListener] was called since the queue last had at most [backlogThreshold] records. */
+    private var isBacklogNotified: Boolean = false
+
     private val configCache = ChangeRunner(config)
 
     override var config
         get() = handler.compute { configCache.value }
         set(value) = handler.execute {
             configCache.applyIfChanged(value.copy()) {
-                queueFile.maximumFileSize = it.maximumSize
+                queueFile.maximumFileSize = it.maximumSize.coerceAtMost(queueFileFactory.maximumLength)
+                queueFile.applyConfig(it)
+                addConfig = it
             }
         }
 
     private val maximumSize: Long
-        get() = config.maximumSize.takeIf { it <= Int.MAX_VALUE } ?: Int.MAX_VALUE.toLong()
+        get() = config.maximumSize.coerceAtMost(queueFileFactory.maximumLength)
 
     init {
         queueFile = try {
-            queueFileFactory.generate(Objects.requireNonNull(file), maximumSize)
+            openQueueFile()
         } catch (ex: IOException) {
-            logger.error("TapeCache {} was corrupted. Removing old cache.", file, ex)
-            if (file.delete()) {
-                queueFileFactory.generate(file, maximumSize)
-            } else {
-                throw ex
-            }
+            logger.error("TapeCache {} was corrupted. Recovering old cache.", file, ex)
+            recoverQueueFile()
         }
         this.queue = BackedObjectQueue(queueFile, serializer, deserializer)
+        readCursor = queue.newCursor()
+        trustedCursor = newTrustedCursor()
+    }
+
+    private fun newTrustedCursor(): ElementCursor = queue.newCursor()
+        .apply { advance(remaining) }
+
+    /** Number of records at the head of the queue that must be validated when read. */
+    private val trustedOffset: Int
+        get() = if (configCache.value.trustedRead && isReadTopicTrusted) {
+            trustedCursor.offset
+        } else Int.MAX_VALUE
+
+    /**
+     * Open the queue file. An existing cache keeps its storage layout, so a changed queue file
+     * type only applies to new caches.
+     */
+    @Throws(IOException::class)
+    private fun openQueueFile(recover: Boolean = false): ElementQueue {
+        queueFileFactory = when {
+            file.isDirectory -> QueueFileFactory.SEGMENTED
+            file.isFile && configuredQueueFileFactory == QueueFileFactory.SEGMENTED -> QueueFileFactory.DIRECT
+            else -> configuredQueueFileFactory
+        }
+        val queueFile = if (recover) {
+            queueFileFactory.recover(file, maximumSize)
+        } else {
+            queueFileFactory.generate(file, maximumSize)
+        }
+        queueFile.applyConfig(configCache.value)
+        return try {
+            serialization.createRecordQueue(queueFile, readTopic)
+        } catch (ex: IOException) {
+            queueFile.close()
+            throw ex
+        }
+    }
+
+    /**
+     * Open a corrupted queue file, keeping the records that can still be read. If the queue file
+     * cannot be recovered, it is removed and a new queue file is created.
+     */
+    @Throws(IOException::class)
+    private fun recoverQueueFile(): ElementQueue {
+        return try {
+            openQueueFile(recover = true)
+        } catch (ex: IOException) {
+            logger.error("Cannot recover TapeCache {}. Removing old cache.", file, ex)
+            createNewQueueFile(ex)
+        }
+    }
+
+    /** Remove the queue file and create a new, empty one. */
+    @Throws(IOException::class)
+    private fun createNewQueueFile(cause: Exception): ElementQueue {
+        if (!file.deleteRecursively()) {
+            throw IOException("Cannot create new cache.", cause)
+        }
+        return openQueueFile()
+    }
+
+    /** Queue that elements are stored in, if records are stored in batches. */
+    private val ElementQueue.storage: ElementQueue
+        get() = if (this is BatchedElementQueue) queue else this
+
+    private fun ElementQueue.applyConfig(config: CacheConfiguration) {
+        durability = config.durability
+        syncInterval = config.syncInterval
+        val storage = storage
+        if (storage is QueueFile) {
+            storage.elementIndexCapacity = config.elementIndexCapacity
+            storage.configureBuffers(config.readBufferSize, config.writeBufferSize, config.readAhead)
+            storage.codec = config.codec
+            storage.checksum = config.checksum
+        } else if (config.codec != QueueFileCodec.NONE || config.checksum != QueueFileChecksum.NONE) {
+            logger.warn("Queue of topic {} does not support compression {} or checksum {}. Storing records without them.",
+                topic.name, config.codec, config.checksum)
+        }
     }
 
     @Throws(IOException::class)
     override fun getUnsentRecords(limit: Int, sizeLimit: Long): RecordData<Any, Any?>? {
         logger.debug("Trying to retrieve records from topic {}", topic.name)
+        return readUnsentRecords { getValidUnsentRecords(limit, sizeLimit, null) }
+    }
+
+    @Throws(IOException::class)
+    override fun getNextUnsentRecords(limit: Int, sizeLimit: Long): RecordData<Any, Any?>? {
+        logger.debug("Trying to retrieve next records from topic {}", topic.name)
+        return readUnsentRecords { getValidUnsentRecords(limit, sizeLimit, readCursor) }
+    }
+
+    override val canReadAhead: Boolean
+        get() = true
+
+    override fun resetUnsentRecords() {
+        handler.execute { readCursor.reset() }
+    }
+
+    override fun recycle(records: RecordData<Any, Any?>) {
+        val recycler = deserializer as? ValueRecycler ?: return
+        handler.execute { recycler.recycle(records) }
+    }
+
+    @Throws(IOException::class)
+    override fun getUnsentRawRecords(limit: Int, sizeLimit: Long): RawRecordData? {
+        val reader = rawRecordReader ?: return null
+        logger.debug("Trying to retrieve raw records from topic {}", topic.name)
+        return readFromQueue { reader.read(queueFile.iterator(), limit, sizeLimit) }
+    }
+
+    @Throws(IOException::class)
+    private fun readUnsentRecords(
+        readRecords: () -> Pair<Any, List<Any?>>?,
+    ): RecordData<Any, Any?>? = readFromQueue {
+        readRecords()
+            ?.let { (key, values) ->
+                AvroRecordData(readTopic, key, values)
+            }
+    }
+
+    @Throws(IOException::class)
+    private fun <T: Any> readFromQueue(readRecords: () -> T?): T? {
         return try {
              handler.compute {
                 try {
-                    getValidUnsentRecords(limit, sizeLimit)
-                            ?.let { (key, values) ->
-                                AvroRecordData(readTopic, key, values)
-                            }
+                    readRecords()
                 } catch (ex: IOException) {
                     fixCorruptQueue(ex)
                     null
@@ -126,24 +300,44 @@ constructor(
         }
     }
 
-    private fun getValidUnsentRecords(limit: Int, sizeLimit: Long): Pair<Any, List<Any>>? {
+    /**
+     * Read records with the same key from the head of the queue, or after [cursor] if given.
+     * Invalid records at the head of the queue are removed. Invalid records after a cursor cannot
+     * be removed yet, so they are returned as null values and the cursor is moved past them. If
+     * only invalid records are found after a cursor, they are returned with [INVALID_RECORDS_KEY],
+     * so that the caller still removes them.
+     */
+    private fun getValidUnsentRecords(limit: Int, sizeLimit: Long, cursor: ElementCursor?): Pair<Any, List<Any?>>? {
         var currentKey: Any? = null
+        var skippedNulls = 0
         lateinit var records: List<Record<Any, Any>?>
 
         while (currentKey == null) {
-            records = queue.peek(limit, sizeLimit)
+            val offset = (cursor?.offset ?: 0) + skippedNulls
+            records = queue.peek(limit - skippedNulls, sizeLimit, offset, trustedOffset)
 
-            if (records.isEmpty()) return null
+            if (records.isEmpty()) break
 
             val nullSize = records.indexOfFirst { it != null }
                     .takeIf { it != -1 }
                     ?: records.size
 
             if (nullSize > 0) {
-                queue -= nullSize
+                if (offset == 0) {
+                    queue -= nullSize
+                } else {
+                    skippedNulls += nullSize
+                }
                 records = records.subList(nullSize, records.size)
             }
             currentKey = records.firstOrNull()?.key
+            if (currentKey == null && skippedNulls >= limit) break
+        }
+
+        if (currentKey == null) {
+            if (skippedNulls == 0) return null
+            cursor?.advance(skippedNulls)
+            return Pair(INVALID_RECORDS_KEY, List(skippedNulls) { null })
         }
 
         val differentKeyIndex = records.indexOfFirst { it?.key != currentKey }
@@ -151,7 +345,13 @@ constructor(
             records = records.subList(0, differentKeyIndex)
         }
 
-        return Pair(currentKey, records.mapNotNull { it?.value })
+        cursor?.advance(skippedNulls + records.size)
+
+        return if (skippedNulls == 0) {
+            Pair(currentKey, records.mapNotNull { it?.value })
+        } else {
+            Pair(currentKey, List(skippedNulls) { null } + records.map { it?.value })
+        }
     }
 
     @Throws(IOException::class)
@@ -171,6 +371,9 @@ constructor(
             if (actualNumber > 0) {
                 logger.debug("Removing {} records from topic {}", actualNumber, topic.name)
                 queue -= actualNumber
+                if (queue.size <= backlogThreshold) {
+                    isBacklogNotified = false
+                }
             }
         }
     }
@@ -182,25 +385,114 @@ constructor(
             "Cannot send invalid record to topic $topic with {key: $key, value: $value}"
         }
 
-        handler.execute {
-            measurementsToAdd += record
+        val config = addConfig
+        val recordSize = if (config.serializeOnAdd) {
+            addSerialized(record) ?: return
+        } else {
+            pendingMeasurements.add(record)
+            recordSizeEstimate
+        }
+        val recordCount = pendingRecordCount.incrementAndGet()
+        val byteSize = pendingByteSize.addAndGet(recordSize.toLong())
+
+        // only the first record after a flush needs to schedule the next flush
+        if (recordCount == 1) {
+            handler.execute {
+                if (addMeasurementFuture == null) {
+                    addMeasurementFuture = handler.delay(config.commitRate) {
+                        doFlush(FlushTrigger.COMMIT_RATE)
+                    }
+                }
+            }
+        }
+        if (config.flushRecordCount in 1..recordCount) {
+            requestEarlyFlush(FlushTrigger.RECORD_COUNT)
+        } else if (config.flushByteSize in 1..byteSize) {
+            requestEarlyFlush(FlushTrigger.BYTE_SIZE)
+        }
+    }
+
+    /**
+     * Serialize a record into [pendingArena], so the record itself need not be kept.
+     * @return the serialized size of the record, or null if it could not be serialized.
+     */
+    private fun addSerialized(record: Record<K, V>): Int? = synchronized(arenaLock) {
+        val previousSize = pendingArena.byteSize
+        try {
+            arenaSerializer.serialize(record, pendingArena)
+            pendingArena.next()
+        } catch (ex: IOException) {
+            pendingArena.discard()
+            logger.error("Failed to serialize record for topic {}", topic.name, ex)
+            return null
+        }
+        pendingArena.byteSize - previousSize
+    }
 
-            if (addMeasurementFuture == null) {
-                addMeasurementFuture = handler.delay(config.commitRate, ::doFlush)
+    /** Flush as soon as possible, if no such flush was requested yet. */
+    private fun requestEarlyFlush(trigger: FlushTrigger) {
+        if (isEarlyFlushRequested.compareAndSet(false, true)) {
+            handler.execute {
+                addMeasurementFuture?.cancel()
+                doFlush(trigger)
             }
         }
     }
 
+    override val flushCounts: Map<FlushTrigger, Long>
+        get() = handler.compute { EnumMap(flushTriggerCounts) }
+
+    override fun setBacklogListener(threshold: Long, listener: BacklogListener?) {
+        handler.execute {
+            if (listener === backlogListener && threshold == backlogThreshold) return@execute
+            backlogListener = listener
+            backlogThreshold = threshold
+            isBacklogNotified = false
+            notifyBacklog()
+        }
+    }
+
+    override fun rearmBacklogListener() {
+        handler.execute { isBacklogNotified = false }
+    }
+
+    /**
+     * Call [backlogListener] if the queue has more records than its threshold, unless it was
+     * already called since the queue last had at most that many records.
+     */
+    private fun notifyBacklog() {
+        val listener = backlogListener ?: return
+        val size = queue.size.toLong()
+        if (size <= backlogThreshold) {
+            isBacklogNotified = false
+            return
+        }
+        if (isBacklogNotified) return
+        isBacklogNotified = true
+        try {
+            listener.onBacklog(this, size)
+        } catch (ex: RuntimeException) {
+            logger.error("Backlog listener of topic {} failed", topic.name, ex)
+        }
+    }
+
     @Throws(IOException::class)
     override fun close() {
         flush()
+        logger.debug("Flushes of topic {}: {}; operations waiting on {}: {}",
+            topic.name, flushCounts, handler.name, handler.queueDepth)
+        (queueFile.storage as? QueueFile)?.bufferStatistics?.let {
+            logger.debug("Buffer statistics of topic {}: {}; shared pool: {}",
+                topic.name, it, ByteBufferPool.shared.statistics)
+        }
         queue.close()
     }
 
     override fun flush() {
         try {
             handler.await {
-                addMeasurementFuture?.runNow()
+                addMeasurementFuture?.cancel()
+                doFlush(FlushTrigger.REQUESTED)
             }
         } catch (e: InterruptedException) {
             logger.warn("Did not wait for adding measurements to complete.")
@@ -211,40 +503,58 @@ constructor(
 
     override fun triggerFlush() {
         handler.execute {
-            addMeasurementFuture?.runNow()
+            addMeasurementFuture?.cancel()
+            doFlush(FlushTrigger.REQUESTED)
         }
     }
 
-    private fun doFlush() {
+    private fun doFlush(trigger: FlushTrigger) {
         addMeasurementFuture = null
-
-        if (measurementsToAdd.isEmpty()) {
-            return
+        isEarlyFlushRequested.set(false)
+        pendingRecordCount.set(0)
+        pendingByteSize.set(0L)
+
+        val arena = synchronized(arenaLock) {
+            pendingArena.also {
+                pendingArena = flushingArena
+                flushingArena = it
+            }
+        }
+        if (pendingMeasurements.drainTo(measurementsToAdd) > 0) {
+            serializeMeasurements(arena)
         }
+        if (arena.isEmpty) return
+
+        recordSizeEstimate = arena.byteSize / arena.size
         try {
-            logger.info("Writing {} records to file in topic {}", measurementsToAdd.size, topic.name)
-            queue += measurementsToAdd
+            logger.info("Writing {} records to file in topic {}", arena.size, topic.name)
+            arena.writeTo(queueFile)
+            flushTriggerCounts[trigger] = (flushTriggerCounts[trigger] ?: 0L) + 1L
+            notifyBacklog()
         } catch (ex: IOException) {
             logger.error("Failed to add records", ex)
             throw RuntimeException(ex)
         } catch (ex: IllegalStateException) {
             logger.error("Queue {} is full, not adding records", topic.name)
-        } catch (ex: IllegalArgumentException) {
-            logger.error("Failed to validate all records; adding individual records instead", ex)
-            try {
-                logger.info("Writing {} records to file in topic {}", measurementsToAdd.size, topic.name)
-                for (record in measurementsToAdd) {
-                    try {
-                        queue += record
-                    } catch (ex2: IllegalArgumentException) {
-                        logger.error("Failed to write individual record {}", record, ex)
-                    }
+        } finally {
+            arena.clear()
+        }
+    }
+
+    /** Serialize the records that were not serialized when they were added into [arena]. */
+    private fun serializeMeasurements(arena: ElementArena) {
+        try {
+            for (record in measurementsToAdd) {
+                try {
+                    serializer.serialize(record, arena)
+                    arena.next()
+                } catch (ex: IOException) {
+                    arena.discard()
+                    logger.error("Failed to write individual record {}", record, ex)
+                } catch (ex: RuntimeException) {
+                    arena.discard()
+                    logger.error("Failed to write individual record {}", record, ex)
                 }
-            } catch (illEx: IllegalStateException) {
-                logger.error("Queue {} is full, not adding records", topic.name)
-            } catch (ex2: IOException) {
-                logger.error("Failed to add record", ex)
-                throw RuntimeException(ex)
             }
         } finally {
             measurementsToAdd.clear()
@@ -253,22 +563,32 @@ constructor(
 
     @Throws(IOException::class)
     private fun fixCorruptQueue(ex: Exception) {
-        logger.error("Queue {} was corrupted. Removing cache.", topic.name, ex)
+        logger.error("Queue {} was corrupted. Recovering cache.", topic.name, ex)
+        val previousSize = queueFile.size
         try {
             queue.close()
         } catch (ioex: IOException) {
             logger.warn("Failed to close corrupt queue", ioex)
         }
 
-        if (file.delete()) {
-            queueFile = queueFileFactory.generate(file, maximumSize)
-            queue = BackedObjectQueue(queueFile, serializer, deserializer)
-        } else {
-            throw IOException("Cannot create new cache.")
+        queueFile = recoverQueueFile()
+        if (queueFile.size >= previousSize && !queueFile.isEmpty) {
+            // the corruption is not in the queue structure, so recovering would not resolve it
+            logger.error("No corrupted records found in queue {}. Removing cache.", topic.name)
+            queueFile.close()
+            queueFile = createNewQueueFile(ex)
         }
+        queue = BackedObjectQueue(queueFile, serializer, deserializer)
+        readCursor = queue.newCursor()
+        trustedCursor = newTrustedCursor()
     }
 
     companion object {
         private val logger = LoggerFactory.getLogger(TapeCache::class.java)
+
+        private const val INITIAL_RECORD_SIZE_ESTIMATE = 100
+
+        /** Key of records that are returned when none of them could be read. */
+        private val INVALID_RECORDS_KEY = Any()
     }
 }
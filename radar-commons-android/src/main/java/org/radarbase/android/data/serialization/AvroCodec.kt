@@ -0,0 +1,290 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarbase.android.data.serialization
+
+import org.apache.avro.AvroTypeException
+import org.apache.avro.Schema
+import org.apache.avro.generic.GenericArray
+import org.apache.avro.generic.GenericData
+import org.apache.avro.generic.GenericFixed
+import org.apache.avro.generic.IndexedRecord
+import org.apache.avro.io.DatumReader
+import org.apache.avro.io.DatumWriter
+import org.apache.avro.io.Decoder
+import org.apache.avro.io.Encoder
+import org.apache.avro.util.Utf8
+import java.io.IOException
+import java.nio.ByteBuffer
+
+/**
+ * Reads and writes data of a single Avro schema. The schema is compiled once into a plan of
+ * readers and writers per type and field position, like [AvroValidator], so encoding or decoding
+ * a datum does not walk the schema or look up fields, names or types in it. Data is read with the
+ * same schema that it was written with, so no schema resolution is done. The encoding is the same
+ * as that of the [DatumWriter] and [DatumReader] of [avroData]. Codecs are immutable and
+ * thread-safe.
+ *
+ * @param schema schema of the data.
+ * @param avroData data model to create records, enum symbols and fixed values with, and to
+ *                 resolve union branches with.
+ */
+class AvroCodec(
+    val schema: Schema,
+    private val avroData: GenericData,
+) : DatumReader<Any?>, DatumWriter<Any?> {
+    private val codec: Codec = compile(schema, HashMap())
+
+    override fun setSchema(schema: Schema) {
+        require(schema == this.schema) { "Cannot change the schema of a compiled codec" }
+    }
+
+    @Throws(IOException::class)
+    override fun write(datum: Any?, out: Encoder) = codec.write(datum, out)
+
+    @Throws(IOException::class)
+    override fun read(reuse: Any?, `in`: Decoder): Any? = codec.read(reuse, `in`)
+
+    /**
+     * Compile the codec of [schema]. Compiled [records] are kept by full name, so that recursive
+     * schemas refer to the same codec.
+     */
+    private fun compile(schema: Schema, records: MutableMap<String, RecordCodec>): Codec = when (schema.type) {
+        Schema.Type.RECORD -> records[schema.fullName] ?: RecordCodec(schema).also { recordCodec ->
+            records[schema.fullName] = recordCodec
+            val fields = schema.fields
+            recordCodec.positions = IntArray(fields.size) { fields[it].pos() }
+            recordCodec.fields = Array(fields.size) { compile(fields[it].schema(), records) }
+        }
+        Schema.Type.ENUM -> EnumCodec(schema)
+        Schema.Type.ARRAY -> ArrayCodec(schema, compile(schema.elementType, records))
+        Schema.Type.MAP -> MapCodec(schema.isJavaString, compile(schema.valueType, records))
+        Schema.Type.UNION -> UnionCodec(schema, Array(schema.types.size) { compile(schema.types[it], records) })
+        Schema.Type.FIXED -> FixedCodec(schema)
+        Schema.Type.STRING -> if (schema.isJavaString) JavaStringCodec else StringCodec
+        Schema.Type.BYTES -> BytesCodec
+        Schema.Type.INT -> IntCodec
+        Schema.Type.LONG -> LongCodec
+        Schema.Type.FLOAT -> FloatCodec
+        Schema.Type.DOUBLE -> DoubleCodec
+        Schema.Type.BOOLEAN -> BooleanCodec
+        Schema.Type.NULL -> NullCodec
+        else -> throw IllegalArgumentException("Cannot compile schema type ${schema.type}")
+    }
+
+    override fun toString(): String = "AvroCodec<${schema.fullName}>"
+
+    private interface Codec {
+        @Throws(IOException::class)
+        fun write(datum: Any?, encoder: Encoder)
+
+        @Throws(IOException::class)
+        fun read(reuse: Any?, decoder: Decoder): Any?
+    }
+
+    /** Codec of record fields by position. Fields are set after construction to allow recursion. */
+    private inner class RecordCodec(private val schema: Schema) : Codec {
+        lateinit var positions: IntArray
+        lateinit var fields: Array<Codec>
+
+        override fun write(datum: Any?, encoder: Encoder) {
+            val record = datum as IndexedRecord
+            for (i in fields.indices) {
+                fields[i].write(record.get(positions[i]), encoder)
+            }
+        }
+
+        override fun read(reuse: Any?, decoder: Decoder): Any? {
+            val record = avroData.newRecord(reuse, schema) as IndexedRecord
+            for (i in fields.indices) {
+                val pos = positions[i]
+                record.put(pos, fields[i].read(record.get(pos), decoder))
+            }
+            return record
+        }
+    }
+
+    private inner class EnumCodec(schema: Schema) : Codec {
+        private val ordinals: Map<String, Int> = schema.enumSymbols.withIndex()
+            .associate { (i, symbol) -> symbol to i }
+        private val symbols: Array<Any> = Array(schema.enumSymbols.size) {
+            avroData.createEnum(schema.enumSymbols[it], schema)
+        }
+
+        override fun write(datum: Any?, encoder: Encoder) {
+            encoder.writeEnum(ordinals[datum.toString()]
+                ?: throw AvroTypeException("Not an enum symbol: $datum"))
+        }
+
+        override fun read(reuse: Any?, decoder: Decoder): Any? {
+            val ordinal = decoder.readEnum()
+            if (ordinal !in symbols.indices) throw AvroTypeException("Enum ordinal $ordinal is out of range")
+            return symbols[ordinal]
+        }
+    }
+
+    private class ArrayCodec(private val schema: Schema, private val element: Codec) : Codec {
+        override fun write(datum: Any?, encoder: Encoder) {
+            val array = datum as Collection<*>
+            encoder.writeArrayStart()
+            encoder.setItemCount(array.size.toLong())
+            for (item in array) {
+                encoder.startItem()
+                element.write(item, encoder)
+            }
+            encoder.writeArrayEnd()
+        }
+
+        override fun read(reuse: Any?, decoder: Decoder): Any? {
+            var n = decoder.readArrayStart()
+            @Suppress("UNCHECKED_CAST")
+            val array = (reuse as? MutableCollection<Any?>)?.also { it.clear() }
+                ?: GenericData.Array<Any?>(n.toInt(), schema)
+            @Suppress("UNCHECKED_CAST")
+            val genericArray = array as? GenericArray<Any?>
+            while (n > 0) {
+                for (i in 0 until n) {
+                    array.add(element.read(genericArray?.peek(), decoder))
+                }
+                n = decoder.arrayNext()
+            }
+            return array
+        }
+    }
+
+    private class MapCodec(private val isJavaStringKey: Boolean, private val value: Codec) : Codec {
+        override fun write(datum: Any?, encoder: Encoder) {
+            val map = datum as Map<*, *>
+            encoder.writeMapStart()
+            encoder.setItemCount(map.size.toLong())
+            for ((k, v) in map) {
+                encoder.startItem()
+                StringCodec.write(k, encoder)
+                value.write(v, encoder)
+            }
+            encoder.writeMapEnd()
+        }
+
+        override fun read(reuse: Any?, decoder: Decoder): Any? {
+            var n = decoder.readMapStart()
+            @Suppress("UNCHECKED_CAST")
+            val map = (reuse as? MutableMap<Any?, Any?>)?.also { it.clear() }
+                ?: HashMap<Any?, Any?>(n.toInt())
+            while (n > 0) {
+                for (i in 0 until n) {
+                    val key = if (isJavaStringKey) decoder.readString() else decoder.readString(null)
+                    map[key] = value.read(null, decoder)
+                }
+                n = decoder.mapNext()
+            }
+            return map
+        }
+    }
+
+    private inner class UnionCodec(private val schema: Schema, private val branches: Array<Codec>) : Codec {
+        /** Branch of null values, which are resolved without the data model. */
+        private val nullIndex: Int = schema.types.indexOfFirst { it.type == Schema.Type.NULL }
+
+        override fun write(datum: Any?, encoder: Encoder) {
+            val index = if (datum == null && nullIndex >= 0) nullIndex else avroData.resolveUnion(schema, datum)
+            encoder.writeIndex(index)
+            branches[index].write(datum, encoder)
+        }
+
+        override fun read(reuse: Any?, decoder: Decoder): Any? {
+            val index = decoder.readIndex()
+            if (index !in branches.indices) throw AvroTypeException("Union index $index is out of range")
+            return branches[index].read(reuse, decoder)
+        }
+    }
+
+    private inner class FixedCodec(private val schema: Schema) : Codec {
+        private val size = schema.fixedSize
+
+        override fun write(datum: Any?, encoder: Encoder) {
+            encoder.writeFixed((datum as GenericFixed).bytes(), 0, size)
+        }
+
+        override fun read(reuse: Any?, decoder: Decoder): Any? {
+            val fixed = avroData.createFixed(reuse, schema) as GenericFixed
+            decoder.readFixed(fixed.bytes(), 0, size)
+            return fixed
+        }
+    }
+
+    /** Codec of strings that are read as [Utf8]. */
+    private object StringCodec : Codec {
+        override fun write(datum: Any?, encoder: Encoder) {
+            if (datum is Utf8) {
+                encoder.writeString(datum)
+            } else {
+                encoder.writeString(datum.toString())
+            }
+        }
+
+        override fun read(reuse: Any?, decoder: Decoder): Any? = decoder.readString(reuse as? Utf8)
+    }
+
+    /** Codec of strings that are read as [String], as requested by their schema. */
+    private object JavaStringCodec : Codec {
+        override fun write(datum: Any?, encoder: Encoder) = StringCodec.write(datum, encoder)
+        override fun read(reuse: Any?, decoder: Decoder): Any? = decoder.readString()
+    }
+
+    private object BytesCodec : Codec {
+        override fun write(datum: Any?, encoder: Encoder) = encoder.writeBytes(datum as ByteBuffer)
+        override fun read(reuse: Any?, decoder: Decoder): Any? = decoder.readBytes(reuse as? ByteBuffer)
+    }
+
+    private object IntCodec : Codec {
+        override fun write(datum: Any?, encoder: Encoder) = encoder.writeInt(datum as Int)
+        override fun read(reuse: Any?, decoder: Decoder): Any? = decoder.readInt()
+    }
+
+    private object LongCodec : Codec {
+        override fun write(datum: Any?, encoder: Encoder) = encoder.writeLong(datum as Long)
+        override fun read(reuse: Any?, decoder: Decoder): Any? = decoder.readLong()
+    }
+
+    private object FloatCodec : Codec {
+        override fun write(datum: Any?, encoder: Encoder) = encoder.writeFloat(datum as Float)
+        override fun read(reuse: Any?, decoder: Decoder): Any? = decoder.readFloat()
+    }
+
+    private object DoubleCodec : Codec {
+        override fun write(datum: Any?, encoder: Encoder) = encoder.writeDouble(datum as Double)
+        override fun read(reuse: Any?, decoder: Decoder): Any? = decoder.readDouble()
+    }
+
+    private object BooleanCodec : Codec {
+        override fun write(datum: Any?, encoder: Encoder) = encoder.writeBoolean(datum as Boolean)
+        override fun read(reuse: Any?, decoder: Decoder): Any? = decoder.readBoolean()
+    }
+
+    private object NullCodec : Codec {
+        override fun write(datum: Any?, encoder: Encoder) = encoder.writeNull()
+        override fun read(reuse: Any?, decoder: Decoder): Any? {
+            decoder.readNull()
+            return null
+        }
+    }
+
+    companion object {
+        /** Whether strings of this schema are read as [String] instead of [Utf8]. */
+        private val Schema.isJavaString: Boolean
+            get() = getProp(GenericData.STRING_PROP) == GenericData.StringType.String.name
+    }
+}
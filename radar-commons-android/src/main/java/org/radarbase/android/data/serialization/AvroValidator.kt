@@ -0,0 +1,153 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarbase.android.data.serialization
+
+import org.apache.avro.Schema
+import org.apache.avro.generic.GenericContainer
+import org.apache.avro.generic.GenericData
+import org.apache.avro.generic.GenericEnumSymbol
+import org.apache.avro.generic.GenericFixed
+import org.apache.avro.generic.IndexedRecord
+import java.nio.ByteBuffer
+
+/**
+ * Validates data against a single Avro schema. The schema is compiled once into a plan of checks
+ * per type and field position, so validating a datum does not look up fields, names or types in
+ * the schema. It accepts the same data as [GenericData.validate] of the data models in
+ * [TapeAvroSerializationFactory], so floats and doubles must be finite unless
+ * [allowNonFiniteNumbers] is set. Validators are immutable and thread-safe.
+ *
+ * @param schema schema to validate data with.
+ * @param allowNonFiniteNumbers whether NaN and infinite floats and doubles are valid.
+ */
+class AvroValidator(
+    val schema: Schema,
+    private val allowNonFiniteNumbers: Boolean = false,
+) {
+    private val check: Check = compile(schema, HashMap())
+
+    /** Whether [datum] is valid according to [schema]. */
+    fun validate(datum: Any?): Boolean = check.isValid(datum)
+
+    /**
+     * Compile the checks of [schema]. Compiled [records] are kept by full name, so that recursive
+     * schemas refer to the same check.
+     */
+    private fun compile(schema: Schema, records: MutableMap<String, RecordCheck>): Check = when (schema.type) {
+        Schema.Type.RECORD -> records[schema.fullName] ?: RecordCheck().also { recordCheck ->
+            records[schema.fullName] = recordCheck
+            val fields = schema.fields
+            recordCheck.positions = IntArray(fields.size) { fields[it].pos() }
+            recordCheck.fields = Array(fields.size) { compile(fields[it].schema(), records) }
+        }
+        Schema.Type.ENUM -> EnumCheck(schema.enumSymbols.toHashSet())
+        Schema.Type.ARRAY -> ArrayCheck(compile(schema.elementType, records))
+        Schema.Type.MAP -> MapCheck(compile(schema.valueType, records))
+        Schema.Type.UNION -> UnionCheck(schema.types
+            .map { type ->
+                when (type.type) {
+                    Schema.Type.RECORD, Schema.Type.ENUM, Schema.Type.FIXED -> NamedCheck(type.fullName, compile(type, records))
+                    else -> compile(type, records)
+                }
+            }
+            .toTypedArray())
+        Schema.Type.FIXED -> FixedCheck(schema.fixedSize)
+        Schema.Type.STRING -> Check { it is CharSequence }
+        Schema.Type.BYTES -> Check { it is ByteBuffer }
+        Schema.Type.INT -> Check { it is Int }
+        Schema.Type.LONG -> Check { it is Long }
+        Schema.Type.FLOAT -> if (allowNonFiniteNumbers) {
+            Check { it is Float }
+        } else {
+            Check { it is Float && it.isFinite() }
+        }
+        Schema.Type.DOUBLE -> if (allowNonFiniteNumbers) {
+            Check { it is Double }
+        } else {
+            Check { it is Double && it.isFinite() }
+        }
+        Schema.Type.BOOLEAN -> Check { it is Boolean }
+        Schema.Type.NULL -> Check { it == null }
+        else -> throw IllegalArgumentException("Cannot validate schema type ${schema.type}")
+    }
+
+    override fun toString(): String = "AvroValidator<${schema.fullName}>"
+
+    private fun interface Check {
+        fun isValid(datum: Any?): Boolean
+    }
+
+    /** Checks record fields by position. Fields are set after construction to allow recursion. */
+    private class RecordCheck : Check {
+        lateinit var positions: IntArray
+        lateinit var fields: Array<Check>
+
+        override fun isValid(datum: Any?): Boolean {
+            if (datum !is IndexedRecord) return false
+            for (i in fields.indices) {
+                if (!fields[i].isValid(datum.get(positions[i]))) return false
+            }
+            return true
+        }
+    }
+
+    private class EnumCheck(private val symbols: Set<String>) : Check {
+        override fun isValid(datum: Any?): Boolean = (datum is Enum<*> || datum is GenericEnumSymbol)
+                && datum.toString() in symbols
+    }
+
+    private class ArrayCheck(private val element: Check) : Check {
+        override fun isValid(datum: Any?): Boolean {
+            if (datum !is Collection<*>) return false
+            if (datum is List<*> && datum is RandomAccess) {
+                for (i in datum.indices) {
+                    if (!element.isValid(datum[i])) return false
+                }
+                return true
+            }
+            return datum.all { element.isValid(it) }
+        }
+    }
+
+    private class MapCheck(private val value: Check) : Check {
+        override fun isValid(datum: Any?): Boolean = datum is Map<*, *>
+                && datum.values.all { value.isValid(it) }
+    }
+
+    private class FixedCheck(private val size: Int) : Check {
+        override fun isValid(datum: Any?): Boolean = datum is GenericFixed
+                && datum.bytes().size == size
+    }
+
+    /**
+     * Checks a named type in a union. Like [GenericData.resolveUnion], a datum with its own
+     * schema only matches the branch with the same full name.
+     */
+    private class NamedCheck(private val fullName: String, private val check: Check) : Check {
+        override fun isValid(datum: Any?): Boolean = (datum !is GenericContainer || datum.schema.fullName == fullName)
+                && check.isValid(datum)
+    }
+
+    private class UnionCheck(private val branches: Array<Check>) : Check {
+        override fun isValid(datum: Any?): Boolean {
+            for (branch in branches) {
+                if (branch.isValid(datum)) return true
+            }
+            return false
+        }
+    }
+}
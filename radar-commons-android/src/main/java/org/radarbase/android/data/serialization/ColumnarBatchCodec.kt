@@ -0,0 +1,424 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarbase.android.data.serialization
+
+import org.apache.avro.Schema
+import org.radarbase.util.BatchCodec
+import org.radarbase.util.IO.requireIO
+import org.radarbase.util.VarInt
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.io.OutputStream
+
+/**
+ * Encodes the Avro values of a batch column by column, for records that only have numeric
+ * fields. Time fields are stored as the delta-of-delta of their bits, and integer fields as the
+ * delta-of-delta of their value. Other floating point fields are stored with the XOR encoding of
+ * Gorilla (Pelkonen et al., 2015). Values are decoded to exactly the same Avro binary encoding,
+ * including NaN values. Batches with values that cannot be parsed with the schema are stored as
+ * they are.
+ *
+ * Create a codec with [create].
+ */
+internal class ColumnarBatchCodec private constructor(
+    private val columns: Array<Column>,
+) : BatchCodec {
+    /** Values of each column, with floating point values stored as their bits. */
+    private var values: Array<LongArray> = Array(columns.size) { LongArray(INITIAL_CAPACITY) }
+    private val bits = BitOutput()
+    /** Maximum length of an Avro encoded value. */
+    private val maximumValueLength: Int = columns.sumOf { it.maximumLength }
+
+    @Throws(IOException::class)
+    override fun encode(payloads: ByteArray, length: Int, count: Int, output: OutputStream) {
+        if (!parse(payloads, length, count)) {
+            output.write(PLAIN_ENCODING)
+            output.write(payloads, 0, length)
+            return
+        }
+        output.write(COLUMNAR_ENCODING)
+        bits.reset()
+        columns.forEachIndexed { i, column -> column.encode(values[i], count, bits) }
+        bits.writeTo(output)
+    }
+
+    @Throws(IOException::class)
+    override fun decode(data: ByteArray, offset: Int, length: Int, count: Int): ByteArray {
+        requireIO(length > 0) { "Batch encoding is missing" }
+        when (data[offset].toInt()) {
+            PLAIN_ENCODING -> return data.copyOfRange(offset + 1, offset + length)
+            COLUMNAR_ENCODING -> Unit
+            else -> throw IOException("Unknown batch encoding ${data[offset]}")
+        }
+        ensureCapacity(count)
+        val input = BitInput(data, offset + 1, offset + length)
+        columns.forEachIndexed { i, column -> column.decode(values[i], count, input) }
+
+        val output = ByteArrayOutputStream(count * (maximumValueLength + 1))
+        val value = ByteArray(maximumValueLength)
+        for (r in 0 until count) {
+            var position = 0
+            columns.forEachIndexed { i, column ->
+                position = column.writeAvro(values[i][r], value, position)
+            }
+            VarInt.write(position, output)
+            output.write(value, 0, position)
+        }
+        return output.toByteArray()
+    }
+
+    /**
+     * Parse [count] Avro encoded values from [payloads] into [values].
+     * @return whether all values could be parsed into columns.
+     */
+    private fun parse(payloads: ByteArray, length: Int, count: Int): Boolean {
+        ensureCapacity(count)
+        var position = 0
+        for (r in 0 until count) {
+            val payloadLength = VarInt.read(payloads, position, length)
+            position += VarInt.size(payloadLength)
+            val end = position + payloadLength
+            if (end > length) return false
+            for (i in columns.indices) {
+                position = columns[i].parseAvro(payloads, position, end, values[i], r)
+                if (position < 0) return false
+            }
+            if (position != end) return false
+        }
+        return true
+    }
+
+    private fun ensureCapacity(count: Int) {
+        if (values[0].size < count) {
+            values = Array(columns.size) { LongArray(maxOf(count, values[0].size * 2)) }
+        }
+    }
+
+    /** Encoding of a single field. */
+    private enum class Column(
+        /** Maximum length of the Avro encoding of the field. */
+        val maximumLength: Int,
+    ) {
+        /** Double field containing a time, which increases at an almost regular rate. */
+        TIME(8) {
+            override fun parseAvro(data: ByteArray, position: Int, end: Int, values: LongArray, i: Int): Int =
+                parseLittleEndian(data, position, end, values, i, 8)
+            override fun writeAvro(value: Long, data: ByteArray, position: Int): Int =
+                writeLittleEndian(value, data, position, 8)
+            override fun encode(values: LongArray, count: Int, bits: BitOutput) = encodeDeltaOfDelta(values, count, bits)
+            override fun decode(values: LongArray, count: Int, bits: BitInput) = decodeDeltaOfDelta(values, count, bits)
+        },
+        DOUBLE(8) {
+            override fun parseAvro(data: ByteArray, position: Int, end: Int, values: LongArray, i: Int): Int =
+                parseLittleEndian(data, position, end, values, i, 8)
+            override fun writeAvro(value: Long, data: ByteArray, position: Int): Int =
+                writeLittleEndian(value, data, position, 8)
+            override fun encode(values: LongArray, count: Int, bits: BitOutput) = encodeXor(values, count, bits, 64)
+            override fun decode(values: LongArray, count: Int, bits: BitInput) = decodeXor(values, count, bits, 64)
+        },
+        FLOAT(4) {
+            override fun parseAvro(data: ByteArray, position: Int, end: Int, values: LongArray, i: Int): Int =
+                parseLittleEndian(data, position, end, values, i, 4)
+            override fun writeAvro(value: Long, data: ByteArray, position: Int): Int =
+                writeLittleEndian(value, data, position, 4)
+            override fun encode(values: LongArray, count: Int, bits: BitOutput) = encodeXor(values, count, bits, 32)
+            override fun decode(values: LongArray, count: Int, bits: BitInput) = decodeXor(values, count, bits, 32)
+        },
+        /** Int or long field, which Avro encodes as a zig-zag variable-length integer. */
+        INTEGER(10) {
+            override fun parseAvro(data: ByteArray, position: Int, end: Int, values: LongArray, i: Int): Int {
+                var encoded = 0L
+                var p = position
+                var b: Int
+                do {
+                    if (p >= end || p - position >= 10) return -1
+                    b = data[p].toInt()
+                    encoded = encoded or ((b and 0x7F).toLong() shl (7 * (p - position)))
+                    p++
+                } while (b and 0x80 != 0)
+                // only the shortest encoding is written back the same way
+                if (varLongSize(encoded) != p - position) return -1
+                values[i] = (encoded ushr 1) xor -(encoded and 1L)
+                return p
+            }
+
+            override fun writeAvro(value: Long, data: ByteArray, position: Int): Int {
+                var encoded = (value shl 1) xor (value shr 63)
+                var p = position
+                while (encoded and 0x7FL.inv() != 0L) {
+                    data[p++] = ((encoded and 0x7FL) or 0x80L).toByte()
+                    encoded = encoded ushr 7
+                }
+                data[p++] = encoded.toByte()
+                return p
+            }
+
+            override fun encode(values: LongArray, count: Int, bits: BitOutput) = encodeDeltaOfDelta(values, count, bits)
+            override fun decode(values: LongArray, count: Int, bits: BitInput) = decodeDeltaOfDelta(values, count, bits)
+        };
+
+        /**
+         * Parse the Avro encoding of a field at [position] in [data] into value [i] of [values].
+         * @return the position after the field, or -1 if it cannot be parsed.
+         */
+        abstract fun parseAvro(data: ByteArray, position: Int, end: Int, values: LongArray, i: Int): Int
+
+        /**
+         * Write the Avro encoding of [value] at [position] in [data].
+         * @return the position after the field.
+         */
+        abstract fun writeAvro(value: Long, data: ByteArray, position: Int): Int
+
+        /** Encode the first [count] [values]. */
+        abstract fun encode(values: LongArray, count: Int, bits: BitOutput)
+
+        /** Decode [count] values into [values]. */
+        @Throws(IOException::class)
+        abstract fun decode(values: LongArray, count: Int, bits: BitInput)
+    }
+
+    /** Output of single bits, most significant bit first. */
+    private class BitOutput {
+        private val bytes = ByteArrayOutputStream()
+        /** Bits that do not yet fill a byte. */
+        private var current: Int = 0
+        /** Number of bits in [current]. */
+        private var numBits: Int = 0
+
+        /** Write the lowest [n] bits of [value]. */
+        fun write(value: Long, n: Int) {
+            var remaining = n
+            while (remaining > 0) {
+                val chunk = remaining.coerceAtMost(8 - numBits)
+                val chunkBits = (value ushr (remaining - chunk)).toInt() and ((1 shl chunk) - 1)
+                current = (current shl chunk) or chunkBits
+                numBits += chunk
+                remaining -= chunk
+                if (numBits == 8) {
+                    bytes.write(current)
+                    current = 0
+                    numBits = 0
+                }
+            }
+        }
+
+        fun writeBit(bit: Boolean) = write(if (bit) 1L else 0L, 1)
+
+        /** Write all bits to [output], padding the last byte with zeros. */
+        fun writeTo(output: OutputStream) {
+            if (numBits > 0) {
+                bytes.write(current shl (8 - numBits))
+                current = 0
+                numBits = 0
+            }
+            bytes.writeTo(output)
+        }
+
+        fun reset() {
+            bytes.reset()
+            current = 0
+            numBits = 0
+        }
+    }
+
+    /** Input of single bits from [data], starting at [offset] and ending before [limit]. */
+    private class BitInput(
+        private val data: ByteArray,
+        offset: Int,
+        private val limit: Int,
+    ) {
+        private var position: Int = offset
+        /** Number of bits read from the byte at [position]. */
+        private var numBits: Int = 0
+
+        /** Read [n] bits. */
+        @Throws(IOException::class)
+        fun read(n: Int): Long {
+            var result = 0L
+            var remaining = n
+            while (remaining > 0) {
+                requireIO(position < limit) { "Columnar batch is truncated" }
+                val available = 8 - numBits
+                val chunk = remaining.coerceAtMost(available)
+                val chunkBits = ((data[position].toInt() and 0xFF) ushr (available - chunk)) and ((1 shl chunk) - 1)
+                result = (result shl chunk) or chunkBits.toLong()
+                numBits += chunk
+                remaining -= chunk
+                if (numBits == 8) {
+                    position++
+                    numBits = 0
+                }
+            }
+            return result
+        }
+
+        @Throws(IOException::class)
+        fun readBit(): Boolean = read(1) != 0L
+    }
+
+    companion object {
+        private const val PLAIN_ENCODING = 0
+        private const val COLUMNAR_ENCODING = 1
+        private const val INITIAL_CAPACITY = 64
+        /** Number of bits to store the number of leading zeros of an XOR value with. */
+        private const val LEADING_ZEROS_BITS = 5
+        private const val MAXIMUM_LEADING_ZEROS = (1 shl LEADING_ZEROS_BITS) - 1
+        /** Number of bits to store the number of significant bits of a value with. */
+        private const val SIGNIFICANT_BITS = 6
+
+        /** Double fields that are encoded as [Column.TIME]. */
+        private val TIME_FIELDS = setOf("time", "timeReceived")
+
+        /**
+         * Create a codec for values of [schema], or null if the schema has fields that are not
+         * numeric.
+         */
+        fun create(schema: Schema): ColumnarBatchCodec? {
+            if (schema.type != Schema.Type.RECORD || schema.fields.isEmpty()) return null
+            val columns = schema.fields.map { field ->
+                when (field.schema().type) {
+                    Schema.Type.DOUBLE -> if (field.name() in TIME_FIELDS) Column.TIME else Column.DOUBLE
+                    Schema.Type.FLOAT -> Column.FLOAT
+                    Schema.Type.INT, Schema.Type.LONG -> Column.INTEGER
+                    else -> return null
+                }
+            }
+            return ColumnarBatchCodec(columns.toTypedArray())
+        }
+
+        private fun parseLittleEndian(data: ByteArray, position: Int, end: Int, values: LongArray, i: Int, size: Int): Int {
+            if (position + size > end) return -1
+            var value = 0L
+            for (b in 0 until size) {
+                value = value or ((data[position + b].toLong() and 0xFFL) shl (8 * b))
+            }
+            values[i] = value
+            return position + size
+        }
+
+        private fun writeLittleEndian(value: Long, data: ByteArray, position: Int, size: Int): Int {
+            for (b in 0 until size) {
+                data[position + b] = (value ushr (8 * b)).toByte()
+            }
+            return position + size
+        }
+
+        /** Number of bytes of an unsigned Avro variable-length integer. */
+        private fun varLongSize(value: Long): Int {
+            val bitLength = 64 - value.countLeadingZeroBits()
+            return if (bitLength == 0) 1 else (bitLength + 6) / 7
+        }
+
+        private fun encodeDeltaOfDelta(values: LongArray, count: Int, bits: BitOutput) {
+            bits.write(values[0], 64)
+            var previousDelta = 0L
+            for (i in 1 until count) {
+                val delta = values[i] - values[i - 1]
+                writeSigned(delta - previousDelta, bits)
+                previousDelta = delta
+            }
+        }
+
+        @Throws(IOException::class)
+        private fun decodeDeltaOfDelta(values: LongArray, count: Int, bits: BitInput) {
+            values[0] = bits.read(64)
+            var delta = 0L
+            for (i in 1 until count) {
+                delta += readSigned(bits)
+                values[i] = values[i - 1] + delta
+            }
+        }
+
+        /** Write a value that is often zero or small. */
+        private fun writeSigned(value: Long, bits: BitOutput) {
+            val zigZag = (value shl 1) xor (value shr 63)
+            if (zigZag == 0L) {
+                bits.writeBit(false)
+                return
+            }
+            val significant = 64 - zigZag.countLeadingZeroBits()
+            bits.writeBit(true)
+            bits.write((significant - 1).toLong(), SIGNIFICANT_BITS)
+            bits.write(zigZag, significant)
+        }
+
+        @Throws(IOException::class)
+        private fun readSigned(bits: BitInput): Long {
+            if (!bits.readBit()) return 0L
+            val significant = bits.read(SIGNIFICANT_BITS).toInt() + 1
+            val zigZag = bits.read(significant)
+            return (zigZag ushr 1) xor -(zigZag and 1L)
+        }
+
+        /** Encode the lowest [width] bits of each value by XOR with the previous value. */
+        private fun encodeXor(values: LongArray, count: Int, bits: BitOutput, width: Int) {
+            var previous = values[0]
+            bits.write(previous, width)
+            var windowLeading = -1
+            var windowTrailing = 0
+            for (i in 1 until count) {
+                val xor = (values[i] xor previous) and widthMask(width)
+                previous = values[i]
+                if (xor == 0L) {
+                    bits.writeBit(false)
+                    continue
+                }
+                bits.writeBit(true)
+                val leading = (xor.countLeadingZeroBits() - (64 - width)).coerceAtMost(MAXIMUM_LEADING_ZEROS)
+                val trailing = xor.countTrailingZeroBits()
+                if (windowLeading >= 0 && leading >= windowLeading && trailing >= windowTrailing) {
+                    // the changed bits fall within those of the previous value
+                    bits.writeBit(false)
+                    bits.write(xor ushr windowTrailing, width - windowLeading - windowTrailing)
+                } else {
+                    val significant = width - leading - trailing
+                    bits.writeBit(true)
+                    bits.write(leading.toLong(), LEADING_ZEROS_BITS)
+                    bits.write((significant - 1).toLong(), SIGNIFICANT_BITS)
+                    bits.write(xor ushr trailing, significant)
+                    windowLeading = leading
+                    windowTrailing = trailing
+                }
+            }
+        }
+
+        @Throws(IOException::class)
+        private fun decodeXor(values: LongArray, count: Int, bits: BitInput, width: Int) {
+            values[0] = bits.read(width)
+            var windowLeading = -1
+            var windowTrailing = 0
+            for (i in 1 until count) {
+                if (!bits.readBit()) {
+                    values[i] = values[i - 1]
+                    continue
+                }
+                if (bits.readBit()) {
+                    windowLeading = bits.read(LEADING_ZEROS_BITS).toInt()
+                    val significant = bits.read(SIGNIFICANT_BITS).toInt() + 1
+                    windowTrailing = width - windowLeading - significant
+                    requireIO(windowTrailing >= 0) { "Columnar batch is corrupted" }
+                } else {
+                    requireIO(windowLeading >= 0) { "Columnar batch is corrupted" }
+                }
+                val xor = bits.read(width - windowLeading - windowTrailing) shl windowTrailing
+                values[i] = values[i - 1] xor xor
+            }
+        }
+
+        private fun widthMask(width: Int): Long = if (width == 64) -1L else (1L shl width) - 1
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarbase.android.data.serialization
+
+import java.io.ByteArrayInputStream
+
+/** Stream over a byte array that exposes its read position. */
+internal class PositionInputStream(
+    data: ByteArray,
+    offset: Int,
+    length: Int,
+) : ByteArrayInputStream(data, offset, length) {
+    val position: Int
+        get() = pos
+}
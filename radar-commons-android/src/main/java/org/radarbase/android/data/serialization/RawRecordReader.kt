@@ -0,0 +1,23 @@
+package org.radarbase.android.data.serialization
+
+import org.radarbase.android.data.RawRecordData
+import java.io.IOException
+import java.io.InputStream
+
+/**
+ * Reads stored records without decoding their values.
+ */
+interface RawRecordReader {
+    /**
+     * Read records from the start of given elements, as long as they have the same key as the
+     * first record. This method will try to read at least one record. After that, no more than
+     * [limit] records are read, and their collective serialized size is no larger than
+     * [sizeLimit].
+     *
+     * @return records, or null if there are no elements or if the first record cannot be read
+     *         without decoding it.
+     * @throws IOException if the elements cannot be read.
+     */
+    @Throws(IOException::class)
+    fun read(elements: Iterator<InputStream>, limit: Int, sizeLimit: Long): RawRecordData?
+}
@@ -3,6 +3,8 @@ package org.radarbase.android.data.serialization
 import org.radarbase.data.Record
 import org.radarbase.topic.AvroTopic
 import org.radarbase.util.BackedObjectQueue
+import org.radarbase.util.ElementQueue
+import java.io.IOException
 
 /**
  * Factory for serializer and deserializers for the data cache.
@@ -23,4 +25,19 @@ interface SerializationFactory {
      * Creates a serializer for a given topic.
      */
     fun <K: Any, V: Any> createSerializer(topic: AvroTopic<K, V>): BackedObjectQueue.Serializer<Record<K, V>>
+
+    /**
+     * Creates a reader for records of a given topic that keeps their values in Avro binary
+     * encoding, or null if records are not stored in that encoding.
+     */
+    fun <K: Any, V: Any> createRawRecordReader(topic: AvroTopic<K, V>): RawRecordReader? = null
+
+    /**
+     * Creates the queue that serialized records of a given topic are stored in as elements, using
+     * given queue file for storage. By default, each record is stored as a single element of the
+     * queue file.
+     * @throws IOException if the queue file cannot be read.
+     */
+    @Throws(IOException::class)
+    fun createRecordQueue(queueFile: ElementQueue, topic: AvroTopic<*, *>): ElementQueue = queueFile
 }
@@ -19,59 +19,134 @@ package org.radarbase.android.data.serialization
 
 import org.apache.avro.Schema
 import org.apache.avro.generic.GenericData
+import org.apache.avro.generic.IndexedRecord
 import org.apache.avro.io.BinaryDecoder
 import org.apache.avro.io.DatumReader
 import org.apache.avro.io.DecoderFactory
 import org.radarbase.data.Record
 import org.radarbase.topic.AvroTopic
 import org.radarbase.util.BackedObjectQueue
-import org.radarbase.util.IO.skipFully
-
+import org.radarbase.util.IO.readFully
 import java.io.IOException
 import java.io.InputStream
+import java.util.*
 
 /**
- * Converts records from an AvroTopic for Tape
+ * Converts records from an AvroTopic for Tape. Consecutive records with the same encoded key
+ * share a single decoded key, and values that were offered with [recycle] are reused to read new
+ * values into. Returned keys must therefore not be modified.
  */
 class TapeAvroDeserializer<K, V>(
     topic: AvroTopic<*, *>,
-    private val avroData: GenericData,
-) : BackedObjectQueue.Deserializer<Record<K, V>> {
+    avroData: GenericData,
+    private val keyValidator: AvroValidator = AvroValidator(topic.keySchema),
+    private val valueValidator: AvroValidator = AvroValidator(topic.valueSchema),
+    private val format: TapeAvroFormat = TapeAvroFormat.LEGACY,
+    keyCodec: AvroCodec = AvroCodec(topic.keySchema, avroData),
+    valueCodec: AvroCodec = AvroCodec(topic.valueSchema, avroData),
+) : BackedObjectQueue.Deserializer<Record<K, V>>, ValueRecycler {
     private val decoderFactory: DecoderFactory = DecoderFactory.get()
-    private val keyReader: DatumReader<K>
-    private val valueReader: DatumReader<V>
+    @Suppress("UNCHECKED_CAST")
+    private val keyReader: DatumReader<K> = keyCodec as DatumReader<K>
+    @Suppress("UNCHECKED_CAST")
+    private val valueReader: DatumReader<V> = valueCodec as DatumReader<V>
     private val topicName: String = topic.name
     private val keySchema: Schema = topic.keySchema
     private val valueSchema: Schema = topic.valueSchema
     private var decoder: BinaryDecoder? = null
+    private var keyDecoder: BinaryDecoder? = null
 
-    init {
-        @Suppress("UNCHECKED_CAST")
-        keyReader = avroData.createDatumReader(keySchema) as DatumReader<K>
-        @Suppress("UNCHECKED_CAST")
-        valueReader = avroData.createDatumReader(valueSchema) as DatumReader<V>
-    }
+    /** Data of the record that is being read. */
+    private var data = ByteArray(INITIAL_BUFFER_SIZE)
+    /** Encoded key of the previous record. */
+    private var keyBytes = ByteArray(0)
+    /** Decoded key of the previous record. */
+    private var key: K? = null
+    /** Whether [key] was validated. */
+    private var isKeyValid = false
+    /** Values that are no longer used, to read new values into. */
+    private val recycledValues = ArrayDeque<V>()
+
+    @Throws(IOException::class)
+    override fun deserialize(input: InputStream): Record<K, V> = read(input, validate = true)
 
     @Throws(IOException::class)
-    override fun deserialize(input: InputStream): Record<K, V> {
-        // for backwards compatibility
-        input.skipFully(8L)
+    override fun deserializeTrusted(input: InputStream): Record<K, V> = read(input, validate = false)
 
-        decoder = decoderFactory.binaryDecoder(input, decoder)
+    @Throws(IOException::class)
+    private fun read(input: InputStream, validate: Boolean): Record<K, V> {
+        val length = input.available()
+        if (data.size < length) {
+            data = ByteArray(maxOf(data.size * 2, length))
+        }
+        input.readFully(data, 0, length)
+        val keyStart = format.keyStart(data, 0, length)
 
-        val key: K
+        val recordKey: K
         val value: V
         try {
-            key = keyReader.read(null, decoder)
-            value = valueReader.read(null, decoder)
+            val keyEnd = if (hasPreviousKey(keyStart, length)) {
+                keyStart + keyBytes.size
+            } else {
+                readKey(keyStart, length)
+            }
+            @Suppress("UNCHECKED_CAST")
+            recordKey = key as K
+            decoder = decoderFactory.binaryDecoder(data, keyEnd, length - keyEnd, decoder)
+            value = valueReader.read(recycledValues.pollLast(), decoder)
         } catch (ex: RuntimeException) {
             throw IOException("Failed to deserialize object", ex)
         }
 
-        require(avroData.validate(keySchema, key)
-                && avroData.validate(valueSchema, value)) {
-            "Failed to validate given record in topic $topicName\n\tkey: $key\n\tvalue: $value"
+        if (validate) {
+            if (!isKeyValid) {
+                isKeyValid = keyValidator.validate(recordKey)
+            }
+            require(isKeyValid && valueValidator.validate(value)) {
+                "Failed to validate given record in topic $topicName\n\tkey: $recordKey\n\tvalue: $value"
+            }
+        }
+        return Record(recordKey, value)
+    }
+
+    /** Whether the record in [data] has the same encoded key as the previous record. */
+    private fun hasPreviousKey(keyStart: Int, length: Int): Boolean {
+        val keyLength = keyBytes.size
+        if (keyLength == 0 || length < keyStart + keyLength) return false
+        for (i in 0 until keyLength) {
+            if (data[keyStart + i] != keyBytes[i]) return false
+        }
+        return true
+    }
+
+    /**
+     * Decode the key of the record in [data], starting at [keyStart].
+     * @return the position in [data] where the encoded key ends.
+     */
+    private fun readKey(keyStart: Int, length: Int): Int {
+        keyBytes = ByteArray(0)
+        val keyInput = PositionInputStream(data, keyStart, length - keyStart)
+        keyDecoder = decoderFactory.directBinaryDecoder(keyInput, keyDecoder)
+        key = keyReader.read(null, keyDecoder)
+        isKeyValid = false
+        keyBytes = data.copyOfRange(keyStart, keyInput.position)
+        return keyInput.position
+    }
+
+    override fun recycle(values: Iterable<Any?>) {
+        for (value in values) {
+            if (recycledValues.size >= MAX_RECYCLED_VALUES) return
+            // only values of the exact same schema are reused by the reader
+            if (value is IndexedRecord && value.schema === valueSchema) {
+                @Suppress("UNCHECKED_CAST")
+                recycledValues += value as V
+            }
         }
-        return Record(key, value)
+    }
+
+    companion object {
+        private const val INITIAL_BUFFER_SIZE = 4096
+        /** Maximum number of values to keep for reuse, about one batch. */
+        private const val MAX_RECYCLED_VALUES = 1000
     }
 }
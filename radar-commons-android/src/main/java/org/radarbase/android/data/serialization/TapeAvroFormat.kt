@@ -0,0 +1,79 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarbase.android.data.serialization
+
+import org.radarbase.util.BatchedElementQueue
+import org.radarbase.util.IO.requireIO
+import org.radarbase.util.VarInt
+import java.io.IOException
+import java.io.OutputStream
+
+/** Layout of records that are stored in a tape cache. */
+enum class TapeAvroFormat(
+    /** File extension of caches with this format. */
+    val fileExtension: String,
+) {
+    /** Each record is stored in its own element, as an empty 8-byte header, the key and the value. */
+    LEGACY(".tape") {
+        override fun keyStart(data: ByteArray, offset: Int, length: Int): Int {
+            requireIO(length >= LEGACY_HEADER_LENGTH) { "Record is truncated" }
+            return LEGACY_HEADER_LENGTH
+        }
+
+        override fun writeKeyHeader(keyLength: Int, output: OutputStream) {
+            output.write(EMPTY_HEADER)
+        }
+    },
+
+    /**
+     * Consecutive records with the same key are stored in a single [BatchedElementQueue] batch,
+     * with the key stored once per batch. Each record is stored as the length of the key as
+     * [VarInt], the key and the value.
+     */
+    BATCHED(".tape2"),
+
+    /**
+     * Records are batched like [BATCHED]. The values of batches of records with only numeric
+     * fields are stored column by column with [ColumnarBatchCodec], which compresses regularly
+     * sampled sensor data well.
+     */
+    COLUMNAR(".tapec");
+
+    /**
+     * Start of the encoded key in a record of [length] bytes at [offset] in [data], relative to
+     * that offset.
+     * @throws IOException if the record is too short.
+     */
+    @Throws(IOException::class)
+    internal open fun keyStart(data: ByteArray, offset: Int, length: Int): Int {
+        val keyLength = VarInt.read(data, offset, offset + length)
+        val keyStart = VarInt.size(keyLength)
+        requireIO(keyStart + keyLength <= length) { "Record is truncated" }
+        return keyStart
+    }
+
+    /** Write the data that precedes an encoded key of [keyLength] bytes. */
+    @Throws(IOException::class)
+    internal open fun writeKeyHeader(keyLength: Int, output: OutputStream) {
+        VarInt.write(keyLength, output)
+    }
+
+    companion object {
+        private const val LEGACY_HEADER_LENGTH = 8
+        private val EMPTY_HEADER = ByteArray(LEGACY_HEADER_LENGTH)
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarbase.android.data.serialization
+
+import org.apache.avro.generic.GenericData
+import org.apache.avro.io.BinaryDecoder
+import org.apache.avro.io.DatumReader
+import org.apache.avro.io.DecoderFactory
+import org.radarbase.android.data.RawRecordData
+import org.radarbase.topic.AvroTopic
+import org.radarbase.util.IO.readFully
+import org.slf4j.LoggerFactory
+import java.io.IOException
+import java.io.InputStream
+
+/**
+ * Reads records that were written by [TapeAvroSerializer] without decoding their values. Only
+ * the key of the first record is decoded; the following records are compared to it by their
+ * encoded key. The values of a batch are copied into a single array, so reading a batch takes
+ * one allocation rather than an object graph per record.
+ */
+class TapeAvroRawRecordReader(
+    private val topic: AvroTopic<*, *>,
+    avroData: GenericData,
+    private val keyValidator: AvroValidator = AvroValidator(topic.keySchema),
+    private val format: TapeAvroFormat = TapeAvroFormat.LEGACY,
+) : RawRecordReader {
+    @Suppress("UNCHECKED_CAST")
+    private val keyReader: DatumReader<Any> = avroData.createDatumReader(topic.keySchema) as DatumReader<Any>
+    private val decoderFactory: DecoderFactory = DecoderFactory.get()
+    private var decoder: BinaryDecoder? = null
+
+    @Throws(IOException::class)
+    override fun read(elements: Iterator<InputStream>, limit: Int, sizeLimit: Long): RawRecordData? {
+        var data = ByteArray(INITIAL_BUFFER_SIZE)
+        var offsets = IntArray(16)
+        var count = 0
+        var dataEnd = 0
+        var key: Any? = null
+        var keyLength = 0
+        var curSize = 0L
+
+        while (count < limit && elements.hasNext()) {
+            val added = elements.next().use { input ->
+                val elementLength = input.available()
+                curSize += elementLength
+                if (curSize > sizeLimit && count > 0) return@use false
+                if (data.size < dataEnd + elementLength) {
+                    data = data.copyOf(maxOf(data.size * 2, dataEnd + elementLength))
+                }
+                input.readFully(data, dataEnd, elementLength)
+
+                val elementStart = dataEnd
+                val keyStart = try {
+                    format.keyStart(data, elementStart, elementLength)
+                } catch (ex: IOException) {
+                    if (key == null) return null else return@use false
+                }
+                if (key == null) {
+                    val (elementKey, encodedKeyLength) = decodeKey(data, keyStart, elementLength) ?: return null
+                    key = elementKey
+                    keyLength = encodedKeyLength
+                    // keep the encoded key at the start of the data, to compare other keys to
+                    System.arraycopy(data, keyStart, data, 0, keyLength)
+                    dataEnd = keyLength
+                } else if (!hasKey(data, elementStart + keyStart, elementLength - keyStart, keyLength)) {
+                    return@use false
+                }
+
+                if (offsets.size < count + 2) {
+                    offsets = offsets.copyOf(offsets.size * 2)
+                }
+                // move the value directly after the previous value
+                val valueLength = elementLength - keyStart - keyLength
+                System.arraycopy(data, elementStart + keyStart + keyLength, data, dataEnd, valueLength)
+                offsets[count] = dataEnd
+                dataEnd += valueLength
+                true
+            }
+            if (!added) break
+            count++
+        }
+
+        val recordKey = key ?: return null
+        offsets[count] = dataEnd
+        return RawRecordData(topic.name, topic.keySchema, topic.valueSchema, recordKey, data, offsets.copyOf(count + 1))
+    }
+
+    /**
+     * Decode the key of an element stored at the start of [data], with the key starting at
+     * [keyStart].
+     * @return the key and its encoded length, or null if it cannot be decoded or is not valid.
+     */
+    private fun decodeKey(data: ByteArray, keyStart: Int, elementLength: Int): Pair<Any, Int>? {
+        val input = PositionInputStream(data, keyStart, elementLength - keyStart)
+        return try {
+            val key = keyReader.read(null, decoderFactory.directBinaryDecoder(input, decoder)
+                .also { decoder = it })
+            if (keyValidator.validate(key)) {
+                Pair(key, input.position - keyStart)
+            } else null
+        } catch (ex: IOException) {
+            logger.warn("Cannot decode key of topic {}", topic.name, ex)
+            null
+        } catch (ex: RuntimeException) {
+            logger.warn("Cannot decode key of topic {}", topic.name, ex)
+            null
+        }
+    }
+
+    /**
+     * Whether the key at [keyStart] in [data], followed by its value of in total [length] bytes,
+     * is the key that is stored at the start.
+     */
+    private fun hasKey(data: ByteArray, keyStart: Int, length: Int, keyLength: Int): Boolean {
+        if (length < keyLength) return false
+        for (i in 0 until keyLength) {
+            if (data[keyStart + i] != data[i]) return false
+        }
+        return true
+    }
+
+    companion object {
+        private val logger = LoggerFactory.getLogger(TapeAvroRawRecordReader::class.java)
+
+        private const val INITIAL_BUFFER_SIZE = 4096
+    }
+}
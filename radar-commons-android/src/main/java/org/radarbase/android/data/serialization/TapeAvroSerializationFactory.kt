@@ -1,16 +1,22 @@
 package org.radarbase.android.data.serialization
 
+import org.apache.avro.Schema
 import org.apache.avro.generic.GenericData
 import org.apache.avro.specific.SpecificData
 import org.radarbase.data.Record
 import org.radarbase.topic.AvroTopic
 import org.radarbase.util.BackedObjectQueue
+import org.radarbase.util.BatchedElementQueue
+import org.radarbase.util.ElementQueue
 
 /**
  * Serialization for binary Avro records to a tape.
+ * @param format layout of records in the tape.
  */
-class TapeAvroSerializationFactory: SerializationFactory {
-    override val fileExtension: String = ".tape"
+class TapeAvroSerializationFactory @JvmOverloads constructor(
+    private val format: TapeAvroFormat = TapeAvroFormat.LEGACY,
+): SerializationFactory {
+    override val fileExtension: String = format.fileExtension
 
     // The receiving end may have problems with non-numeric representations of floats, so they are not allowed.
     private val genericData: GenericData = object : GenericData(TapeAvroSerializationFactory::class.java.classLoader) {
@@ -24,13 +30,41 @@ class TapeAvroSerializationFactory: SerializationFactory {
         override fun isDouble(datum: Any?): Boolean = datum is Double && datum.isFinite()
     }
 
+    // Validators and codecs are shared between topics, since most topics have the same key schema.
+    private val validators = HashMap<Schema, AvroValidator>()
+    private val genericCodecs = HashMap<Schema, AvroCodec>()
+    private val specificCodecs = HashMap<Schema, AvroCodec>()
+
     override fun <K: Any, V: Any> createDeserializer(
             topic: AvroTopic<K, V>
-    ): BackedObjectQueue.Deserializer<Record<K, V>> = TapeAvroDeserializer(topic, genericData)
+    ): BackedObjectQueue.Deserializer<Record<K, V>> = TapeAvroDeserializer(
+            topic, genericData, validator(topic.keySchema), validator(topic.valueSchema), format,
+            codec(genericCodecs, topic.keySchema, genericData), codec(genericCodecs, topic.valueSchema, genericData))
 
     override fun <K : Any, V : Any> createSerializer(
             topic: AvroTopic<K, V>
-    ) = TapeAvroSerializer(topic, specificData)
+    ) = TapeAvroSerializer(topic, specificData, validator(topic.keySchema), validator(topic.valueSchema), format,
+            codec(specificCodecs, topic.keySchema, specificData), codec(specificCodecs, topic.valueSchema, specificData))
+
+    override fun <K : Any, V : Any> createRawRecordReader(
+            topic: AvroTopic<K, V>
+    ): RawRecordReader = TapeAvroRawRecordReader(topic, genericData, validator(topic.keySchema), format)
+
+    override fun createRecordQueue(queueFile: ElementQueue, topic: AvroTopic<*, *>): ElementQueue = when (format) {
+        TapeAvroFormat.LEGACY -> queueFile
+        TapeAvroFormat.BATCHED -> BatchedElementQueue(queueFile)
+        TapeAvroFormat.COLUMNAR -> BatchedElementQueue(queueFile, codec = ColumnarBatchCodec.create(topic.valueSchema))
+    }
+
+    /** Validator of [schema], compiled once per schema. */
+    private fun validator(schema: Schema): AvroValidator = synchronized(validators) {
+        validators.getOrPut(schema) { AvroValidator(schema) }
+    }
+
+    /** Codec of [schema] with [avroData], compiled once per schema and data model. */
+    private fun codec(codecs: MutableMap<Schema, AvroCodec>, schema: Schema, avroData: GenericData): AvroCodec = synchronized(codecs) {
+        codecs.getOrPut(schema) { AvroCodec(schema, avroData) }
+    }
 
-    override fun toString() = "TapeAvroSerialization"
+    override fun toString() = "TapeAvroSerialization<$format>"
 }
@@ -32,31 +32,40 @@ import java.io.OutputStream
  * Converts records from an AvroTopic for Tape
  */
 class TapeAvroSerializer<K: Any, V: Any>(
-        private val topic: AvroTopic<K, V>,
-        private val avroData: GenericData
+        topic: AvroTopic<K, V>,
+        avroData: GenericData,
+        private val keyValidator: AvroValidator = AvroValidator(topic.keySchema),
+        private val valueValidator: AvroValidator = AvroValidator(topic.valueSchema),
+        private val format: TapeAvroFormat = TapeAvroFormat.LEGACY,
+        keyCodec: AvroCodec = AvroCodec(topic.keySchema, avroData),
+        valueCodec: AvroCodec = AvroCodec(topic.valueSchema, avroData),
 ) : BackedObjectQueue.Serializer<Record<K, V>> {
 
     private val encoderFactory: EncoderFactory = EncoderFactory.get()
     @Suppress("UNCHECKED_CAST")
-    private val keyWriter: DatumWriter<K> = avroData.createDatumWriter(topic.keySchema) as DatumWriter<K>
+    private val keyWriter: DatumWriter<K> = keyCodec as DatumWriter<K>
     @Suppress("UNCHECKED_CAST")
-    private val valueWriter: DatumWriter<V> = avroData.createDatumWriter(topic.valueSchema) as DatumWriter<V>
+    private val valueWriter: DatumWriter<V> = valueCodec as DatumWriter<V>
     private var encoder: BinaryEncoder? = null
     private val cachedKey = ChangeApplier(::serializeKey)
 
     @Throws(IOException::class)
     override fun serialize(value: Record<K, V>, output: OutputStream) {
-        // for backwards compatibility
-        output.write(EMPTY_HEADER, 0, 8)
         output.write(cachedKey.applyIfChanged(value.key))
         valueWriter.writeBinary(value.value, output)
     }
 
+    /** Serialize the key, preceded by the key header of [format]. */
     private fun serializeKey(key: K): ByteArray {
-        return ByteArrayOutputStream().use { buffer ->
+        val encodedKey = ByteArrayOutputStream().use { buffer ->
             keyWriter.writeBinary(key, buffer)
             buffer.toByteArray()
         }
+        return ByteArrayOutputStream().use { buffer ->
+            format.writeKeyHeader(encodedKey.size, buffer)
+            buffer.write(encodedKey)
+            buffer.toByteArray()
+        }
     }
 
     /** Write value to outputstream using a binary encoder. */
@@ -69,12 +78,7 @@ class TapeAvroSerializer<K: Any, V: Any>(
                 }
     }
 
-    companion object {
-        private val EMPTY_HEADER = byteArrayOf(0, 0, 0, 0, 0, 0, 0, 0)
-    }
-
     override fun canSerialize(
             value: Record<K, V>
-    ) = avroData.validate(topic.keySchema, value.key)
-                && avroData.validate(topic.valueSchema, value.value)
+    ) = keyValidator.validate(value.key) && valueValidator.validate(value.value)
 }
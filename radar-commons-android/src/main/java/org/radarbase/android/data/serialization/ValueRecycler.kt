@@ -0,0 +1,29 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarbase.android.data.serialization
+
+/**
+ * Deserializer that can read new record values into values that are no longer used, instead of
+ * allocating new ones.
+ */
+interface ValueRecycler {
+    /**
+     * Offer [values] that are no longer used by anyone, so that later records can be read into
+     * them. Values that cannot be reused are ignored. The values must not be used after this call.
+     */
+    fun recycle(values: Iterable<Any?>)
+}
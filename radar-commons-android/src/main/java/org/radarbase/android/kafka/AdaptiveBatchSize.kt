@@ -0,0 +1,78 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarbase.android.kafka
+
+/**
+ * Controls the number of records and bytes to upload per request for each topic. With
+ * [SubmitterConfiguration.adaptiveBatchSize], the limits start at the configured
+ * [SubmitterConfiguration.amountLimit] and [SubmitterConfiguration.sizeLimit], which are also
+ * their maximum. They are tuned with additive increase and multiplicative decrease: a request
+ * that finishes within [SubmitterConfiguration.uploadTargetLatency] increases the limits of its
+ * topic by a fixed step, and a slower or failed request halves them. Otherwise, the configured
+ * limits are used as they are. This class is thread-safe.
+ */
+class AdaptiveBatchSize {
+    /** Fraction of the configured limits to use, per topic. */
+    private val fractions: MutableMap<String, Double> = HashMap()
+
+    /** Limits to use for the next request of [topicName]. */
+    @Synchronized
+    fun limits(topicName: String, config: SubmitterConfiguration): Limits {
+        val fraction = if (config.adaptiveBatchSize) fractions[topicName] ?: 1.0 else 1.0
+        return Limits(
+            amount = (config.amountLimit * fraction).toInt().coerceIn(1, config.amountLimit.coerceAtLeast(1)),
+            size = (config.sizeLimit * fraction).toLong().coerceAtLeast(1L),
+        )
+    }
+
+    /** Update the limits of [topicName] after a request that succeeded in [latency] milliseconds. */
+    @Synchronized
+    fun onSuccess(topicName: String, latency: Long, config: SubmitterConfiguration) {
+        if (!config.adaptiveBatchSize) return
+        val fraction = fractions[topicName] ?: 1.0
+        fractions[topicName] = if (latency > config.uploadTargetLatency) {
+            decrease(fraction)
+        } else {
+            (fraction + INCREASE_STEP).coerceAtMost(1.0)
+        }
+    }
+
+    /** Update the limits of [topicName] after a request that failed. */
+    @Synchronized
+    fun onFailure(topicName: String, config: SubmitterConfiguration) {
+        if (!config.adaptiveBatchSize) return
+        fractions[topicName] = decrease(fractions[topicName] ?: 1.0)
+    }
+
+    private fun decrease(fraction: Double) = (fraction * DECREASE_FACTOR).coerceAtLeast(MINIMUM_FRACTION)
+
+    /**
+     * Limits of a single request.
+     * @param amount maximum number of records.
+     * @param size maximum size of the records in bytes.
+     */
+    data class Limits(val amount: Int, val size: Long)
+
+    companion object {
+        /** Fraction of the configured limits that is added after a fast request. */
+        private const val INCREASE_STEP = 0.1
+        /** Factor to multiply the limits with after a slow or failed request. */
+        private const val DECREASE_FACTOR = 0.5
+        /** Smallest fraction of the configured limits to use. */
+        private const val MINIMUM_FRACTION = 1.0 / 64
+    }
+}
@@ -20,11 +20,14 @@ import android.os.Process
 import org.apache.avro.Schema
 import org.apache.avro.SchemaValidationException
 import org.apache.avro.generic.IndexedRecord
+import org.radarbase.android.data.BacklogListener
+import org.radarbase.android.data.DataCache
 import org.radarbase.android.data.DataCacheGroup
 import org.radarbase.android.data.DataHandler
 import org.radarbase.android.data.ReadableDataCache
 import org.radarbase.android.util.SafeHandler
 import org.radarbase.data.AvroRecordData
+import org.radarbase.data.RecordData
 import org.radarbase.producer.AuthenticationException
 import org.radarbase.producer.KafkaSender
 import org.radarbase.producer.KafkaTopicSender
@@ -33,7 +36,14 @@ import org.slf4j.LoggerFactory
 import java.io.Closeable
 import java.io.IOException
 import java.util.*
+import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
 import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
 
 /**
  * Separate thread to read from the database and send it to the Kafka server. It cleans the
@@ -45,12 +55,14 @@ class KafkaDataSubmitter(
     private val dataHandler: DataHandler<*, *>,
     private val sender: KafkaSender,
     config: SubmitterConfiguration,
+    rawSender: RawRecordSender? = null,
 ) : Closeable {
 
     private val submitHandler = SafeHandler.getInstance("KafkaDataSubmitter", Process.THREAD_PRIORITY_BACKGROUND)
     private val topicSenders: MutableMap<String, KafkaTopicSender<Any, Any>> = HashMap()
     private val connection: KafkaConnectionChecker
 
+    @Volatile
     var config: SubmitterConfiguration = config
         set(newValue) {
             this.submitHandler.execute {
@@ -62,8 +74,76 @@ class KafkaDataSubmitter(
             }
         }
 
+    /**
+     * Sender for records in their stored encoding. If null, all records are decoded and sent
+     * with [sender].
+     */
+    @Volatile
+    var rawSender: RawRecordSender? = rawSender
+        set(value) {
+            submitHandler.execute {
+                field = value
+                rawIncompatibleTopics.clear()
+            }
+        }
+
+    /** Topics that cannot be sent with [rawSender]. */
+    private val rawIncompatibleTopics: MutableSet<String> = Collections.newSetFromMap(ConcurrentHashMap())
+
+    /** Threads to upload topics on, if multiple topics are uploaded at the same time. */
+    private var uploadExecutor: ExecutorService? = null
+    /** Number of threads of [uploadExecutor]. */
+    private var uploadExecutorSize: Int = 0
+    /** Thread to read the next batch of a topic on while the previous batch is sent. */
+    private val prefetchExecutor: ExecutorService = Executors.newSingleThreadExecutor { runnable ->
+        Thread({
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND)
+            runnable.run()
+        }, "KafkaDataSubmitter-prefetch")
+    }
+    /**
+     * Batches that are read after the batch that is being sent, per cache. Records before them
+     * have not necessarily been removed from the cache yet.
+     */
+    private val prefetchedBatches: MutableMap<ReadableDataCache, PrefetchedBatch> = ConcurrentHashMap()
+    /** Number of records and bytes to upload per request. */
+    private val batchSizes = AdaptiveBatchSize()
+    /** Order and share of topics in an upload round. */
+    private val scheduler = UploadScheduler()
+    /** Number of records that were uploaded in the current upload round. */
+    private val recordsUploaded = AtomicLong()
+
+    /**
+     * Duration in milliseconds since which topics have had records left after an upload, per
+     * topic. Topics that were fully uploaded are not included.
+     */
+    val backlogAges: Map<String, Long>
+        get() = scheduler.backlogAges()
+
+    /** Number of records per second that were uploaded in the last upload round. */
+    @Volatile
+    var uploadThroughput: Double = 0.0
+        private set
+
+    /** Topics that have more than a full batch of records to upload. */
+    private val fullTopics: MutableSet<String> = Collections.newSetFromMap(ConcurrentHashMap())
+    /** Whether uploading [fullTopics] was scheduled. */
+    private val isFullUploadScheduled = AtomicBoolean(false)
+    /** Listener to caches that have more than a full batch of records. */
+    private val backlogListener = BacklogListener { cache, _ ->
+        fullTopics += cache.topic.name
+        if (isFullUploadScheduled.compareAndSet(false, true)) {
+            submitHandler.execute {
+                isFullUploadScheduled.set(false)
+                uploadFullCaches()
+            }
+        }
+    }
+
+    /** Caches that [backlogListener] was set on, only used from the submit thread. */
+    private val watchedCaches: MutableSet<DataCache<*, *>> = HashSet()
+
     private var uploadFuture: SafeHandler.HandlerFuture? = null
-    private var uploadIfNeededFuture: SafeHandler.HandlerFuture? = null
     /** Upload rate in milliseconds.  */
 
     init {
@@ -77,7 +157,6 @@ class KafkaDataSubmitter(
 
         submitHandler.execute {
             uploadFuture = null
-            uploadIfNeededFuture = null
 
             try {
                 if (sender.isConnected) {
@@ -102,23 +181,34 @@ class KafkaDataSubmitter(
     private fun schedule() {
         val uploadRate = config.uploadRate * config.uploadRateMultiplier * 1000L
         uploadFuture?.cancel()
-        uploadIfNeededFuture?.cancel()
+
+        watchActiveCaches()
 
         // Get upload frequency from system property
         uploadFuture = this.submitHandler.repeat(uploadRate) {
+            // caches may have been added or activated since the last upload
+            watchActiveCaches()
             val topicsToSend = dataHandler.activeCaches.mapTo(HashSet()) { it.topicName }
             while (connection.isConnected && topicsToSend.isNotEmpty()) {
                 logger.debug("Uploading topics {}", topicsToSend)
                 uploadCaches(topicsToSend)
             }
         }
+    }
 
-        uploadIfNeededFuture = this.submitHandler.repeat(uploadRate / 5) {
-            var sendAgain = true
-            while (connection.isConnected && sendAgain) {
-                logger.debug("Uploading full topics")
-                sendAgain = uploadCachesIfNeeded()
-            }
+    /**
+     * Start uploading caches as soon as they have more than a full batch of records, including
+     * caches that were registered after this submitter was started.
+     */
+    fun watchCaches() {
+        submitHandler.execute { watchActiveCaches() }
+    }
+
+    private fun watchActiveCaches() {
+        val threshold = config.amountLimit.toLong()
+        dataHandler.activeCaches.forEach {
+            it.activeDataCache.setBacklogListener(threshold, backlogListener)
+            watchedCaches += it.activeDataCache
         }
     }
 
@@ -136,6 +226,12 @@ class KafkaDataSubmitter(
                 }
             }
             topicSenders.clear()
+            watchedCaches.forEach { it.setBacklogListener(0L, null) }
+            watchedCaches.clear()
+            uploadExecutor?.shutdown()
+            uploadExecutor = null
+            prefetchExecutor.shutdownNow()
+            prefetchedBatches.clear()
 
             try {
                 sender.close()
@@ -149,7 +245,9 @@ class KafkaDataSubmitter(
     @Throws(IOException::class, SchemaValidationException::class)
     private fun sender(
         topic: AvroTopic<Any, Any>,
-    ): KafkaTopicSender<Any, Any> = topicSenders.computeIfAbsentKt(topic.name) { sender.sender(topic) }
+    ): KafkaTopicSender<Any, Any> = synchronized(topicSenders) {
+        topicSenders.computeIfAbsentKt(topic.name) { sender.sender(topic) }
+    }
 
     private fun <K: Any, V: Any> MutableMap<K, V>.computeIfAbsentKt(
         key: K,
@@ -165,33 +263,50 @@ class KafkaDataSubmitter(
     }
 
     /**
-     * Upload the caches if they would cause the buffer to overflow
+     * Upload the caches of [fullTopics] until they no longer have a full batch of records. If the
+     * connection is lost, the remaining records are uploaded by the regular upload, and the
+     * caches that still have a full batch notify again when records are next added to them.
      */
-    private fun uploadCachesIfNeeded(): Boolean {
-        var sendAgain = false
+    private fun uploadFullCaches() {
+        val topicsToSend = HashSet(fullTopics)
+        fullTopics -= topicsToSend
+        val threshold = config.amountLimit.toLong()
 
         try {
             val uploadingNotified = AtomicBoolean(false)
 
-            for (entry in dataHandler.activeCaches) {
-                val unsent = entry.activeDataCache.numberOfRecords
-                if (unsent > config.amountLimit) {
-                    val sent = uploadCache(entry.activeDataCache, uploadingNotified)
-                    if (unsent - sent > config.amountLimit) {
-                        sendAgain = true
-                    }
-                }
+            while (connection.isConnected && topicsToSend.isNotEmpty()) {
+                logger.debug("Uploading full topics {}", topicsToSend)
+                val fullCaches = dataHandler.activeCaches
+                    .filter { it.topicName in topicsToSend }
+                    .associateBy({ it.topicName }, { it.activeDataCache })
+                topicsToSend.retainAll(uploadTopics(schedule(fullCaches.keys)) { (topicName, limits) ->
+                    val cache = fullCaches.getValue(topicName)
+                    val sent = uploadCache(cache, limits, uploadingNotified)
+                    // limits may be a weighted share of a batch, so compare with a full batch
+                    val hasMore = sent > 0 && cache.numberOfRecords > threshold
+                    scheduler.onUploaded(topicName, hasMore)
+                    topicName.takeIf { hasMore }
+                }.filterNotNull())
             }
+
             if (uploadingNotified.get()) {
                 dataHandler.updateServerStatus(ServerStatusListener.Status.CONNECTED)
                 connection.didConnect()
             }
         } catch (ex: Exception) {
             connection.didDisconnect(ex)
-            sendAgain = false
+        } finally {
+            rearmBacklogListeners(topicsToSend)
         }
+    }
 
-        return sendAgain
+    /** Notify of the backlog of [topicNames] again, once records are added to them. */
+    private fun rearmBacklogListeners(topicNames: Set<String>) {
+        if (topicNames.isEmpty()) return
+        dataHandler.activeCaches
+            .filter { it.topicName in topicNames }
+            .forEach { it.activeDataCache.rearmBacklogListener() }
     }
 
     /**
@@ -200,20 +315,22 @@ class KafkaDataSubmitter(
     private fun uploadCaches(toSend: MutableSet<String>) {
         try {
             val uploadingNotified = AtomicBoolean(false)
-            toSend -= dataHandler.activeCaches
-                    .filter { group ->
-                        if (group.topicName in toSend) {
-                            val sentActive = uploadCache(group.activeDataCache, uploadingNotified)
-                            val sentDeprecated = group.deprecatedCaches.map { uploadCache(it, uploadingNotified) }
-
-                            if (sentDeprecated.any { it == 0 }) {
-                                group.deleteEmptyCaches()
-                            }
-                            sentActive < config.amountLimit
-                                    && sentDeprecated.all { it < config.amountLimit }
-                        } else false
-                    }
-                    .map(DataCacheGroup<*,*>::topicName)
+            val groups = dataHandler.activeCaches
+                .filter { it.topicName in toSend }
+                .associateBy { it.topicName }
+            toSend -= uploadTopics(schedule(groups.keys)) { (topicName, limits) ->
+                val group = groups.getValue(topicName)
+                val sentActive = uploadCache(group.activeDataCache, limits, uploadingNotified)
+                val sentDeprecated = group.deprecatedCaches.map { uploadCache(it, limits, uploadingNotified) }
+
+                if (sentDeprecated.any { it == 0 }) {
+                    group.deleteEmptyCaches()
+                }
+                val isDrained = sentActive < limits.amount
+                        && sentDeprecated.all { it < limits.amount }
+                scheduler.onUploaded(topicName, !isDrained)
+                topicName.takeIf { isDrained }
+            }.filterNotNull()
 
             if (uploadingNotified.get()) {
                 dataHandler.updateServerStatus(ServerStatusListener.Status.CONNECTED)
@@ -221,16 +338,103 @@ class KafkaDataSubmitter(
             }
         } catch (ex: Exception) {
             connection.didDisconnect(ex)
+            rearmBacklogListeners(toSend)
         }
     }
 
+    /** Order [topicNames] for an upload round, with the limits of their next request. */
+    private fun schedule(
+        topicNames: Collection<String>,
+    ): List<Pair<String, AdaptiveBatchSize.Limits>> = scheduler.schedule(topicNames, config) { topicName ->
+        batchSizes.limits(topicName, config)
+    }
+
     /**
-     * Upload some data from a single table.
+     * Run [upload] for each of [topics], on up to [SubmitterConfiguration.uploadConcurrency]
+     * threads at the same time. Each element of [topics] must concern a different topic, so that
+     * each topic is uploaded by a single thread. This returns once all uploads have finished.
+     * @return the results of [upload], in the order of [topics].
+     * @throws Exception the first exception that an upload threw.
+     */
+    @Throws(Exception::class)
+    private fun <T, R> uploadTopics(topics: List<T>, upload: (T) -> R): List<R> {
+        val startTime = System.nanoTime()
+        try {
+            if (config.uploadConcurrency <= 1 || topics.size <= 1) {
+                return topics.map(upload)
+            }
+
+            val executor = uploadExecutor()
+            val futures = topics.map { topic -> executor.submit(Callable { upload(topic) }) }
+            val results = ArrayList<R>(futures.size)
+            var failure: Exception? = null
+            try {
+                for (future in futures) {
+                    try {
+                        results += future.get()
+                    } catch (ex: ExecutionException) {
+                        failure = failure ?: ex.cause as? Exception ?: ex
+                    }
+                }
+            } catch (ex: InterruptedException) {
+                futures.forEach { it.cancel(true) }
+                throw ex
+            }
+            failure?.let { throw it }
+            return results
+        } finally {
+            updateThroughput(startTime, topics.size)
+        }
+    }
+
+    /** Executor with [SubmitterConfiguration.uploadConcurrency] threads. */
+    private fun uploadExecutor(): ExecutorService {
+        val size = config.uploadConcurrency
+        uploadExecutor?.let { executor ->
+            if (uploadExecutorSize == size) return executor
+            executor.shutdown()
+        }
+        return Executors.newFixedThreadPool(size) { runnable ->
+            Thread({
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND)
+                runnable.run()
+            }, "KafkaDataSubmitter-upload")
+        }.also {
+            uploadExecutor = it
+            uploadExecutorSize = size
+        }
+    }
+
+    /** Update [uploadThroughput] after an upload round of [numTopics] that started at [startTime]. */
+    private fun updateThroughput(startTime: Long, numTopics: Int) {
+        val numRecords = recordsUploaded.getAndSet(0L)
+        if (numRecords == 0L) return
+        val duration = (System.nanoTime() - startTime).coerceAtLeast(1L)
+        uploadThroughput = numRecords * 1_000_000_000.0 / duration
+        logger.info("Uploaded {} records of {} topics in {} ms ({} records/s)",
+            numRecords, numTopics, duration / 1_000_000L, uploadThroughput.toLong())
+    }
+
+    /**
+     * Upload some data from a single table, within given [limits].
      * @return number of records sent.
      */
     @Throws(IOException::class, SchemaValidationException::class)
-    private fun uploadCache(cache: ReadableDataCache, uploadingNotified: AtomicBoolean): Int {
-        val data = cache.getUnsentRecords(config.amountLimit, config.sizeLimit)
+    private fun uploadCache(
+        cache: ReadableDataCache,
+        limits: AdaptiveBatchSize.Limits,
+        uploadingNotified: AtomicBoolean,
+    ): Int {
+        val currentRawSender = rawSender
+        if (currentRawSender != null && cache.readTopic.name !in rawIncompatibleTopics) {
+            // raw records are read from the head of the cache, so prefetched records are no longer valid
+            discardPrefetched(cache)
+            uploadRawCache(cache, currentRawSender, limits, uploadingNotified)
+                ?.let { return it }
+        }
+
+        val prefetch = config.uploadPrefetch && cache.canReadAhead
+        val data = (if (prefetch) nextBatch(cache, limits) else cache.getUnsentRecords(limits.amount, limits.size))
             ?: return 0
 
         val size = data.size()
@@ -238,38 +442,111 @@ class KafkaDataSubmitter(
             return 0
         }
 
-        val recordsNotNull = data.filterNotNull()
-
-        if (recordsNotNull.isNotEmpty()) {
-            val topic = cache.readTopic
+        if (prefetch && size >= limits.amount) {
+            // more records are likely waiting, read them while these are sent
+            prefetchedBatches[cache] = PrefetchedBatch(prefetchExecutor.submit(Callable {
+                cache.getNextUnsentRecords(limits.amount, limits.size)
+            }), limits)
+        }
 
-            val keyUserId = if (topic.keySchema.type == Schema.Type.RECORD) {
-                topic.keySchema.getField("userId")?.let { userIdField ->
-                    (data.key as IndexedRecord).get(userIdField.pos()).toString()
+        try {
+            val recordsNotNull = data.filterNotNull()
+
+            if (recordsNotNull.isNotEmpty()) {
+                val topic = cache.readTopic
+
+                if (isOwnKey(topic.keySchema, data.key)) {
+                    sendRecords(topic.name, size, uploadingNotified) {
+                        sender(topic).run {
+                            send(AvroRecordData<Any, Any>(data.topic, data.key, recordsNotNull))
+                            flush()
+                        }
+                        true
+                    }
                 }
-            } else null
+            }
 
-            if (keyUserId == null || keyUserId == config.userId!!) {
-                if (uploadingNotified.compareAndSet(false, true)) {
-                    dataHandler.updateServerStatus(ServerStatusListener.Status.UPLOADING)
-                }
+            cache.remove(size)
+        } catch (ex: Exception) {
+            if (prefetch) discardPrefetched(cache)
+            throw ex
+        }
+        cache.recycle(data)
 
-                try {
-                    sender(topic).run {
-                        send(AvroRecordData<Any, Any>(data.topic, data.key, recordsNotNull))
-                        flush()
-                    }
-                    dataHandler.updateRecordsSent(topic.name, size.toLong())
-                } catch (ex: AuthenticationException) {
-                    dataHandler.updateRecordsSent(topic.name, -1)
-                    throw ex
-                } catch (e: Exception) {
-                    dataHandler.updateServerStatus(ServerStatusListener.Status.UPLOADING_FAILED)
-                    dataHandler.updateRecordsSent(topic.name, -1)
-                    throw e
-                }
+        return size
+    }
+
+    /**
+     * Next batch of records to send from [cache]. This is the batch that was prefetched while the
+     * previous batch was sent, or else the batch at the head of the cache. A prefetched batch that
+     * was read with larger limits than [limits] is discarded, so that reduced limits apply
+     * immediately.
+     */
+    @Throws(IOException::class)
+    private fun nextBatch(
+        cache: ReadableDataCache,
+        limits: AdaptiveBatchSize.Limits,
+    ): RecordData<Any, Any?>? {
+        val prefetched = prefetchedBatches[cache]
+            ?.takeIf { it.limits.amount <= limits.amount && it.limits.size <= limits.size }
+        if (prefetched == null) {
+            discardPrefetched(cache)
+            cache.resetUnsentRecords()
+            return cache.getNextUnsentRecords(limits.amount, limits.size)
+        }
+        prefetchedBatches.remove(cache)
+        return try {
+            prefetched.records.get()
+        } catch (ex: ExecutionException) {
+            cache.resetUnsentRecords()
+            throw ex.cause as? IOException ?: IOException("Failed to read records", ex.cause)
+        }
+    }
 
-                logger.debug("uploaded {} {} records", size, topic.name)
+    /**
+     * Discard the batch that was prefetched from [cache], so that the next batch is read from the
+     * head of the cache again.
+     */
+    private fun discardPrefetched(cache: ReadableDataCache) {
+        val prefetched = prefetchedBatches.remove(cache) ?: return
+        try {
+            // wait for the read to finish, so it does not move the cache read position afterwards
+            prefetched.records.get()?.let { cache.recycle(it) }
+        } catch (ex: ExecutionException) {
+            logger.debug("Discarded failed prefetch of topic {}", cache.readTopic.name, ex.cause)
+        } catch (ex: InterruptedException) {
+            Thread.currentThread().interrupt()
+        }
+        cache.resetUnsentRecords()
+    }
+
+    /**
+     * Upload some data from a single table in the encoding it was stored with.
+     * @return number of records sent, or null if the data cannot be sent in its stored
+     *         encoding.
+     */
+    @Throws(IOException::class)
+    private fun uploadRawCache(
+        cache: ReadableDataCache,
+        rawSender: RawRecordSender,
+        limits: AdaptiveBatchSize.Limits,
+        uploadingNotified: AtomicBoolean,
+    ): Int? {
+        val data = cache.getUnsentRawRecords(limits.amount, limits.size)
+            ?: return null
+
+        val size = data.size
+        if (size == 0) {
+            return 0
+        }
+
+        if (isOwnKey(data.keySchema, data.key)) {
+            val isSent = sendRecords(data.topicName, size, uploadingNotified) {
+                rawSender.send(data)
+            }
+            if (!isSent) {
+                rawIncompatibleTopics += data.topicName
+                return null
             }
         }
 
@@ -278,6 +555,61 @@ class KafkaDataSubmitter(
         return size
     }
 
+    /** Whether given key belongs to the current user, or does not identify a user. */
+    private fun isOwnKey(keySchema: Schema, key: Any): Boolean {
+        val keyUserId = if (keySchema.type == Schema.Type.RECORD) {
+            keySchema.getField("userId")?.let { userIdField ->
+                (key as IndexedRecord).get(userIdField.pos()).toString()
+            }
+        } else null
+
+        return keyUserId == null || keyUserId == config.userId!!
+    }
+
+    /**
+     * Send records of a topic and update the upload status.
+     * @param send sends the records, returning false if they could not be sent in this way.
+     * @return whether the records were sent.
+     */
+    @Throws(IOException::class)
+    private inline fun sendRecords(
+        topicName: String,
+        size: Int,
+        uploadingNotified: AtomicBoolean,
+        send: () -> Boolean,
+    ): Boolean {
+        if (uploadingNotified.compareAndSet(false, true)) {
+            dataHandler.updateServerStatus(ServerStatusListener.Status.UPLOADING)
+        }
+
+        val startTime = System.nanoTime()
+        val isSent = try {
+            send()
+        } catch (ex: AuthenticationException) {
+            dataHandler.updateRecordsSent(topicName, -1)
+            throw ex
+        } catch (e: Exception) {
+            batchSizes.onFailure(topicName, config)
+            dataHandler.updateServerStatus(ServerStatusListener.Status.UPLOADING_FAILED)
+            dataHandler.updateRecordsSent(topicName, -1)
+            throw e
+        }
+
+        if (isSent) {
+            batchSizes.onSuccess(topicName, (System.nanoTime() - startTime) / 1_000_000L, config)
+            recordsUploaded.addAndGet(size.toLong())
+            dataHandler.updateRecordsSent(topicName, size.toLong())
+            logger.debug("uploaded {} {} records", size, topicName)
+        }
+        return isSent
+    }
+
+    /** Batch that is read ahead of sending it, with the [limits] that it was read with. */
+    private class PrefetchedBatch(
+        val records: Future<RecordData<Any, Any?>?>,
+        val limits: AdaptiveBatchSize.Limits,
+    )
+
     companion object {
         private val logger = LoggerFactory.getLogger(KafkaDataSubmitter::class.java)
     }
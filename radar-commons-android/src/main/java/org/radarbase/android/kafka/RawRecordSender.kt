@@ -0,0 +1,137 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarbase.android.kafka
+
+import okhttp3.Headers
+import okhttp3.MediaType
+import okhttp3.MediaType.Companion.toMediaType
+import okhttp3.RequestBody
+import okio.BufferedSink
+import org.apache.avro.Schema
+import org.apache.avro.generic.IndexedRecord
+import org.apache.avro.io.EncoderFactory
+import org.radarbase.android.data.RawRecordData
+import org.radarbase.producer.AuthenticationException
+import org.radarbase.producer.rest.RestClient
+import org.radarbase.producer.rest.RestSender
+import org.radarbase.producer.rest.SchemaRetriever
+import org.slf4j.LoggerFactory
+import java.io.IOException
+
+/**
+ * Sends records to the Kafka REST proxy in the encoding they were stored with. The request uses
+ * the same binary record set format as a [RestSender] with binary content, but the values are
+ * written from the stored bytes straight into the request body, instead of being decoded and
+ * encoded again.
+ *
+ * @param client client for the Kafka REST proxy.
+ * @param schemaRetriever retriever of the schema versions on the server.
+ * @param headers additional request headers, for example for authorization.
+ */
+class RawRecordSender(
+    private val client: RestClient,
+    private val schemaRetriever: SchemaRetriever,
+    private val headers: Headers,
+) {
+    /**
+     * Send given records.
+     *
+     * @return true if the records were sent, false if they cannot be sent in their stored
+     *         encoding, because the server uses a different schema or does not accept binary
+     *         records. Send the records with a [org.radarbase.producer.KafkaTopicSender] then.
+     * @throws AuthenticationException if the client is not authorized to send the records.
+     * @throws IOException if the records could not be sent.
+     */
+    @Throws(IOException::class)
+    fun send(records: RawRecordData): Boolean {
+        val sourceIdField = records.keySchema
+            .takeIf { it.type == Schema.Type.RECORD }
+            ?.getField("sourceId")
+            ?: return false
+
+        val keyMetadata = schemaRetriever.getOrSetSchemaMetadata(records.topicName, false, records.keySchema, -1)
+        val valueMetadata = schemaRetriever.getOrSetSchemaMetadata(records.topicName, true, records.valueSchema, -1)
+        // stored values can only be used if the server reads them with the same schema
+        if (valueMetadata.schema != records.valueSchema) {
+            logger.info("Schema of topic {} differs from the server schema. Not sending stored values.", records.topicName)
+            return false
+        }
+
+        val body = RecordSetRequestBody(
+            keyVersion = keyMetadata.version ?: 0,
+            valueVersion = valueMetadata.version ?: 0,
+            sourceId = (records.key as IndexedRecord).get(sourceIdField.pos()).toString(),
+            records = records,
+        )
+        val request = client.requestBuilder("topics/${records.topicName}")
+            .headers(headers)
+            .header("Accept", RestSender.KAFKA_REST_ACCEPT_ENCODING)
+            .post(body)
+            .build()
+
+        return client.request(request).use { response ->
+            when (response.code) {
+                in 200..299 -> true
+                401, 403 -> throw AuthenticationException("Request unauthorized: ${RestClient.responseBody(response)}")
+                415, 422 -> {
+                    logger.warn("Server does not accept binary records of topic {}: {}",
+                        records.topicName, RestClient.responseBody(response))
+                    false
+                }
+                else -> throw IOException("Failed to submit records of topic ${records.topicName}: HTTP ${response.code} ${RestClient.responseBody(response)}")
+            }
+        }
+    }
+
+    /**
+     * Request body in the binary record set format. Project and user ID are left out, since the
+     * server takes them from the authorization.
+     */
+    private class RecordSetRequestBody(
+        private val keyVersion: Int,
+        private val valueVersion: Int,
+        private val sourceId: String,
+        private val records: RawRecordData,
+    ) : RequestBody() {
+        override fun contentType(): MediaType = BINARY_CONTENT_TYPE
+
+        @Throws(IOException::class)
+        override fun writeTo(sink: BufferedSink) {
+            EncoderFactory.get().directBinaryEncoder(sink.outputStream(), null).run {
+                writeInt(keyVersion)
+                writeInt(valueVersion)
+                writeIndex(0) // no project ID
+                writeIndex(0) // no user ID
+                writeString(sourceId)
+                writeArrayStart()
+                setItemCount(records.size.toLong())
+                for (i in 0 until records.size) {
+                    startItem()
+                    records.writeValue(i, this)
+                }
+                writeArrayEnd()
+                flush()
+            }
+        }
+    }
+
+    companion object {
+        private val logger = LoggerFactory.getLogger(RawRecordSender::class.java)
+
+        private val BINARY_CONTENT_TYPE = RestSender.KAFKA_REST_BINARY_ENCODING.toMediaType()
+    }
+}
@@ -8,11 +8,47 @@ data class SubmitterConfiguration(
         var amountLimit: Int = 1000,
         var sizeLimit: Long = 5000000L,
         var uploadRate: Long = 10L,
-        var uploadRateMultiplier: Int = 1) {
+        var uploadRateMultiplier: Int = 1,
+        /** Number of topics to upload at the same time. */
+        var uploadConcurrency: Int = 1,
+        /** Whether to tune [amountLimit] and [sizeLimit] per topic with [AdaptiveBatchSize]. */
+        var adaptiveBatchSize: Boolean = false,
+        /** Request duration in milliseconds above which adaptive batch sizes are decreased. */
+        var uploadTargetLatency: Long = 10_000L,
+        /** Whether to read the next batch of a topic while the previous batch is being sent. */
+        var uploadPrefetch: Boolean = true,
+        /** Weight of the share of an upload round of each topic, by topic name. */
+        var topicWeights: Map<String, Float> = emptyMap()) {
 
     fun configure(config: SingleRadarConfiguration) {
         uploadRate = config.getLong(RadarConfiguration.KAFKA_UPLOAD_RATE_KEY, uploadRate)
         amountLimit = config.getInt(RadarConfiguration.KAFKA_RECORDS_SEND_LIMIT_KEY, amountLimit)
         sizeLimit = config.getLong(RadarConfiguration.KAFKA_RECORDS_SIZE_LIMIT_KEY, sizeLimit)
+        uploadConcurrency = config.getInt(RadarConfiguration.KAFKA_UPLOAD_CONCURRENCY_KEY, uploadConcurrency)
+        adaptiveBatchSize = config.getBoolean(RadarConfiguration.KAFKA_ADAPTIVE_BATCH_SIZE_KEY, adaptiveBatchSize)
+        uploadTargetLatency = config.getLong(RadarConfiguration.KAFKA_UPLOAD_TARGET_LATENCY_KEY, uploadTargetLatency)
+        uploadPrefetch = config.getBoolean(RadarConfiguration.KAFKA_UPLOAD_PREFETCH_KEY, uploadPrefetch)
+        topicWeights = config.optString(RadarConfiguration.KAFKA_TOPIC_WEIGHTS_KEY)
+            ?.let(::parseTopicWeights)
+            ?: topicWeights
+    }
+
+    companion object {
+        private val weightSeparator = ",".toRegex()
+
+        /**
+         * Parse topic weights of the form `topic1:weight1,topic2:weight2`. Entries that are not
+         * of that form, or that do not have a positive weight, are ignored.
+         */
+        fun parseTopicWeights(value: String): Map<String, Float> = value
+            .split(weightSeparator)
+            .mapNotNull { entry ->
+                val topicName = entry.substringBefore(':', "").trim()
+                val weight = entry.substringAfter(':', "").trim().toFloatOrNull()
+                if (topicName.isNotEmpty() && weight != null && weight > 0f) {
+                    Pair(topicName, weight)
+                } else null
+            }
+            .toMap()
     }
 }
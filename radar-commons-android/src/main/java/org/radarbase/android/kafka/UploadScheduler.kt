@@ -0,0 +1,93 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.radarbase.android.kafka
+
+/**
+ * Schedules the topics of an upload round. Each topic has a weight, configured in
+ * [SubmitterConfiguration.topicWeights], that determines its share of a round: the topic with
+ * the highest weight may upload its full limits, and other topics may upload a proportional part
+ * of theirs. Topics are uploaded in order of their weight multiplied by a factor that grows with
+ * the age of their backlog, so that a large backlog of one topic does not keep other topics
+ * waiting. This class is thread-safe.
+ */
+class UploadScheduler {
+    /** Time since which each topic has had records left after an upload, per topic. */
+    private val backlogSince: MutableMap<String, Long> = HashMap()
+
+    /**
+     * Schedule one upload round of [topicNames], with the limits of a full request of each topic
+     * given by [limits].
+     * @return topics in the order to upload them, with the limits of their request.
+     */
+    @Synchronized
+    fun schedule(
+        topicNames: Collection<String>,
+        config: SubmitterConfiguration,
+        time: Long = System.currentTimeMillis(),
+        limits: (String) -> AdaptiveBatchSize.Limits,
+    ): List<Pair<String, AdaptiveBatchSize.Limits>> {
+        val maxWeight = topicNames.maxOfOrNull { config.weight(it) } ?: return emptyList()
+        return topicNames
+            .sortedByDescending { config.weight(it) * agingFactor(it, time) }
+            .map { topicName ->
+                val share = (config.weight(topicName) / maxWeight).coerceAtLeast(MINIMUM_SHARE)
+                val topicLimits = limits(topicName)
+                Pair(topicName, AdaptiveBatchSize.Limits(
+                    amount = (topicLimits.amount * share).toInt().coerceAtLeast(1),
+                    size = (topicLimits.size * share).toLong().coerceAtLeast(1L),
+                ))
+            }
+    }
+
+    /**
+     * Update the backlog of [topicName] after it was uploaded.
+     * @param hasMore whether records may be left after the upload.
+     */
+    @Synchronized
+    fun onUploaded(topicName: String, hasMore: Boolean, time: Long = System.currentTimeMillis()) {
+        if (hasMore) {
+            if (topicName !in backlogSince) {
+                backlogSince[topicName] = time
+            }
+        } else {
+            backlogSince -= topicName
+        }
+    }
+
+    /** Duration in milliseconds since which topics have had records left after an upload. */
+    @Synchronized
+    fun backlogAges(time: Long = System.currentTimeMillis()): Map<String, Long> =
+        backlogSince.mapValues { (_, since) -> time - since }
+
+    private fun agingFactor(topicName: String, time: Long): Double {
+        val since = backlogSince[topicName] ?: return 1.0
+        return 1.0 + (time - since).toDouble() / AGING_PERIOD
+    }
+
+    private fun SubmitterConfiguration.weight(topicName: String): Double =
+        (topicWeights[topicName] ?: DEFAULT_WEIGHT).toDouble()
+
+    companion object {
+        /** Weight of topics that have no configured weight. */
+        const val DEFAULT_WEIGHT = 1.0f
+        /** Smallest part of its limits that a topic may upload per request. */
+        private const val MINIMUM_SHARE = 1.0 / 16
+        /** Backlog age in milliseconds after which the priority of a topic has doubled. */
+        private const val AGING_PERIOD = 600_000.0
+    }
+}
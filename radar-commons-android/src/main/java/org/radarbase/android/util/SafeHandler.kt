@@ -8,6 +8,7 @@ import org.slf4j.LoggerFactory
 import java.lang.ref.WeakReference
 import java.util.concurrent.ExecutionException
 import java.util.concurrent.SynchronousQueue
+import java.util.concurrent.atomic.AtomicInteger
 
 /**
  * A wrapper around Android Handler that makes some operations easier or safer in terms of exception
@@ -31,6 +32,18 @@ class SafeHandler(val name: String, private val priority: Int) {
     var handler: Handler? = null
         private set
 
+    /** Number of runnables that were executed on this handler but did not start running yet. */
+    private val pendingCount = AtomicInteger()
+    /** Highest [pendingCount] that was reached. */
+    private val maximumPendingCount = AtomicInteger()
+
+    /**
+     * Number of runnables that are waiting to run on this handler, as a measure of contention.
+     * Delayed runnables are not counted.
+     */
+    val queueDepth: QueueDepth
+        get() = QueueDepth(pendingCount.get(), maximumPendingCount.get())
+
     @Synchronized
     fun start() {
         if (isStarted) {
@@ -150,7 +163,19 @@ class SafeHandler(val name: String, private val priority: Int) {
      */
     fun execute(defaultToCurrentThread: Boolean, runnable: () -> Unit) {
         val didRun = synchronized(this) {
-            handler?.post { runnable.tryRunOrNull() }
+            handler?.let {
+                // runnables are only added while holding this lock
+                val depth = pendingCount.incrementAndGet()
+                if (depth > maximumPendingCount.get()) {
+                    maximumPendingCount.set(depth)
+                }
+                it.post {
+                    pendingCount.decrementAndGet()
+                    runnable.tryRunOrNull()
+                }.also { didPost ->
+                    if (!didPost) pendingCount.decrementAndGet()
+                }
+            }
         } ?: false
 
         if (!didRun && defaultToCurrentThread) {
@@ -235,6 +260,13 @@ class SafeHandler(val name: String, private val priority: Int) {
         handlerThread = null
     }
 
+    /**
+     * Number of runnables waiting to run on a handler.
+     * @param current number of runnables that are waiting now.
+     * @param maximum highest number of runnables that were waiting at the same time.
+     */
+    data class QueueDepth(val current: Int, val maximum: Int)
+
     /**
      * A runnable that will repeat as long as [runAndRepeat] returns true.
      */
@@ -32,7 +32,7 @@ import java.util.*
  * @param deserializer way to deserialize to objects from a stream
  */
 class BackedObjectQueue<S, T>(
-        private val queueFile: QueueFile,
+        private val queueFile: ElementQueue,
         private val serializer: Serializer<S>,
         private val deserializer: Deserializer<T>) : Closeable {
 
@@ -98,13 +98,17 @@ class BackedObjectQueue<S, T>(
      * read, and their collective serialized size is no larger than `sizeLimit`.
      * @param n number of elements to retrieve at most.
      * @param sizeLimit limit for the size of read data.
+     * @param offset number of front-most elements to skip, for example [ElementCursor.offset].
+     * @param trustedOffset number of front-most elements that are not trusted. The elements after
+     *                      them are read with [Deserializer.deserializeTrusted].
      * @return list of elements, with at most `n` elements.
      * @throws IOException if the element could not be read or deserialized
      * @throws IllegalStateException if the element could not be read
      */
     @Throws(IOException::class)
-    fun peek(n: Int, sizeLimit: Long): List<T?> {
-        val iter = queueFile.iterator()
+    @JvmOverloads
+    fun peek(n: Int, sizeLimit: Long, offset: Int = 0, trustedOffset: Int = Int.MAX_VALUE): List<T?> {
+        val iter = queueFile.iterator(offset)
         var curSize: Long = 0
         val results = ArrayList<T?>(n)
         var i = 0
@@ -113,7 +117,11 @@ class BackedObjectQueue<S, T>(
                 curSize += input.available().toLong()
                 if (curSize <= sizeLimit || i == 0) {
                     try {
-                        results += deserializer.deserialize(input)
+                        results += if (offset + i >= trustedOffset) {
+                            deserializer.deserializeTrusted(input)
+                        } else {
+                            deserializer.deserialize(input)
+                        }
                     } catch (ex: IllegalStateException) {
                         logger.warn("Invalid record ignored", ex)
                         results += null
@@ -139,6 +147,12 @@ class BackedObjectQueue<S, T>(
 
     operator fun minusAssign(n: Int) = remove(n)
 
+    /**
+     * Create a cursor to read elements beyond those that were read but not yet removed. Use its
+     * [ElementCursor.offset] in [peek].
+     */
+    fun newCursor(): ElementCursor = queueFile.newCursor()
+
     /**
      * Close the queue. This also closes the backing file.
      * @throws IOException if the file cannot be closed.
@@ -176,6 +190,16 @@ class BackedObjectQueue<S, T>(
          */
         @Throws(IOException::class)
         fun deserialize(input: InputStream): T
+
+        /**
+         * Deserialize an object that was serialized by this process, so that it does not need to
+         * be validated again. By default, it is deserialized like any other object.
+         * @param `input` input, which will not be closed after this call.
+         * @return deserialized object
+         * @throws IOException if a valid object could not be deserialized from the stream
+         */
+        @Throws(IOException::class)
+        fun deserializeTrusted(input: InputStream): T = deserialize(input)
     }
 
     companion object {
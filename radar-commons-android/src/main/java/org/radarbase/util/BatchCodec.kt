@@ -0,0 +1,41 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarbase.util
+
+import java.io.IOException
+import java.io.OutputStream
+
+/**
+ * Encodes the element payloads of a [BatchedElementQueue] batch together, for example column by
+ * column. Implementations are not thread-safe.
+ */
+interface BatchCodec {
+    /**
+     * Write [count] element payloads to [output] in encoded form. The payloads are stored in the
+     * first [length] bytes of [payloads], each preceded by its length as [VarInt].
+     */
+    @Throws(IOException::class)
+    fun encode(payloads: ByteArray, length: Int, count: Int, output: OutputStream)
+
+    /**
+     * Decode [count] element payloads that were encoded in [length] bytes at [offset] in [data].
+     * @return the payloads, each preceded by its length as [VarInt].
+     * @throws IOException if the data is not correctly encoded.
+     */
+    @Throws(IOException::class)
+    fun decode(data: ByteArray, offset: Int, length: Int, count: Int): ByteArray
+}
@@ -0,0 +1,462 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarbase.util
+
+import org.radarbase.util.IO.checkOffsetAndCount
+import org.radarbase.util.IO.requireIO
+import java.io.IOException
+import java.io.InputStream
+
+/**
+ * Element queue that stores consecutive elements with the same prefix as a single batch in the
+ * backing [queue]. Only the first element of a batch needs the element header and prefix, so
+ * batches of small elements take a fraction of the space and are read faster.
+ *
+ * Each element must start with the length of its prefix as [VarInt], followed by the prefix and
+ * the element payload. Elements are read back in that same layout. A batch element starts with
+ * the number of elements in the batch and the length and contents of the prefix. Then each
+ * element payload follows, preceded by its length.
+ *
+ * With a [codec], the element payloads of a batch are encoded together instead.
+ *
+ * The number of elements in each batch is read when the queue is opened, so opening the queue
+ * reads all batches. When only part of the first batch is removed, the number of removed
+ * elements is stored as the [ElementQueue.headOffset] of [queue]. If [queue] cannot store it, as
+ * is the case for a [QueueFile] with a legacy header, the removed elements are read again when
+ * the queue is opened next time, so they may be delivered twice.
+ *
+ * **Note that this class is not synchronized.**
+ *
+ * @param queue queue to store batches in.
+ * @param maximumBatchSize maximum number of elements in a batch. It may not exceed
+ *                         [MAXIMUM_BATCH_SIZE], so that any head offset fits in a queue header.
+ * @param maximumBatchLength maximum number of bytes of element data in a batch, unless a single
+ *                           element is larger.
+ * @param codec codec to encode the element payloads of a batch with, or null to store them as is.
+ *              A queue must always be opened with the same codec.
+ * @throws IOException if the batches in [queue] cannot be read.
+ */
+class BatchedElementQueue @JvmOverloads @Throws(IOException::class) constructor(
+    /** Queue that batches are stored in. */
+    val queue: ElementQueue,
+    private val maximumBatchSize: Int = DEFAULT_MAXIMUM_BATCH_SIZE,
+    private val maximumBatchLength: Int = DEFAULT_MAXIMUM_BATCH_LENGTH,
+    private val codec: BatchCodec? = null,
+) : ElementQueue {
+    /** Number of elements in each batch in [queue]. */
+    private val batchSizes = BatchSizes()
+    /** Total number of elements in [batchSizes]. */
+    private var elementsInBatches: Int = 0
+    /** Number of elements that were removed from the first batch. */
+    private var batchOffset: Int = 0
+
+    /** Read cursors that were created for this queue. */
+    private val cursors = ElementCursors()
+
+    init {
+        require(maximumBatchSize in 1..MAXIMUM_BATCH_SIZE) { "Maximum batch size $maximumBatchSize is out of range" }
+        for (batch in queue) {
+            val batchSize = batch.use { VarInt.read(it) }
+            requireIO(batchSize > 0) { "Batch in $queue is empty" }
+            batchSizes.add(batchSize)
+            elementsInBatches += batchSize
+        }
+        batchOffset = queue.headOffset
+        requireIO(batchOffset == 0 || (batchSizes.size > 0 && batchOffset < batchSizes[0])) {
+            "Head offset $batchOffset is outside the first batch of $queue"
+        }
+    }
+
+    override val size: Int
+        get() = elementsInBatches - batchOffset
+
+    override val fileSize: Long
+        get() = queue.fileSize
+
+    override var maximumFileSize: Long
+        get() = queue.maximumFileSize
+        set(value) {
+            queue.maximumFileSize = value
+        }
+
+    override var durability: QueueDurability
+        get() = queue.durability
+        set(value) {
+            queue.durability = value
+        }
+
+    override var syncInterval: Long
+        get() = queue.syncInterval
+        set(value) {
+            queue.syncInterval = value
+        }
+
+    @Throws(IOException::class)
+    override fun elementOutputStream(): ElementOutputStream = BatchOutputStream(queue.elementOutputStream())
+
+    @Throws(IOException::class)
+    override fun peek(): InputStream? = if (isEmpty) null else iterator().next()
+
+    override fun iterator(): Iterator<InputStream> = iterator(0)
+
+    @Throws(IOException::class)
+    override fun iterator(offset: Int): Iterator<InputStream> {
+        if (offset < 0 || offset > size) throw IndexOutOfBoundsException("Offset $offset outside queue of size $size")
+        var batchIndex = 0
+        var elementOffset = batchOffset + offset
+        while (batchIndex < batchSizes.size && elementOffset >= batchSizes[batchIndex]) {
+            elementOffset -= batchSizes[batchIndex]
+            batchIndex++
+        }
+        return ElementIterator(queue.iterator(batchIndex), elementOffset)
+    }
+
+    override fun newCursor(): ElementCursor = cursors.newCursor(this)
+
+    @Throws(IOException::class)
+    override fun remove(n: Int) {
+        require(n >= 0) { "Cannot remove negative ($n) number of elements." }
+        if (n == 0) {
+            return
+        }
+        if (n > size) {
+            throw NoSuchElementException(
+                "Cannot remove more elements ($n) than present in queue ($size).")
+        }
+        var numBatches = 0
+        var numElements = 0
+        var elementOffset = batchOffset + n
+        while (numBatches < batchSizes.size && elementOffset >= batchSizes[numBatches]) {
+            elementOffset -= batchSizes[numBatches]
+            numElements += batchSizes[numBatches]
+            numBatches++
+        }
+        queue.remove(numBatches, elementOffset)
+        if (numBatches > 0) {
+            batchSizes.removeFirst(numBatches)
+            elementsInBatches -= numElements
+        }
+        batchOffset = elementOffset
+        cursors.elementsRemoved(n)
+    }
+
+    @Throws(IOException::class)
+    override fun clear() {
+        queue.clear()
+        batchSizes.clear()
+        elementsInBatches = 0
+        batchOffset = 0
+        cursors.clear()
+    }
+
+    @Throws(IOException::class)
+    override fun close() = queue.close()
+
+    override fun toString(): String = "BatchedElementQueue<size=$size, batches=${batchSizes.size}, queue=$queue>"
+
+    /** Batch of elements, read completely from a batch element. */
+    private class Batch(private val data: ByteArray, codec: BatchCodec?) {
+        /** Number of elements in the batch. */
+        val size: Int = VarInt.read(data, 0, data.size)
+        /** Start of the prefix length, followed by the prefix. */
+        private val prefixStart: Int = VarInt.size(size)
+        /** End of the prefix. */
+        private val prefixEnd: Int
+        /** Element payloads, each preceded by its length. */
+        private val payloads: ByteArray
+        /** Position of the next element payload length. */
+        private var position: Int
+
+        init {
+            requireIO(size > 0) { "Batch is empty" }
+            val prefixLength = VarInt.read(data, prefixStart, data.size)
+            prefixEnd = prefixStart + VarInt.size(prefixLength) + prefixLength
+            requireIO(prefixEnd <= data.size) { "Batch prefix is truncated" }
+            if (codec != null) {
+                payloads = codec.decode(data, prefixEnd, data.size - prefixEnd, size)
+                position = 0
+            } else {
+                payloads = data
+                position = prefixEnd
+            }
+        }
+
+        /** Read the next element, consisting of the prefix and the next payload. */
+        @Throws(IOException::class)
+        fun nextElement(): InputStream {
+            val payloadLength = VarInt.read(payloads, position, payloads.size)
+            val payloadStart = position + VarInt.size(payloadLength)
+            position = payloadStart + payloadLength
+            requireIO(position in payloadStart..payloads.size) { "Batch element is truncated" }
+            return BatchElementInputStream(data, prefixStart, prefixEnd, payloads, payloadStart, position)
+        }
+    }
+
+    private inner class ElementIterator(
+        private val batches: Iterator<InputStream>,
+        /** Number of elements to skip in the first batch. */
+        private var skip: Int,
+    ) : Iterator<InputStream> {
+        private var batch: Batch? = null
+        private var remainingInBatch: Int = 0
+
+        override fun hasNext(): Boolean = remainingInBatch > 0 || batches.hasNext()
+
+        @Throws(IOException::class)
+        override fun next(): InputStream {
+            var currentBatch = batch
+            if (remainingInBatch == 0 || currentBatch == null) {
+                if (!batches.hasNext()) throw NoSuchElementException()
+                currentBatch = batches.next().use { Batch(it.readBytes(), codec) }
+                requireIO(skip < currentBatch.size) { "Batch in $queue has fewer elements than expected" }
+                repeat(skip) { currentBatch.nextElement() }
+                remainingInBatch = currentBatch.size - skip
+                skip = 0
+                batch = currentBatch
+            }
+            remainingInBatch--
+            return currentBatch.nextElement()
+        }
+    }
+
+    /**
+     * Element of a batch: the prefix in [prefix], including its length, followed by the payload
+     * in [payload].
+     */
+    private class BatchElementInputStream(
+        private val prefix: ByteArray,
+        prefixStart: Int,
+        private val prefixEnd: Int,
+        private val payload: ByteArray,
+        private val payloadStart: Int,
+        private val payloadEnd: Int,
+    ) : InputStream() {
+        /** Whether the prefix is still being read. */
+        private var isInPrefix: Boolean = true
+        /** Read position in the prefix or in the payload. */
+        private var position: Int = prefixStart
+
+        override fun available(): Int = if (isInPrefix) {
+            prefixEnd - position + payloadEnd - payloadStart
+        } else {
+            payloadEnd - position
+        }
+
+        override fun read(): Int {
+            if (!isInPrefix && position >= payloadEnd) return -1
+            val value = (if (isInPrefix) prefix else payload)[position].toInt() and 0xFF
+            advance(1)
+            return value
+        }
+
+        override fun read(bytes: ByteArray, offset: Int, count: Int): Int {
+            bytes.checkOffsetAndCount(offset, count)
+            if (count == 0) return 0
+            if (!isInPrefix && position >= payloadEnd) return -1
+            val numRead = count.coerceAtMost(if (isInPrefix) prefixEnd - position else payloadEnd - position)
+            System.arraycopy(if (isInPrefix) prefix else payload, position, bytes, offset, numRead)
+            advance(numRead)
+            return numRead
+        }
+
+        override fun skip(n: Long): Long {
+            var remaining = n.coerceIn(0L, available().toLong()).toInt()
+            val numSkipped = remaining
+            if (isInPrefix) {
+                val prefixSkipped = remaining.coerceAtMost(prefixEnd - position)
+                advance(prefixSkipped)
+                remaining -= prefixSkipped
+            }
+            advance(remaining)
+            return numSkipped.toLong()
+        }
+
+        /** Advance [n] bytes, continuing with the payload after the prefix. */
+        private fun advance(n: Int) {
+            position += n
+            if (isInPrefix && position == prefixEnd) {
+                isInPrefix = false
+                position = payloadStart
+            }
+        }
+    }
+
+    /**
+     * Writes elements in batches. A batch is written as a single element to [output] when an
+     * element with another prefix is written, when it is full, or when the stream is closed.
+     */
+    private inner class BatchOutputStream(
+        private val output: ElementOutputStream,
+    ) : ElementOutputStream() {
+        /** Data of the current element. */
+        private val current = ElementBuffer()
+        /** Prefix of the current batch, including its length. */
+        private var prefix = ByteArray(0)
+        /** Element payloads of the current batch, each preceded by its length. */
+        private val payloads = ElementBuffer()
+        /** Number of elements in the current batch. */
+        private var batchSize: Int = 0
+        /** Sizes of the batches that were written to [output]. */
+        private val written = BatchSizes()
+        private var isClosed: Boolean = false
+
+        @Throws(IOException::class)
+        override fun write(byteValue: Int) {
+            checkNotClosed()
+            current.write(byteValue)
+        }
+
+        @Throws(IOException::class)
+        override fun write(bytes: ByteArray, offset: Int, count: Int) {
+            checkNotClosed()
+            current.write(bytes, offset, count)
+        }
+
+        @Throws(IOException::class)
+        override fun next() {
+            checkNotClosed()
+            val length = current.size()
+            if (length == 0) return
+            val data = current.buffer
+            val prefixLength = VarInt.read(data, 0, length)
+            val prefixEnd = VarInt.size(prefixLength) + prefixLength
+            requireIO(prefixEnd <= length) { "Element is shorter than its prefix" }
+            val payloadLength = length - prefixEnd
+
+            if (batchSize > 0 && (
+                    batchSize >= maximumBatchSize
+                    || payloads.size() + VarInt.size(payloadLength) + payloadLength > maximumBatchLength
+                    || !hasPrefix(data, prefixEnd))) {
+                writeBatch()
+            }
+            if (batchSize == 0) {
+                prefix = data.copyOf(prefixEnd)
+            }
+            VarInt.write(payloadLength, payloads)
+            payloads.write(data, prefixEnd, payloadLength)
+            batchSize++
+            current.reset()
+        }
+
+        @Throws(IOException::class)
+        override fun discardElement() {
+            checkNotClosed()
+            current.reset()
+        }
+
+        /** Whether the element in [data] has the prefix of the current batch. */
+        private fun hasPrefix(data: ByteArray, prefixEnd: Int): Boolean {
+            if (prefixEnd != prefix.size) return false
+            for (i in 0 until prefixEnd) {
+                if (data[i] != prefix[i]) return false
+            }
+            return true
+        }
+
+        /** Write the current batch to [output] as a single element. */
+        @Throws(IOException::class)
+        private fun writeBatch() {
+            if (batchSize == 0) return
+            try {
+                VarInt.write(batchSize, output)
+                output.write(prefix)
+                if (codec != null) {
+                    codec.encode(payloads.buffer, payloads.size(), batchSize, output)
+                } else {
+                    output.write(payloads.buffer, 0, payloads.size())
+                }
+                output.next()
+                written.add(batchSize)
+            } catch (ex: Exception) {
+                // do not commit a partially written batch
+                output.discardElement()
+                throw ex
+            } finally {
+                batchSize = 0
+                payloads.reset()
+            }
+        }
+
+        @Throws(IOException::class)
+        private fun checkNotClosed() {
+            requireIO(!isClosed) { "Cannot write to $queue, output stream is closed." }
+        }
+
+        @Throws(IOException::class)
+        override fun flush() = output.flush()
+
+        /**
+         * Closes the stream and commits the complete batches to the queue. A batch that could
+         * not be written completely is discarded, and the records in it are lost.
+         */
+        @Throws(IOException::class)
+        override fun close() {
+            if (isClosed) return
+            try {
+                next()
+                writeBatch()
+            } finally {
+                isClosed = true
+                output.close()
+                for (i in 0 until written.size) {
+                    batchSizes.add(written[i])
+                    elementsInBatches += written[i]
+                }
+            }
+        }
+    }
+
+    /** Growable ring buffer of batch sizes. */
+    private class BatchSizes {
+        private var sizes = IntArray(INITIAL_CAPACITY)
+        private var head: Int = 0
+        var size: Int = 0
+            private set
+
+        operator fun get(i: Int): Int = sizes[(head + i) and (sizes.size - 1)]
+
+        fun add(value: Int) {
+            if (size == sizes.size) {
+                sizes = IntArray(sizes.size * 2) { i -> if (i < size) get(i) else 0 }
+                head = 0
+            }
+            sizes[(head + size) and (sizes.size - 1)] = value
+            size++
+        }
+
+        fun removeFirst(n: Int) {
+            head = (head + n) and (sizes.size - 1)
+            size -= n
+        }
+
+        fun clear() {
+            head = 0
+            size = 0
+        }
+
+        companion object {
+            private const val INITIAL_CAPACITY = 16
+        }
+    }
+
+    companion object {
+        const val DEFAULT_MAXIMUM_BATCH_SIZE = 1000
+        /** Largest maximum batch size, for which the head offset still fits in a [QueueFile] header. */
+        const val MAXIMUM_BATCH_SIZE = QueueFileHeader.MAXIMUM_HEAD_OFFSET + 1
+        const val DEFAULT_MAXIMUM_BATCH_LENGTH = 65_536
+    }
+}
@@ -1,35 +1,89 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
 package org.radarbase.util
 
-import org.radarbase.util.QueueFileHeader.Companion.QUEUE_HEADER_LENGTH
 import org.radarbase.util.QueueStorage.Companion.withAvailable
-import java.lang.ref.SoftReference
 import java.nio.ByteBuffer
 
 /**
- * QueueStorage that provides a buffer around the underlying storage system. This implementation
- * uses a [bufferSize] of 8192, which is the maximum size of a file system block.
+ * QueueStorage that provides buffers around the underlying storage system. Reads and writes use
+ * separate buffers, so that reading the head of a queue does not flush the data that is being
+ * written to its tail, and vice versa. Both buffers default to 8192 bytes, the maximum size of a
+ * file system block. Buffers are borrowed from [bufferPool]; the write buffer is only held while
+ * it contains data that is not yet written to storage.
+ *
+ * @param readBufferSize size of the buffer that data is read into.
+ * @param writeBufferSize size of the buffer that contiguous writes are collected in.
+ * @param readAhead whether to fill the complete read buffer on a read miss, rather than only the
+ *                  file system blocks that were requested. This speeds up reading consecutive
+ *                  elements, for example a batch of records.
+ * @param bufferPool pool to borrow buffers from.
  */
 class BufferedQueueStorage(
     private val storage: QueueStorage,
-    private val bufferSize: Int = 8192,
+    readBufferSize: Int = DEFAULT_BUFFER_SIZE,
+    writeBufferSize: Int = DEFAULT_BUFFER_SIZE,
+    readAhead: Boolean = false,
+    private val bufferPool: ByteBufferPool = ByteBufferPool.shared,
 ) : QueueStorage {
-    /**
-     * Soft reference to the buffer. This may be garbage collected if there is high memory pressure.
-     * This is only possible if there is no other hard reference such as a local
-     * variable or propery.
-     */
-    private var bufferSoftRef = SoftReference<BufferState>(null)
+    /** Size of the read buffer. Changing it discards the current read buffer. */
+    var readBufferSize: Int = readBufferSize
+        set(value) {
+            require(value > 0) { "Read buffer size $value must be positive" }
+            field = value
+            releaseReadBuffer()
+        }
+
+    /** Size of the write buffer. Changing it writes any buffered data first. */
+    var writeBufferSize: Int = writeBufferSize
+        set(value) {
+            require(value > 0) { "Write buffer size $value must be positive" }
+            flushWriteBuffer()
+            field = value
+        }
+
+    /** Whether to fill the complete read buffer on a read miss. */
+    var readAhead: Boolean = readAhead
+
+    /** Read buffer, containing storage data in range [readStart, readLimit). */
+    private var readBuffer: ByteBuffer? = null
+    private var readStart: Long = 0L
+    private var readLimit: Long = 0L
 
     /**
-     * Hard reference to the buffer. This can be used to avoid having the buffer garbage collected
-     * if there is still critical state in it.
+     * Write buffer, containing data in range [writeStart, writeStart + position) that is not yet
+     * written to storage. It is null if there is no such data.
      */
-    private var bufferHardRef: BufferState? = null
+    private var writeBuffer: ByteBuffer? = null
+    private var writeStart: Long = 0L
 
-    /** Get the current state in cache or create a new one. */
-    private fun retrieveState(): BufferState = bufferSoftRef.get()
-            ?: BufferState(ByteBuffer.allocateDirect(bufferSize), 0L, BufferStatus.INITIAL)
-                .also { bufferSoftRef = SoftReference(it) }
+    private var readHits: Long = 0L
+    private var readMisses: Long = 0L
+    private var writeHits: Long = 0L
+    private var writeMisses: Long = 0L
+
+    /** Number of reads and writes that could and could not be served by the buffers. */
+    val statistics: Statistics
+        get() = Statistics(readHits, readMisses, writeHits, writeMisses)
+
+    init {
+        require(readBufferSize > 0) { "Read buffer size $readBufferSize must be positive" }
+        require(writeBufferSize > 0) { "Write buffer size $writeBufferSize must be positive" }
+    }
 
     override val length: Long
         get() = storage.length
@@ -49,63 +103,100 @@ class BufferedQueueStorage(
     override val isPreExisting: Boolean
         get() = storage.isPreExisting
 
+    override var headerLength: Long
+        get() = storage.headerLength
+        set(value) {
+            storage.headerLength = value
+        }
+
     private val dataLength
-        get() = length - QUEUE_HEADER_LENGTH
+        get() = length - headerLength
+
+    /** End of the data in the write buffer, or [writeStart] if it is empty. */
+    private val writeLimit: Long
+        get() = writeStart + (writeBuffer?.position() ?: 0)
+
+    private fun releaseReadBuffer() {
+        readBuffer?.let { bufferPool.release(it) }
+        readBuffer = null
+        readLimit = readStart
+    }
 
     override fun write(position: Long, data: ByteBuffer, mayIgnoreBuffer: Boolean): Long {
         checkPosition(position, data)
         if (data.remaining() == 0) return position
 
-        val state = retrieveState()
+        // write header without buffering
+        if (position < headerLength) {
+            return storage.write(position, data)
+        }
 
-        when {
-            // write large buffers without buffering
-            data.remaining() > state.buffer.capacity() -> {
-                state.flush()
-                return storage.write(position, data)
-            }
-            // write header without buffering
-            position < QUEUE_HEADER_LENGTH -> return storage.write(position, data)
-            // create a new buffer if not in writing mode
-            state.status != BufferStatus.WRITE -> {
-                val bufPosition = (position / bufferSize) * bufferSize
-                state.initialize(bufPosition, BufferStatus.WRITE, position)
-                bufferHardRef = state
+        // buffers never wrap around the end of the storage
+        val count = data.remaining().toLong().coerceAtMost(length - position)
+        val end = position + count
+        invalidateReadBuffer(position, end)
+
+        val buffered = writeBuffer
+        if (buffered != null) {
+            // write inside or directly after the current write buffer
+            if (position in writeStart..writeLimit && end - writeStart <= buffered.limit()) {
+                writeHits++
+                return putInWriteBuffer(buffered, position, data, count)
             }
-            // ensure the buffer can be written to
-            !state.isWritable(position, data.remaining()) -> {
-                // If data cannot be written to the buffer and [mayIgnoreBuffer] is indicated, avoid
-                // resetting the buffer so writing can continue at the previous mark after this header
-                // has been written.
-                if (mayIgnoreBuffer) {
-                    if (state.isWritable(wrapPosition(position + data.remaining() - 1), 1)) {
-                        state.flush()
-                    }
-                    return storage.write(position, data)
-                } else {
-                    state.flush()
-                    val bufPosition = (position / bufferSize) * bufferSize
-                    state.initialize(bufPosition, BufferStatus.WRITE, position)
-                }
+            // If [mayIgnoreBuffer] is indicated, for example when updating an element header, keep
+            // the current write buffer so writing can continue after this data has been written.
+            // Buffered data that overlaps must still be written first.
+            if (!mayIgnoreBuffer || (position < writeLimit && end > writeStart)) {
+                flushWriteBuffer()
             }
         }
 
-        // allow writing inside the current buffer
-        val previousPosition = state.buffer.position()
-        state.position = position
+        if (mayIgnoreBuffer) {
+            writeMisses++
+            return storage.write(position, data)
+        }
 
-        val newPosition = data.withAvailable(state.buffer.remaining().toLong()) {
-            state.buffer.put(it)
-            state.position
+        return if (count >= writeBufferSize) {
+            // write large buffers without buffering
+            writeMisses++
+            storage.write(position, data)
+        } else {
+            writeHits++
+            writeStart = position
+            val buffer = bufferPool.borrow(writeBufferSize)
+            buffer.limit(buffer.capacity().toLong().coerceAtMost(length - position).toInt())
+            writeBuffer = buffer
+            putInWriteBuffer(buffer, position, data, count)
         }
+    }
 
-        // when writing inside the buffer, ensure that the final position of the buffer
-        // is put back to where it was originally writing to.
-        if (state.buffer.position() < previousPosition) {
-            state.buffer.position(previousPosition)
+    private fun putInWriteBuffer(buffer: ByteBuffer, position: Long, data: ByteBuffer, count: Long): Long {
+        val previousPosition = buffer.position()
+        buffer.position((position - writeStart).toInt())
+        data.withAvailable(count) { buffer.put(it) }
+        // when writing inside the buffer, keep the end of the buffered data
+        if (buffer.position() < previousPosition) {
+            buffer.position(previousPosition)
         }
+        return wrapPosition(position + count)
+    }
 
-        return wrapPosition(newPosition)
+    /** Write any data in the write buffer to storage and return the buffer to the pool. */
+    private fun flushWriteBuffer() {
+        val buffer = writeBuffer ?: return
+        // the read buffer may have been filled before the data was written
+        invalidateReadBuffer(writeStart, writeLimit)
+        buffer.flip()
+        storage.writeFully(writeStart, buffer)
+        writeBuffer = null
+        bufferPool.release(buffer)
+    }
+
+    /** Invalidate the read buffer if it overlaps with given range. */
+    private fun invalidateReadBuffer(start: Long, end: Long) {
+        if (start < readLimit && end > readStart) {
+            readLimit = readStart
+        }
     }
 
     private fun checkPosition(position: Long, data: ByteBuffer) {
@@ -118,31 +209,35 @@ class BufferedQueueStorage(
         checkPosition(position, data)
         if (data.remaining() == 0) return position
 
-        val state = retrieveState()
-        // Ensure that any write data is written to file and synchronized before attempting to read
-        if (state.status == BufferStatus.WRITE) {
-            flush()
+        // read header without buffering
+        if (position < headerLength) {
+            return storage.read(position, data)
         }
-        // If the buffer does not contain the start position for reading, read it now
-        if (
-            state.status != BufferStatus.READ
-            || position !in state
-        ) {
-            if (data.remaining() >= state.buffer.capacity()) {
+
+        val count = data.remaining().toLong().coerceAtMost(length - position)
+        val end = position + count
+
+        // Ensure that any buffered data is written to storage before reading it
+        if (writeBuffer != null && position < writeLimit && end > writeStart) {
+            flushWriteBuffer()
+        }
+
+        var buffer = readBuffer
+        if (buffer == null || position < readStart || position >= readLimit) {
+            readMisses++
+            if (count >= readBufferSize) {
                 return storage.read(position, data)
-            } else {
-                // Align buffer with filesystem block boundaries
-                var bufPosition = (position / bufferSize) * bufferSize
-                state.initialize(bufPosition, BufferStatus.READ)
-                do {
-                    bufPosition = storage.read(bufPosition, state.buffer)
-                } while (state.buffer.position() == 0)
-                state.buffer.flip()
             }
+            buffer = buffer ?: bufferPool.borrow(readBufferSize)
+                .also { readBuffer = it }
+            fillReadBuffer(buffer, position, end)
+        } else {
+            readHits++
         }
 
-        state.position = position
-        val bytesRead = state.buffer.withAvailable(data.remaining().toLong()) {
+        buffer.limit((readLimit - readStart).toInt())
+        buffer.position((position - readStart).toInt())
+        val bytesRead = buffer.withAvailable(count) {
             val result = it.remaining()
             data.put(it)
             result
@@ -150,111 +245,98 @@ class BufferedQueueStorage(
         return wrapPosition(position + bytesRead)
     }
 
+    /**
+     * Fill the read buffer so that it contains at least range [position, end). It is aligned with
+     * file system block boundaries where possible.
+     */
+    private fun fillReadBuffer(buffer: ByteBuffer, position: Long, end: Long) {
+        val capacity = buffer.capacity().toLong()
+        var start = ((position / BLOCK_SIZE) * BLOCK_SIZE).coerceAtLeast(headerLength)
+        if (end - start > capacity) {
+            start = position
+        }
+        val limit = if (readAhead) {
+            start + capacity
+        } else {
+            ((end + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE).coerceAtMost(start + capacity)
+        }.coerceAtMost(length)
+
+        readStart = start
+        readLimit = start
+        buffer.clear()
+        buffer.limit((limit - start).toInt())
+        var readPosition = start
+        while (buffer.hasRemaining()) {
+            readPosition = storage.read(readPosition, buffer)
+        }
+        readLimit = limit
+    }
+
     override fun move(srcPosition: Long, dstPosition: Long, count: Long) {
-        retrieveState().clear()
+        flushWriteBuffer()
+        readLimit = readStart
         storage.move(srcPosition, dstPosition, count)
     }
 
     override fun resize(size: Long) {
-        retrieveState().clear()
+        flushWriteBuffer()
+        releaseReadBuffer()
         storage.resize(size)
     }
 
     override fun wrapPosition(position: Long): Long = storage.wrapPosition(position)
 
     override fun close() {
-        retrieveState().flush()
-        bufferSoftRef = SoftReference(null)
-        storage.close()
+        try {
+            flushWriteBuffer()
+        } finally {
+            releaseReadBuffer()
+            storage.close()
+        }
     }
 
     override fun flush() {
-        retrieveState().flush()
+        flushWriteBuffer()
         storage.flush()
     }
 
-    override fun toString() = "BufferedQueueStorage[storage=$storage,bufferSize=${retrieveState().buffer.remaining()}]"
-
-    private inner class BufferState(
-        val buffer: ByteBuffer,
-        var startPosition: Long,
-        var status: BufferStatus,
-    ) {
-        var position: Long
-            get() = buffer.position() + startPosition
-            set(value) {
-                val newPosition = translateToBufferPosition(value)
-                buffer.position(newPosition)
-                if (status == BufferStatus.WRITE && newPosition < mark) {
-                    mark = newPosition
-                }
-            }
-
-        var limit: Long
-            get() = startPosition + buffer.limit()
-            set(value) {
-                buffer.limit(translateToBufferPosition(value))
-            }
-
-        private var mark: Int = 0
+    override fun sync() {
+        flushWriteBuffer()
+        storage.sync()
+    }
 
-        var markPosition: Long
-            get() = startPosition + mark
-            set(value) {
-                require(value >= startPosition)
-                mark = (value - startPosition).toInt()
-            }
+    override fun toString() = "BufferedQueueStorage[storage=$storage,readBufferSize=$readBufferSize,writeBufferSize=$writeBufferSize,$statistics]"
 
+    /** Number of reads and writes that could and could not be served by the buffers. */
+    data class Statistics(
+        val readHits: Long,
+        val readMisses: Long,
+        val writeHits: Long,
+        val writeMisses: Long,
+    ) {
+        /** Fraction of reads that were served from the read buffer. */
+        val readHitRate: Double
+            get() = hitRate(readHits, readMisses)
 
-        fun initialize(bufferPosition: Long, status: BufferStatus, writePosition: Long = bufferPosition) {
-            this.startPosition = bufferPosition
-            this.status = status
-            this.markPosition = writePosition
-            val newLimit = buffer.capacity().coerceAtMost((length - bufferPosition).toInt())
-            require(newLimit > mark)
-            buffer.limit(newLimit)
-            buffer.position(mark)
-        }
+        /** Fraction of writes that were collected in the write buffer. */
+        val writeHitRate: Double
+            get() = hitRate(writeHits, writeMisses)
 
-        fun translateToBufferPosition(position: Long): Int {
-            require(position in this) { "value $position does not fall in range [$startPosition, $limit)"}
-            return (position - startPosition).toInt()
-        }
+        override fun toString(): String = "readHitRate=%.3f (%d reads),writeHitRate=%.3f (%d writes)"
+            .format(readHitRate, readHits + readMisses, writeHitRate, writeHits + writeMisses)
 
-        operator fun contains(position: Long): Boolean = position >= markPosition && position < limit
-
-        fun isWritable(position: Long, count: Int): Boolean = (
-                position >= startPosition
-                        && position + count >= markPosition
-                        && position <= this.position
-                        && position < limit)
-
-        fun flush() {
-            if (status == BufferStatus.WRITE) {
-                status = if (buffer.position() > mark) {
-                    buffer.limit(buffer.position())
-                    buffer.position(mark)
-                    storage.writeFully(markPosition, buffer)
-
-                    // the written buffer can directly be read from mark to the new limit
-                    // (the old position).
-                    buffer.position(mark)
-                    BufferStatus.READ
-                } else {
-                    BufferStatus.INITIAL
-                }
-                // without a hard reference, the buffer may be cleared if memory pressure is high
-                bufferHardRef = null
+        companion object {
+            private fun hitRate(hits: Long, misses: Long): Double {
+                val total = hits + misses
+                return if (total == 0L) 0.0 else hits.toDouble() / total
             }
         }
-
-        fun clear() {
-            flush()
-            initialize(0L, BufferStatus.INITIAL)
-        }
     }
 
-    private enum class BufferStatus {
-        INITIAL, WRITE, READ
+    companion object {
+        const val DEFAULT_BUFFER_SIZE = 8192
+
+        /** File system block size to align reads with. */
+        private const val BLOCK_SIZE = 4096L
     }
 }
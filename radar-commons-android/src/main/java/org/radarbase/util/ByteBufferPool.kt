@@ -0,0 +1,136 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarbase.util
+
+import java.nio.ByteBuffer
+import java.util.*
+
+/**
+ * Pool of direct byte buffers. Allocating direct buffers is expensive and their memory is only
+ * freed after garbage collection, so buffers that are no longer used are kept for reuse. At most
+ * [capacity] bytes of unused buffers are kept; buffers that are released beyond that are left to
+ * the garbage collector.
+ *
+ * This class is thread-safe.
+ *
+ * @param capacity maximum number of bytes of unused buffers to keep.
+ */
+class ByteBufferPool(capacity: Long) {
+    /** Unused buffers by buffer capacity. */
+    private val pool = HashMap<Int, ArrayDeque<ByteBuffer>>()
+
+    /** Maximum number of bytes of unused buffers to keep. */
+    @get:Synchronized
+    @set:Synchronized
+    var capacity: Long = capacity
+        set(value) {
+            require(value >= 0L) { "Buffer pool capacity $value must not be negative" }
+            field = value
+            trim()
+        }
+
+    private var pooledBytes: Long = 0L
+    private var borrowedBytes: Long = 0L
+    private var hits: Long = 0L
+    private var misses: Long = 0L
+    private var discarded: Long = 0L
+
+    /** Current occupancy and hit and miss counts of the pool. */
+    val statistics: Statistics
+        @Synchronized get() = Statistics(pooledBytes, borrowedBytes, hits, misses, discarded)
+
+    init {
+        require(capacity >= 0L) { "Buffer pool capacity $capacity must not be negative" }
+    }
+
+    /**
+     * Borrow a cleared buffer with given capacity. Return it with [release] when it is no longer
+     * used.
+     */
+    @Synchronized
+    fun borrow(size: Int): ByteBuffer {
+        require(size > 0) { "Buffer size $size must be positive" }
+        val buffer = pool[size]?.pollFirst()
+        borrowedBytes += size
+        return if (buffer != null) {
+            hits++
+            pooledBytes -= size
+            buffer.apply { clear() }
+        } else {
+            misses++
+            ByteBuffer.allocateDirect(size)
+        }
+    }
+
+    /**
+     * Return a buffer that was borrowed from this pool. The buffer may not be used after it is
+     * released.
+     */
+    @Synchronized
+    fun release(buffer: ByteBuffer) {
+        val size = buffer.capacity()
+        borrowedBytes -= size
+        if (pooledBytes + size <= capacity) {
+            pool.getOrPut(size) { ArrayDeque() }.addFirst(buffer)
+            pooledBytes += size
+        } else {
+            discarded++
+        }
+    }
+
+    /** Discard unused buffers until the pool does not exceed its capacity. */
+    private fun trim() {
+        val iterator = pool.values.iterator()
+        while (pooledBytes > capacity && iterator.hasNext()) {
+            val buffers = iterator.next()
+            while (pooledBytes > capacity && buffers.isNotEmpty()) {
+                pooledBytes -= buffers.pollLast().capacity()
+                discarded++
+            }
+            if (buffers.isEmpty()) {
+                iterator.remove()
+            }
+        }
+    }
+
+    override fun toString(): String = "ByteBufferPool[capacity=$capacity, $statistics]"
+
+    /**
+     * Occupancy and usage of a buffer pool.
+     *
+     * @property pooledBytes number of bytes of unused buffers in the pool.
+     * @property borrowedBytes number of bytes of buffers that are currently borrowed.
+     * @property hits number of times a buffer was borrowed from the pool.
+     * @property misses number of times a buffer had to be allocated.
+     * @property discarded number of released buffers that did not fit in the pool.
+     */
+    data class Statistics(
+        val pooledBytes: Long,
+        val borrowedBytes: Long,
+        val hits: Long,
+        val misses: Long,
+        val discarded: Long,
+    )
+
+    companion object {
+        /** Default capacity of the shared pool, enough for a few dozen queue buffers. */
+        const val DEFAULT_CAPACITY = 256L * 1024L
+
+        /** Pool shared by all queues in this process. */
+        val shared = ByteBufferPool(DEFAULT_CAPACITY)
+    }
+}
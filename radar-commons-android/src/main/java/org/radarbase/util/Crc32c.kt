@@ -0,0 +1,89 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarbase.util
+
+import java.util.zip.Checksum
+
+/**
+ * CRC-32C (Castagnoli) checksum. The JDK only provides this from API level 26, so it is
+ * computed here with the slicing-by-8 table algorithm, processing eight bytes per table round.
+ *
+ * This class is not thread-safe.
+ */
+internal class Crc32c : Checksum {
+    private var crc: Int = INITIAL_VALUE
+
+    override fun update(b: Int) {
+        crc = (crc ushr 8) xor TABLE[(crc xor b) and 0xFF]
+    }
+
+    override fun update(b: ByteArray, off: Int, len: Int) {
+        if (off < 0 || len < 0 || len > b.size - off) throw IndexOutOfBoundsException()
+        var value = crc
+        var i = off
+        val end = off + len
+        while (end - i >= 8) {
+            val low = value xor ((b[i].toInt() and 0xFF)
+                or (b[i + 1].toInt() and 0xFF shl 8)
+                or (b[i + 2].toInt() and 0xFF shl 16)
+                or (b[i + 3].toInt() and 0xFF shl 24))
+            value = TABLE[7 * 256 + (low and 0xFF)] xor
+                TABLE[6 * 256 + (low ushr 8 and 0xFF)] xor
+                TABLE[5 * 256 + (low ushr 16 and 0xFF)] xor
+                TABLE[4 * 256 + (low ushr 24)] xor
+                TABLE[3 * 256 + (b[i + 4].toInt() and 0xFF)] xor
+                TABLE[2 * 256 + (b[i + 5].toInt() and 0xFF)] xor
+                TABLE[256 + (b[i + 6].toInt() and 0xFF)] xor
+                TABLE[b[i + 7].toInt() and 0xFF]
+            i += 8
+        }
+        while (i < end) {
+            value = (value ushr 8) xor TABLE[(value xor b[i].toInt()) and 0xFF]
+            i++
+        }
+        crc = value
+    }
+
+    override fun getValue(): Long = (crc.inv().toLong() and 0xFFFF_FFFFL)
+
+    override fun reset() {
+        crc = INITIAL_VALUE
+    }
+
+    companion object {
+        private const val INITIAL_VALUE = -1
+        /** Reversed Castagnoli polynomial. */
+        private const val POLYNOMIAL = 0x82F63B78.toInt()
+
+        /** Eight lookup tables of 256 entries, each table advancing the checksum one byte further. */
+        private val TABLE = IntArray(8 * 256).apply {
+            for (n in 0 until 256) {
+                var c = n
+                repeat(8) {
+                    c = if (c and 1 != 0) (c ushr 1) xor POLYNOMIAL else c ushr 1
+                }
+                this[n] = c
+            }
+            for (n in 0 until 256) {
+                for (k in 1 until 8) {
+                    val previous = this[(k - 1) * 256 + n]
+                    this[k * 256 + n] = (previous ushr 8) xor this[previous and 0xFF]
+                }
+            }
+        }
+    }
+}
@@ -67,6 +67,8 @@ class DirectQueueFileStorage(
 
     override val minimumLength: Long = MINIMUM_LENGTH
 
+    override var headerLength: Long = QUEUE_HEADER_LENGTH
+
     override var maximumLength: Long = maximumLength
         set(value) {
             require(value <= Int.MAX_VALUE) {
@@ -126,8 +128,11 @@ class DirectQueueFileStorage(
         length = size
     }
 
+    /** Data is written to the channel directly, so no action is needed. */
+    override fun flush() = Unit
+
     @Throws(IOException::class)
-    override fun flush() {
+    override fun sync() {
         channel.force(false)
     }
 
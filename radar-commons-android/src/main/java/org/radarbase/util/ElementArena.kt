@@ -0,0 +1,104 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarbase.util
+
+import java.io.IOException
+import java.io.OutputStream
+
+/**
+ * Reusable buffer of serialized elements, to collect elements before writing them to an
+ * [ElementQueue] at once. Write the data of an element to this stream and call [next] to complete
+ * it. The buffer keeps its capacity when it is cleared, so collecting elements does not allocate
+ * once the buffer has grown to its working size. Arenas are not thread-safe.
+ */
+class ElementArena(initialCapacity: Int = 4096) : OutputStream() {
+    private var data = ByteArray(initialCapacity)
+    /** End position in [data] of each completed element. */
+    private var ends = IntArray(64)
+    /** Number of bytes written, including those of the element that is not yet completed. */
+    private var length: Int = 0
+
+    /** Number of completed elements. */
+    var size: Int = 0
+        private set
+
+    val isEmpty: Boolean
+        get() = size == 0
+
+    /** Number of bytes of completed elements. */
+    val byteSize: Int
+        get() = elementEnd(size - 1)
+
+    override fun write(b: Int) {
+        ensureCapacity(length + 1)
+        data[length++] = b.toByte()
+    }
+
+    override fun write(b: ByteArray, off: Int, len: Int) {
+        if (off < 0 || len < 0 || len > b.size - off) throw IndexOutOfBoundsException()
+        ensureCapacity(length + len)
+        System.arraycopy(b, off, data, length, len)
+        length += len
+    }
+
+    /** Complete the element that is being written. Empty elements are not stored. */
+    fun next() {
+        if (length == byteSize) return
+        if (ends.size == size) {
+            ends = ends.copyOf(size * 2)
+        }
+        ends[size++] = length
+    }
+
+    /** Discard the data of the element that is being written, for example after a failure. */
+    fun discard() {
+        length = byteSize
+    }
+
+    /**
+     * Write all completed elements to [queue].
+     * @throws IOException if the queue cannot be written to.
+     * @throws IllegalStateException if the elements do not fit in the queue.
+     */
+    @Throws(IOException::class)
+    fun writeTo(queue: ElementQueue) {
+        if (isEmpty) return
+        queue.elementOutputStream().use { output ->
+            for (i in 0 until size) {
+                val start = elementEnd(i - 1)
+                output.write(data, start, ends[i] - start)
+                output.next()
+            }
+        }
+    }
+
+    /** Remove all elements, keeping the capacity of the buffer. */
+    fun clear() {
+        size = 0
+        length = 0
+    }
+
+    private fun elementEnd(i: Int): Int = if (i >= 0) ends[i] else 0
+
+    private fun ensureCapacity(capacity: Int) {
+        if (capacity > data.size) {
+            data = data.copyOf(maxOf(capacity, data.size * 2))
+        }
+    }
+
+    override fun toString(): String = "ElementArena[size=$size, bytes=$length]"
+}
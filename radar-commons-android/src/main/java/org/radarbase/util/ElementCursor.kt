@@ -0,0 +1,93 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarbase.util
+
+import java.io.Closeable
+import java.io.IOException
+import java.io.InputStream
+
+/**
+ * Read position in an [ElementQueue] that is separate from the head of the queue. Elements
+ * before the cursor have been read but are not yet removed, so a reader can read the next batch
+ * of elements before the previous batch was processed. When elements are removed from the queue,
+ * the cursor keeps pointing to the same element, or to the head if that element was removed.
+ *
+ * Create a cursor with [ElementQueue.newCursor] and close it when it is no longer used.
+ */
+class ElementCursor internal constructor(
+    private val queue: ElementQueue,
+    private val cursors: ElementCursors,
+) : Closeable {
+    /** Number of elements between the head of the queue and this cursor. */
+    var offset: Int = 0
+        private set
+
+    /** Number of elements after this cursor. */
+    val remaining: Int
+        get() = queue.size - offset
+
+    /** Iterator over the elements after this cursor. It does not move the cursor. */
+    @Throws(IOException::class)
+    fun iterator(): Iterator<InputStream> = queue.iterator(offset)
+
+    /** Move the cursor [n] elements forward, after those elements have been read. */
+    fun advance(n: Int) {
+        require(n in 0..remaining) { "Cannot advance cursor by $n elements, only $remaining remaining" }
+        offset += n
+    }
+
+    /** Remove all elements before this cursor from the queue. */
+    @Throws(IOException::class)
+    fun commit() {
+        if (offset > 0) {
+            queue.remove(offset)
+        }
+    }
+
+    /** Move the cursor back to the head of the queue, so that elements are read again. */
+    fun reset() {
+        offset = 0
+    }
+
+    override fun close() {
+        cursors.remove(this)
+    }
+
+    internal fun elementsRemoved(n: Int) {
+        offset = (offset - n).coerceAtLeast(0)
+    }
+
+    override fun toString(): String = "ElementCursor[offset=$offset]"
+}
+
+/** Cursors of a single queue. */
+internal class ElementCursors {
+    private val cursors = ArrayList<ElementCursor>()
+
+    fun newCursor(queue: ElementQueue): ElementCursor = ElementCursor(queue, this)
+        .also { cursors += it }
+
+    fun remove(cursor: ElementCursor) {
+        cursors -= cursor
+    }
+
+    /** Update cursors after [n] elements were removed from the head of the queue. */
+    fun elementsRemoved(n: Int) = cursors.forEach { it.elementsRemoved(n) }
+
+    /** Reset cursors after the queue was cleared. */
+    fun clear() = cursors.forEach { it.reset() }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarbase.util
+
+/**
+ * Positions and lengths of consecutive queue elements, kept in primitive ring buffers. Elements
+ * are added at the end and removed from the front, so a [QueueFile] can skip or look up the
+ * element at a given index without reading element headers from storage. The index holds at
+ * most [maximumCapacity] elements, elements that are added beyond that are not stored.
+ *
+ * @param maximumCapacity maximum number of elements that will be stored.
+ */
+internal class ElementIndex(maximumCapacity: Int = DEFAULT_CAPACITY) {
+    private var positions = LongArray(INITIAL_CAPACITY.coerceAtMost(maximumCapacity).toPowerOfTwo())
+    private var lengths = IntArray(positions.size)
+
+    /**
+     * Maximum number of elements that will be stored. If it is decreased below the current
+     * size, the last elements are dropped from the index.
+     */
+    var maximumCapacity: Int = maximumCapacity
+        set(value) {
+            require(value > 0) { "Maximum capacity $value must be positive" }
+            field = value
+            if (size > value) {
+                size = value
+            }
+            if (positions.size > value.toPowerOfTwo()) {
+                resize(value.toPowerOfTwo())
+            }
+        }
+
+    /** Whether the index cannot store any more elements. */
+    val isFull: Boolean
+        get() = size >= maximumCapacity
+
+    /** Ring index of the first element. */
+    private var head: Int = 0
+
+    private val mask: Int
+        get() = positions.size - 1
+
+    /** Number of elements in the index. */
+    var size: Int = 0
+        private set
+
+    val isEmpty: Boolean
+        get() = size == 0
+
+    /** Position of the element at given index. */
+    fun position(index: Int): Long {
+        checkIndex(index)
+        return positions[(head + index) and mask]
+    }
+
+    /** Data length of the element at given index. */
+    fun length(index: Int): Int {
+        checkIndex(index)
+        return lengths[(head + index) and mask]
+    }
+
+    /** Element at given index. */
+    operator fun get(index: Int): QueueFileElement = QueueFileElement(position(index), length(index))
+
+    /**
+     * Add an element to the end of the index.
+     * @return whether the element was added, false if the index is full.
+     */
+    fun add(position: Long, length: Int): Boolean {
+        if (isFull) {
+            return false
+        }
+        if (size == positions.size) {
+            resize(positions.size * 2)
+        }
+        val i = (head + size) and mask
+        positions[i] = position
+        lengths[i] = length
+        size++
+        return true
+    }
+
+    /**
+     * Add an element to the end of the index.
+     * @return whether the element was added, false if the index is full.
+     */
+    fun add(element: QueueFileElement): Boolean = add(element.position, element.length)
+
+    /** Add elements of another index to the end of this index, as long as they fit. */
+    fun addAll(other: ElementIndex) {
+        for (i in 0 until other.size) {
+            if (!add(other.position(i), other.length(i))) {
+                return
+            }
+        }
+    }
+
+    /** Remove the first [n] elements. */
+    fun removeFirst(n: Int) {
+        require(n in 0..size) { "Cannot remove $n elements from index of size $size" }
+        head = (head + n) and mask
+        size -= n
+    }
+
+    /** Remove all elements. */
+    fun clear() {
+        head = 0
+        size = 0
+    }
+
+    /**
+     * Add [offset] to all positions smaller than [limit]. This is used after data was moved
+     * within the storage.
+     */
+    fun shiftPositions(limit: Long, offset: Long) {
+        for (i in 0 until size) {
+            val ringIndex = (head + i) and mask
+            if (positions[ringIndex] < limit) {
+                positions[ringIndex] += offset
+            }
+        }
+    }
+
+    private fun resize(capacity: Int) {
+        val newPositions = LongArray(capacity)
+        val newLengths = IntArray(newPositions.size)
+        for (i in 0 until size) {
+            val ringIndex = (head + i) and mask
+            newPositions[i] = positions[ringIndex]
+            newLengths[i] = lengths[ringIndex]
+        }
+        positions = newPositions
+        lengths = newLengths
+        head = 0
+    }
+
+    private fun checkIndex(index: Int) {
+        if (index < 0 || index >= size) {
+            throw IndexOutOfBoundsException("Index $index out of bounds for index size $size")
+        }
+    }
+
+    override fun toString() = "ElementIndex[size=$size, maximumCapacity=$maximumCapacity]"
+
+    companion object {
+        /** Default maximum number of elements in an index, enough for a few upload batches. */
+        const val DEFAULT_CAPACITY = 4096
+        private const val INITIAL_CAPACITY = 16
+        private const val MAXIMUM_ARRAY_CAPACITY = 1 shl 30
+
+        private fun Int.toPowerOfTwo(): Int {
+            require(this > 0) { "Capacity $this must be positive" }
+            return when {
+                this == 1 -> 1
+                this >= MAXIMUM_ARRAY_CAPACITY -> MAXIMUM_ARRAY_CAPACITY
+                else -> Integer.highestOneBit(this - 1) shl 1
+            }
+        }
+    }
+}
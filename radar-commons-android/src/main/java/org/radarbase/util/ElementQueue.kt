@@ -0,0 +1,131 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarbase.util
+
+import java.io.Closeable
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+
+/**
+ * A persistent FIFO queue of binary elements. Elements are read with [peek] or [iterator] and
+ * only removed with [remove] after they were processed successfully.
+ *
+ * **Note that implementations are not synchronized.**
+ */
+interface ElementQueue : Closeable, Iterable<InputStream> {
+    /** Returns the number of elements in this queue.  */
+    val size: Int
+
+    /** Returns true if this queue contains no entries.  */
+    val isEmpty: Boolean
+        get() = size == 0
+
+    /** Number of bytes that the queue occupies on disk.  */
+    val fileSize: Long
+
+    /** Maximum number of bytes that the queue may occupy on disk. */
+    var maximumFileSize: Long
+
+    /** Policy for forcing committed changes to disk. */
+    var durability: QueueDurability
+
+    /**
+     * Minimum time in milliseconds between forcing changes to disk, if [durability] is
+     * [QueueDurability.INTERVAL].
+     */
+    var syncInterval: Long
+
+    /**
+     * Adds elements to the end of the queue. The elements are only committed once the
+     * returned stream is closed.
+     */
+    @Throws(IOException::class)
+    fun elementOutputStream(): ElementOutputStream
+
+    /** Returns an InputStream to read the eldest element. Returns null if the queue is empty.  */
+    @Throws(IOException::class)
+    fun peek(): InputStream?
+
+    /**
+     * Returns an iterator over the elements in this queue, skipping the first [offset] elements.
+     *
+     * @throws IndexOutOfBoundsException if [offset] is negative or exceeds [size].
+     */
+    @Throws(IOException::class)
+    fun iterator(offset: Int): Iterator<InputStream> {
+        if (offset < 0 || offset > size) throw IndexOutOfBoundsException("Offset $offset outside queue of size $size")
+        return iterator().apply {
+            repeat(offset) { next() }
+        }
+    }
+
+    /** Creates a cursor to read elements independently of removing them. */
+    fun newCursor(): ElementCursor
+
+    /**
+     * Removes the eldest `n` elements.
+     *
+     * @throws NoSuchElementException if more than the available elements are requested to be removed
+     */
+    @Throws(IOException::class)
+    fun remove(n: Int)
+
+    /**
+     * Number of parts of the first element that were already processed, as stored with the last
+     * call to [remove] with a head offset. Always 0 for queues that cannot store it.
+     */
+    val headOffset: Int
+        get() = 0
+
+    /**
+     * Removes the eldest `n` elements and stores [headOffset] with the queue, so that a
+     * partially processed first element can be resumed after the queue is opened again. Queues
+     * that cannot store the head offset only remove the elements.
+     *
+     * @throws NoSuchElementException if more than the available elements are requested to be removed
+     */
+    @Throws(IOException::class)
+    fun remove(n: Int, headOffset: Int) = remove(n)
+
+    /** Clears this queue.  */
+    @Throws(IOException::class)
+    fun clear()
+}
+
+/**
+ * An OutputStream that can write multiple elements to an [ElementQueue]. After finished writing
+ * one element, call [next] to start writing the next. Elements are committed when the stream is
+ * closed.
+ */
+abstract class ElementOutputStream : OutputStream() {
+    /**
+     * Proceed writing the next element. Zero length elements are not written, so always write
+     * at least one byte to store an element.
+     * @throws IOException if the queue cannot be written to
+     */
+    @Throws(IOException::class)
+    abstract operator fun next()
+
+    /**
+     * Discard the data that was written since the last call to [next], for example because
+     * writing the element failed partway. Elements that were completed before are still
+     * committed when the stream is closed.
+     */
+    @Throws(IOException::class)
+    abstract fun discardElement()
+}
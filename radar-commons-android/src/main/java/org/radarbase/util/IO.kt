@@ -22,4 +22,15 @@ object IO {
             numRead += skip(n - numRead)
         } while (numRead < n)
     }
+
+    /** Read exactly [length] bytes into [bytes] at [offset]. */
+    @Throws(IOException::class)
+    fun InputStream.readFully(bytes: ByteArray, offset: Int, length: Int) {
+        var numRead = 0
+        while (numRead < length) {
+            val n = read(bytes, offset + numRead, length - numRead)
+            requireIO(n > 0) { "Element is truncated" }
+            numRead += n
+        }
+    }
 }
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarbase.util
+
+import org.radarbase.util.IO.requireIO
+import org.radarbase.util.QueueFileHeader.Companion.QUEUE_HEADER_LENGTH
+import org.radarbase.util.QueueStorage.Companion.withAvailable
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+
+/**
+ * A storage backend for a QueueFile that maps the file into memory. Reads and writes are
+ * memory copies into the mapped region, so they do not need a system call each. The file is
+ * mapped in chunks of [chunkSize] bytes. When the file grows, only the new part of the file and
+ * the previously last, partial chunk are mapped, so the total mapped size stays close to the
+ * file length. Since no single mapping exceeds [chunkSize], the file may be larger than 2 GB, as
+ * long as the process has enough address space to map it. Mappings cannot be released explicitly
+ * on Android; mappings that are no longer used, also after [close], are released when they are
+ * garbage collected.
+ *
+ * @param file file to use
+ * @param initialLength initial length if the file does not exist.
+ * @param maximumLength maximum length that the file may have.
+ * @param chunkSize maximum size of a single memory mapping.
+ * @throws IllegalArgumentException if the initialLength or maximumLength is smaller than
+ *                                  [MINIMUM_LENGTH] or if the chunkSize exceeds the maximum
+ *                                  size of a memory mapping.
+ * @throws IOException if the file could not be accessed or mapped, or was smaller than
+ *                     `QueueFileHeader.QUEUE_HEADER_LENGTH`
+ */
+class MappedQueueFileStorage(
+    file: File,
+    initialLength: Long,
+    maximumLength: Long,
+    private val chunkSize: Long = DEFAULT_CHUNK_SIZE,
+) : QueueStorage {
+    private val randomAccessFile: RandomAccessFile
+    private val channel: FileChannel
+
+    /**
+     * Memory mappings of consecutive chunks of the file. Their positions and limits are only
+     * used during a single operation, and are reset afterwards.
+     */
+    private val chunks = ArrayList<MappedByteBuffer>()
+
+    /** Filename, for toString purposes  */
+    private val fileName: String = file.name
+
+    override var isClosed: Boolean = false
+        private set
+
+    override val isPreExisting: Boolean = file.exists()
+
+    /** File size in bytes.  */
+    override var length: Long = 0L
+        private set
+
+    override val minimumLength: Long = MINIMUM_LENGTH
+
+    override var headerLength: Long = QUEUE_HEADER_LENGTH
+
+    override var maximumLength: Long = maximumLength
+        set(value) {
+            field = value.coerceAtLeast(MINIMUM_LENGTH)
+        }
+
+    init {
+        require(initialLength >= minimumLength) { "Initial length $initialLength is smaller than minimum length $minimumLength" }
+        require(initialLength <= maximumLength) { "Initial length $initialLength exceeds maximum length $maximumLength" }
+        require(chunkSize in MINIMUM_LENGTH..Int.MAX_VALUE) { "Chunk size $chunkSize is out of range" }
+
+        randomAccessFile = RandomAccessFile(file, "rw")
+        length = if (isPreExisting) {
+            randomAccessFile.length()
+                .also { requireIO(it >= QUEUE_HEADER_LENGTH) { "File length $it of $file is smaller than queue header length $QUEUE_HEADER_LENGTH" } }
+        } else {
+            randomAccessFile.setLength(initialLength)
+            initialLength
+        }
+        channel = randomAccessFile.channel
+        mapChunks()
+    }
+
+    /** Map chunks of the file up to [length] that are not mapped yet. */
+    @Throws(IOException::class)
+    private fun mapChunks() {
+        val numChunks = ((length + chunkSize - 1) / chunkSize).toInt()
+        for (i in chunks.size until numChunks) {
+            val chunkStart = i * chunkSize
+            val chunkLength = (length - chunkStart).coerceAtMost(chunkSize)
+            chunks += channel.map(FileChannel.MapMode.READ_WRITE, chunkStart, chunkLength)
+        }
+    }
+
+    /**
+     * Stop using mappings of chunks that extend beyond [newLength], and of the last chunk if it
+     * is partial and the file grows to [newLength].
+     */
+    private fun unmapChunks(newLength: Long) {
+        while (chunks.isNotEmpty()) {
+            val lastChunk = chunks.last()
+            val chunkEnd = chunks.lastIndex * chunkSize + lastChunk.capacity()
+            if (chunkEnd > newLength || (chunkEnd < newLength && lastChunk.capacity() < chunkSize)) {
+                chunks.removeAt(chunks.lastIndex)
+            } else {
+                break
+            }
+        }
+    }
+
+    /**
+     * Run [action] for each chunk that contains data in range [position, position + count).
+     * Each chunk is positioned and limited to that data during the action.
+     */
+    private inline fun forEachChunk(position: Long, count: Long, action: (ByteBuffer) -> Unit) {
+        var chunkPosition = position
+        var remaining = count
+        while (remaining > 0) {
+            val chunk = chunks[(chunkPosition / chunkSize).toInt()]
+            val offset = (chunkPosition % chunkSize).toInt()
+            val chunkCount = remaining.coerceAtMost((chunk.capacity() - offset).toLong()).toInt()
+            chunk.limit(offset + chunkCount)
+            chunk.position(offset)
+            try {
+                action(chunk)
+            } finally {
+                chunk.clear()
+            }
+            chunkPosition += chunkCount
+            remaining -= chunkCount
+        }
+    }
+
+    @Throws(IOException::class)
+    override fun read(position: Long, data: ByteBuffer): Long {
+        requireNotClosed()
+        require(position >= 0) { "Read position $position in storage $this must be positive." }
+        require(position < length)  { "Read position $position in storage $this must be less than length $length." }
+
+        val numRead = data.remaining().toLong().coerceAtMost(length - position)
+        forEachChunk(position, numRead) { data.put(it) }
+
+        return wrapPosition(position + numRead)
+    }
+
+    /** Sets the length of the file and maps any new part of the file into memory.  */
+    @Throws(IOException::class)
+    override fun resize(size: Long) {
+        requireNotClosed()
+        if (size == length) {
+            return
+        }
+        require(size <= length || size <= maximumLength) {
+            "New length $size of $this exceeds maximum length $maximumLength"
+        }
+        require(size >= minimumLength) {
+            "New length $size of $this is less than minimum length $QUEUE_HEADER_LENGTH"
+        }
+        sync()
+        // previous mappings are released when they are garbage collected
+        unmapChunks(size)
+        randomAccessFile.setLength(size)
+        channel.force(true)
+        length = size
+        mapChunks()
+    }
+
+    /** Data is written to the mapped file directly, so no action is needed. */
+    override fun flush() = Unit
+
+    @Throws(IOException::class)
+    override fun sync() {
+        chunks.forEach { it.force() }
+    }
+
+    @Throws(IOException::class)
+    override fun write(position: Long, data: ByteBuffer, mayIgnoreBuffer: Boolean): Long {
+        requireNotClosed()
+        require(position >= 0) { "Write position $position in storage $this must be positive." }
+        require(position < length)  { "Write position $position in storage $this must be less than length $length." }
+
+        val numWritten = data.withAvailable(length - position) { source ->
+            val count = source.remaining()
+            val sourceLimit = source.limit()
+            forEachChunk(position, count.toLong()) { chunk ->
+                source.limit(source.position() + chunk.remaining())
+                chunk.put(source)
+            }
+            source.limit(sourceLimit)
+            count
+        }
+
+        return wrapPosition(position + numWritten)
+    }
+
+    /**
+     * Move data within the mapped region. The source and destination regions should not overlap,
+     * as is the case when a QueueFile is compacted after doubling its size.
+     */
+    @Throws(IOException::class)
+    override fun move(srcPosition: Long, dstPosition: Long, count: Long) {
+        requireNotClosed()
+        require(srcPosition >= 0
+                && dstPosition >= 0
+                && count > 0
+                && srcPosition + count <= length
+                && dstPosition + count <= length) {
+            "Movement specification src=$srcPosition, count=$count, dst=$dstPosition is invalid for storage $this"
+        }
+        var sourcePosition = srcPosition
+        forEachChunk(dstPosition, count) { destination ->
+            val destinationCount = destination.remaining()
+            var copied = 0
+            while (copied < destinationCount) {
+                // the source may be in the same chunk as the destination, so use a separate view
+                val sourceChunk = chunks[(sourcePosition / chunkSize).toInt()]
+                val offset = (sourcePosition % chunkSize).toInt()
+                val n = (destinationCount - copied).coerceAtMost(sourceChunk.capacity() - offset)
+                val source = sourceChunk.duplicate()
+                source.limit(offset + n)
+                source.position(offset)
+                destination.put(source)
+                sourcePosition += n
+                copied += n
+            }
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun requireNotClosed() {
+        requireIO(!isClosed) { "Queue storage $this is already closed." }
+    }
+
+    @Throws(IOException::class)
+    override fun close() {
+        isClosed = true
+        chunks.clear()
+        channel.close()
+        randomAccessFile.close()
+    }
+
+    override fun toString() = "MappedQueueFileStorage<$fileName>[length=$length]"
+
+    companion object {
+        /** Initial file size in bytes.  */
+        const val MINIMUM_LENGTH = 4096L // one file system block
+
+        /** Default size of a single memory mapping. */
+        const val DEFAULT_CHUNK_SIZE = 16_777_216L // 16 MiB
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarbase.util
+
+import java.util.concurrent.atomic.AtomicReference
+
+/**
+ * Lock-free buffer that multiple threads add elements to, and that a single thread drains in bulk.
+ * Adding an element takes a single compare-and-set, without waiting for other producers or for
+ * the consumer. Draining takes all elements that were added at once, in the order they were added.
+ */
+class MpscBuffer<T> {
+    /** Most recently added element, linking to the elements added before it. */
+    private val head = AtomicReference<Node<T>?>()
+
+    /** Whether the buffer currently has no elements. */
+    val isEmpty: Boolean
+        get() = head.get() == null
+
+    /**
+     * Add an element to the buffer. This may be called from any thread.
+     * @return whether the buffer was empty before adding the element, so that the consumer may
+     *         need to be notified.
+     */
+    fun add(element: T): Boolean {
+        val node = Node(element)
+        while (true) {
+            val previous = head.get()
+            node.next = previous
+            if (head.compareAndSet(previous, node)) return previous == null
+        }
+    }
+
+    /**
+     * Remove all elements from the buffer and add them to [destination], in the order they were
+     * added. This may only be called from a single consumer thread at a time.
+     * @return number of elements that were added to [destination].
+     */
+    fun drainTo(destination: MutableList<in T>): Int {
+        var node = head.getAndSet(null) ?: return 0
+        val start = destination.size
+        while (true) {
+            destination.add(node.value)
+            node = node.next ?: break
+        }
+        // elements are linked from newest to oldest
+        destination.subList(start, destination.size).reverse()
+        return destination.size - start
+    }
+
+    private class Node<T>(val value: T) {
+        var next: Node<T>? = null
+    }
+}
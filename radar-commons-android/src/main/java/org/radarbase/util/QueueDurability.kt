@@ -0,0 +1,78 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarbase.util
+
+import java.util.concurrent.TimeUnit
+
+/**
+ * Policy for forcing committed queue changes to the storage medium. Forcing changes ensures that
+ * they survive a system crash or power loss, but it is expensive on flash storage. Changes that
+ * were not forced are still written by the operating system, they are only lost if the system
+ * itself fails. The queue header recovers the latest consistent state in that case.
+ */
+enum class QueueDurability {
+    /** Force each commit to disk before it returns. */
+    ALWAYS,
+    /** Group commits, and force them to disk at most once per sync interval. */
+    INTERVAL,
+    /** Never force changes to disk, leave that to the operating system. */
+    NONE,
+}
+
+/**
+ * Decides for a queue which commits should be forced to disk.
+ */
+internal class QueueSyncTimer {
+    var durability: QueueDurability = QueueDurability.ALWAYS
+
+    /** Minimum time in milliseconds between forcing changes with [QueueDurability.INTERVAL]. */
+    var interval: Long = 0L
+        set(value) {
+            require(value >= 0L) { "Sync interval $value must not be negative" }
+            field = value
+        }
+
+    private var lastSync: Long = System.nanoTime()
+
+    /** Whether commits were made that were not forced to disk. */
+    var hasPendingChanges: Boolean = false
+        private set
+
+    /**
+     * Register a commit.
+     * @return whether the commit should be forced to disk now.
+     */
+    fun commit(): Boolean {
+        val shouldSync = when (durability) {
+            QueueDurability.ALWAYS -> true
+            QueueDurability.INTERVAL -> System.nanoTime() - lastSync >= TimeUnit.MILLISECONDS.toNanos(interval)
+            QueueDurability.NONE -> false
+        }
+        if (shouldSync) {
+            synced()
+        } else {
+            hasPendingChanges = true
+        }
+        return shouldSync
+    }
+
+    /** Register that all changes were forced to disk. */
+    fun synced() {
+        lastSync = System.nanoTime()
+        hasPendingChanges = false
+    }
+}
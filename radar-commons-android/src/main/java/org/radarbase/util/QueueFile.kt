@@ -17,9 +17,7 @@
 package org.radarbase.util
 
 import org.radarbase.util.IO.requireIO
-import org.radarbase.util.QueueFileHeader.Companion.QUEUE_HEADER_LENGTH
 import org.slf4j.LoggerFactory
-import java.io.Closeable
 import java.io.File
 import java.io.IOException
 import java.io.InputStream
@@ -47,11 +45,21 @@ import java.util.concurrent.atomic.AtomicInteger
  * This class is an adaptation of com.squareup.tape2, allowing multi-element writes. It also
  * removes legacy support.
  *
+ * @param storage storage to keep the queue in.
+ * @param recover whether to recover a partially corrupted queue instead of failing to open it.
+ *
  * @author Bob Lee (bob@squareup.com)
  * @author Joris Borgdorff (joris@thehyve.nl)
  */
-class QueueFile @Throws(IOException::class)
-constructor(private val storage: QueueStorage) : Closeable, Iterable<InputStream> {
+class QueueFile @Throws(IOException::class) @JvmOverloads
+constructor(
+    private val storage: QueueStorage,
+    /**
+     * Whether to recover an existing queue that is partially corrupted, by keeping the longest
+     * sequence of elements at the head of the queue that can still be read.
+     */
+    recover: Boolean = false,
+) : ElementQueue {
     /**
      * The underlying file. Uses a ring buffer to store entries. Designed so that a modification
      * isn't committed or visible until we write the header. The header is much smaller than a
@@ -60,11 +68,14 @@ constructor(private val storage: QueueStorage) : Closeable, Iterable<InputStream
      * copied).
      * <pre>
      * Format:
-     * 36 bytes         Header
+     * 96 bytes         Header, consisting of two slots
      * ...              Data
      *
-     * Header:
+     * Header slot:
      * 4 bytes          Version
+     * 4 bytes          Flags, the lowest byte identifying the element codec, the second
+     *                  byte the element checksum and the upper two bytes the head offset
+     * 8 bytes          Sequence number
      * 8 bytes          File length
      * 4 bytes          Element count
      * 8 bytes          Head element position
@@ -74,21 +85,26 @@ constructor(private val storage: QueueStorage) : Closeable, Iterable<InputStream
      * Element:
      * 4 bytes          Data length `n`
      * 1 byte           Element header length checksum
-     * `n` bytes          Data
+     * `n` bytes          Data, ending with a 4 byte CRC-32C if element checksums are used
     </pre> *
      */
-    private val header: QueueFileHeader = QueueFileHeader(storage)
+    private val header: QueueFileHeader = QueueFileHeader(storage, recover)
 
     /** Returns the number of elements in this queue.  */
-    val size: Int
+    override val size: Int
         get() = header.count
 
     /** File size in bytes  */
-    val fileSize: Long
+    override val fileSize: Long
         get() = header.length
 
-    /** Pointer to first (or eldest) element.  */
-    private val firstElements = ArrayDeque<QueueFileElement>()
+    /**
+     * Positions and lengths of the first elements in the queue, starting at the eldest element.
+     * It is extended when new elements are read or written, so that elements do not need to be
+     * located by reading each element header. After opening the queue, it is rebuilt lazily as
+     * elements are read. Its size is bounded by [elementIndexCapacity].
+     */
+    private val index = ElementIndex()
 
     /** Pointer to last (or newest) element.  */
     private val last: QueueFileElement
@@ -103,24 +119,103 @@ constructor(private val storage: QueueStorage) : Closeable, Iterable<InputStream
     private val elementHeaderBuffer = ByteBuffer.allocate(QueueFileElement.ELEMENT_HEADER_LENGTH)
 
     /** Returns true if this queue contains no entries.  */
-    val isEmpty: Boolean
+    override val isEmpty: Boolean
         get() = size == 0
 
-    var maximumFileSize: Long
+    override var maximumFileSize: Long
         get() = storage.maximumLength
         set(newSize) {
             storage.maximumLength = newSize
         }
 
+    /**
+     * Maximum number of element positions to keep in memory. Elements beyond this are located by
+     * reading element headers from storage.
+     */
+    var elementIndexCapacity: Int
+        get() = index.maximumCapacity
+        set(value) {
+            index.maximumCapacity = value
+        }
+
+    /** Hit and miss counts of the storage buffers, or null if the storage is not buffered. */
+    val bufferStatistics: BufferedQueueStorage.Statistics?
+        get() = (storage as? BufferedQueueStorage)?.statistics
+
+    /**
+     * Configure the read and write buffers of the storage. This has no effect if the storage is
+     * not buffered.
+     * @see BufferedQueueStorage
+     */
+    fun configureBuffers(readBufferSize: Int, writeBufferSize: Int, readAhead: Boolean) {
+        (storage as? BufferedQueueStorage)?.let {
+            it.readBufferSize = readBufferSize
+            it.writeBufferSize = writeBufferSize
+            it.readAhead = readAhead
+        }
+    }
+
+    /**
+     * Codec to encode new elements with. The codec of the queue is stored in its header, so a
+     * queue that contains data keeps its codec until it is empty. The new codec is applied then.
+     */
+    var codec: QueueFileCodec = header.codec
+        set(value) {
+            field = value
+            if (isEmpty && header.codec != value) {
+                clear()
+            }
+        }
+
+    /**
+     * Checksum to store new elements with. Like the [codec], it only applies once the queue is
+     * empty.
+     */
+    var checksum: QueueFileChecksum = header.checksum
+        set(value) {
+            field = value
+            if (isEmpty && header.checksum != value) {
+                clear()
+            }
+        }
+
+    /** Codec that elements are currently encoded with, or null if they are stored as written. */
+    internal var elementCodec: ElementCodec? = header.codec.createCodec()
+        private set
+
+    private val syncTimer = QueueSyncTimer()
+
+    /** Whether it was logged that a head offset could not be stored. */
+    private var isHeadOffsetDropWarned: Boolean = false
+
+    /** Read cursors that were created for this queue. */
+    private val cursors = ElementCursors()
+
+    override var durability: QueueDurability
+        get() = syncTimer.durability
+        set(value) {
+            syncTimer.durability = value
+        }
+
+    override var syncInterval: Long
+        get() = syncTimer.interval
+        set(value) {
+            syncTimer.interval = value
+        }
+
     init {
         try {
             if (header.length < storage.length) {
                 this.storage.resize(header.length)
             }
 
+            if (recover) {
+                recoverElements()
+            }
+
             readElement(storage.wrapPosition(header.firstPosition))
                 .takeUnless { it.isEmpty }
-                ?.let { firstElements += it }
+                ?.let { index.add(it) }
 
             last = readElement(storage.wrapPosition(header.lastPosition))
         } catch (ex: IllegalArgumentException) {
@@ -142,22 +237,91 @@ constructor(private val storage: QueueStorage) : Closeable, Iterable<InputStream
             return
         }
 
+        if (!readElementHeader(position, elementToUpdate)) {
+            logger.error("Failed to verify element at position {}: length {} does not match "
+                    + "stored checksum. QueueFile is corrupt.",
+                position, elementHeaderBuffer.getInt(0))
+
+            close()
+            throw IOException("Element is not correct; queue file is corrupted")
+        }
+    }
+
+    /**
+     * Read element header data into given element, if the header is valid.
+     * @return whether the element header is valid.
+     */
+    @Throws(IOException::class)
+    private fun readElementHeader(position: Long, elementToUpdate: QueueFileElement): Boolean {
         elementHeaderBuffer.rewind()
         storage.readFully(position, elementHeaderBuffer)
         elementHeaderBuffer.flip()
 
+        val length = elementHeaderBuffer.int
+        if (length < 0 || elementHeaderBuffer.get() != QueueFileElement.crc(length)) {
+            return false
+        }
         elementToUpdate.position = position
-        elementToUpdate.length = elementHeaderBuffer.int
+        elementToUpdate.length = length
+        return true
+    }
 
-        val crc = elementHeaderBuffer.get()
+    /**
+     * Keep the longest sequence of valid elements at the head of the queue and drop the elements
+     * after it. At most [QueueFileHeader.count] element headers are read, and no more than the
+     * data length of the file is scanned, so this completes in bounded time even if elements
+     * are corrupted. If elements have a checksum, their data is verified as well.
+     */
+    @Throws(IOException::class)
+    private fun recoverElements() {
+        val element = QueueFileElement()
+        val lastValid = QueueFileElement()
+        var position = header.firstPosition
+        var numValid = 0
+        var bytesScanned = 0L
+
+        while (
+            numValid < header.count
+            && position >= header.headerLength
+            && position < header.length
+            && readElementHeader(position, element)
+            && !element.isEmpty
+        ) {
+            bytesScanned += element.length + QueueFileElement.ELEMENT_HEADER_LENGTH
+            if (bytesScanned > header.dataLength || !hasValidChecksum(element)) break
+            lastValid.update(element)
+            numValid++
+            position = storage.wrapPosition(element.nextPosition)
+        }
 
-        if (crc != elementToUpdate.crc) {
-            logger.error("Failed to verify {}: crc {} does not match stored checksum {}. "
-                    + "QueueFile is corrupt.",
-                elementToUpdate, elementToUpdate.crc, crc)
+        if (numValid == header.count) return
 
-            close()
-            throw IOException("Element is not correct; queue file is corrupted")
+        logger.warn("Recovered {} of {} elements from corrupted queue {}. Dropping the other elements.",
+            numValid, header.count, storage)
+        if (numValid == 0) {
+            header.clear()
+        } else {
+            header.count = numValid
+            header.lastPosition = lastValid.position
+        }
+        header.write()
+        storage.sync()
+        syncTimer.synced()
+    }
+
+    /** Whether the element data matches its checksum, if elements have a checksum. */
+    @Throws(IOException::class)
+    private fun hasValidChecksum(element: QueueFileElement): Boolean {
+        val checksumLength = header.checksum.length
+        if (checksumLength == 0) return true
+        if (element.length <= checksumLength) return false
+        val dataLength = element.length - checksumLength
+        return try {
+            ChecksumElementInputStream(QueueFileInputStream(element, storage, modCount), dataLength)
+                .use { it.skip(dataLength.toLong()) }
+            true
+        } catch (ex: IOException) {
+            false
         }
     }
 
@@ -179,32 +343,44 @@ constructor(private val storage: QueueStorage) : Closeable, Iterable<InputStream
      * Adds an element to the end of the queue.
      */
     @Throws(IOException::class)
-    fun elementOutputStream(): QueueFileOutputStream {
+    override fun elementOutputStream(): QueueFileOutputStream {
         requireNotClosed()
-        return QueueFileOutputStream(this, header, storage, last.nextPosition)
+        val position = if (last.isEmpty) header.headerLength else last.nextPosition
+        return QueueFileOutputStream(this, header, storage, position)
     }
 
     /** Number of bytes used in the file.  */
     val usedBytes: Long
         get() {
             if (isEmpty) {
-                return QUEUE_HEADER_LENGTH
+                return header.headerLength
             }
 
-            val firstPosition = firstElements.first.position
+            val firstPosition = header.firstPosition
             return last.nextPosition - firstPosition + if (last.position >= firstPosition) {
-                QUEUE_HEADER_LENGTH
+                header.headerLength
             } else {
                 // tail < head. The queue wraps.
                 header.length
             }
         }
 
+    /** InputStream of the original data of given element. */
+    private fun newInputStream(element: QueueFileElement): InputStream {
+        val checksumLength = header.checksum.length
+        val dataLength = element.length - checksumLength
+        val input = QueueFileInputStream(element, storage, modCount)
+            .let { if (checksumLength > 0) ChecksumElementInputStream(it, dataLength) else it }
+        return elementCodec
+            ?.let { DecodedElementInputStream(input, dataLength, it) }
+            ?: input
+    }
+
     /** Returns an InputStream to read the eldest element. Returns null if the queue is empty.  */
     @Throws(IOException::class)
-    fun peek(): InputStream? {
+    override fun peek(): InputStream? {
         requireNotClosed()
-        return if (!isEmpty) QueueFileInputStream(firstElements.first, storage, modCount) else null
+        return if (!isEmpty) newInputStream(index[0]) else null
     }
 
     /**
@@ -213,14 +389,43 @@ constructor(private val storage: QueueStorage) : Closeable, Iterable<InputStream
      *
      * The iterator disallows modifications to be made to the QueueFile during iteration.
      */
-    override fun iterator(): Iterator<InputStream> = ElementIterator()
+    override fun iterator(): Iterator<InputStream> = ElementIterator(0, if (index.isEmpty) 0 else index.position(0))
 
-    internal inner class ElementIterator : Iterator<InputStream> {
-        /** Index of element to be returned by subsequent call to next.  */
-        private var nextElementIndex: Int = 0
+    @Throws(IOException::class)
+    override fun iterator(offset: Int): Iterator<InputStream> {
+        requireNotClosed()
+        if (offset < 0 || offset > header.count) throw IndexOutOfBoundsException("Offset $offset outside queue of size ${header.count}")
+        return if (offset == header.count) {
+            ElementIterator(offset, 0L)
+        } else {
+            ElementIterator(offset, elementAt(offset).position)
+        }
+    }
 
+    override fun newCursor(): ElementCursor = cursors.newCursor(this)
+
+    /**
+     * Get the element at given index. Elements that are not in the [index] are located by reading
+     * the element headers that follow the last indexed element.
+     */
+    @Throws(IOException::class)
+    private fun elementAt(i: Int): QueueFileElement {
+        if (i < index.size) {
+            return index[i]
+        }
+        val element = index[index.size - 1]
+        repeat(i - index.size + 1) {
+            readElement(storage.wrapPosition(element.nextPosition), element)
+        }
+        return element
+    }
+
+    internal inner class ElementIterator(
+        /** Index of element to be returned by subsequent call to next.  */
+        private var nextElementIndex: Int,
         /** Position of element to be returned by subsequent call to next.  */
-        private var nextElementPosition: Long = if (firstElements.isEmpty()) 0 else firstElements.first.position
+        private var nextElementPosition: Long,
+    ) : Iterator<InputStream> {
 
         /**
          * The [.modCount] value that the iterator believes that the backing QueueFile should
@@ -228,9 +433,6 @@ constructor(private val storage: QueueStorage) : Closeable, Iterable<InputStream
          */
         private val expectedModCount = modCount.get()
 
-        private var cacheIterator: Iterator<QueueFileElement>? = firstElements.iterator()
-        private var previousCached: QueueFileElement? = QueueFileElement()
-
         private fun checkConditions() {
             check(!storage.isClosed) { "storage is closed" }
             if (modCount.get() != expectedModCount) {
@@ -249,25 +451,21 @@ constructor(private val storage: QueueStorage) : Closeable, Iterable<InputStream
                 throw NoSuchElementException()
             }
 
-            val current: QueueFileElement
-            if (cacheIterator?.hasNext() == true) {
-                current = cacheIterator!!.next()
-                current.updateIfMoved(previousCached!!, header)
-                previousCached!!.update(current)
+            val current = if (nextElementIndex < index.size) {
+                index[nextElementIndex]
             } else {
-                if (cacheIterator != null) {
-                    cacheIterator = null
-                    previousCached = null
-                }
                 try {
-                    current = readElement(nextElementPosition)
+                    readElement(nextElementPosition)
                 } catch (ex: IOException) {
                     throw IllegalStateException("Cannot read element", ex)
+                }.also {
+                    // only extend the index if it remains contiguous
+                    if (nextElementIndex == index.size) {
+                        index.add(it)
+                    }
                 }
-
-                firstElements += current
             }
-            val input = QueueFileInputStream(current, storage, modCount)
+            val input = newInputStream(current)
 
             // Update the pointer to the next element.
             nextElementPosition = storage.wrapPosition(current.nextPosition)
@@ -282,16 +480,44 @@ constructor(private val storage: QueueStorage) : Closeable, Iterable<InputStream
         }
     }
 
+    override val headOffset: Int
+        get() = header.headOffset
+
     /**
      * Removes the eldest `n` elements.
      *
      * @throws NoSuchElementException if more than the available elements are requested to be removed
      */
     @Throws(IOException::class)
-    fun remove(n: Int) {
+    override fun remove(n: Int) = remove(n, 0)
+
+    /**
+     * Removes the eldest `n` elements and stores [headOffset] in the header. A legacy header
+     * cannot store a head offset, and a head offset larger than
+     * [QueueFileHeader.MAXIMUM_HEAD_OFFSET] is not stored either. Then the head offset is 0
+     * when the queue is opened again, so parts of the first element that were already processed
+     * are processed again. This is logged once per queue.
+     *
+     * @throws NoSuchElementException if more than the available elements are requested to be removed
+     */
+    @Throws(IOException::class)
+    override fun remove(n: Int, headOffset: Int) {
         requireNotClosed()
         require(n >= 0) { "Cannot remove negative ($n) number of elements." }
+        require(headOffset >= 0) { "Head offset $headOffset must not be negative." }
+        val storedOffset = if (headOffset > 0 && (header.isLegacy || headOffset > QueueFileHeader.MAXIMUM_HEAD_OFFSET)) {
+            if (!isHeadOffsetDropWarned) {
+                logger.warn("Cannot store head offset {} in {}. Parts of its first element will be read again when it is reopened.",
+                    headOffset, this)
+                isHeadOffsetDropWarned = true
+            }
+            0
+        } else headOffset
         if (n == 0) {
+            if (storedOffset != header.headOffset) {
+                header.headOffset = storedOffset
+                commitHeader(dataChanged = false)
+            }
             return
         }
         if (n == header.count) {
@@ -303,39 +529,24 @@ constructor(private val storage: QueueStorage) : Closeable, Iterable<InputStream
                     "Cannot remove more elements (" + n + ") than present in queue (" + header.count + ").")
         }
 
-        // Read the position and length of the new first element.
-        var newFirst = QueueFileElement()
-        val previous = QueueFileElement()
-
-        var i = 0
-        // remove from cache first
-        while (i < n && !firstElements.isEmpty()) {
-            newFirst.update(firstElements.removeFirst())
-            newFirst.updateIfMoved(previous, header)
-            previous.update(newFirst)
-            i++
-        }
-
-        if (firstElements.isEmpty()) {
-            // if the cache contained less than n elements, skip from file
-            // read one additional element to become the first element of the cache.
-            while (i <= n) {
-                readElement(storage.wrapPosition(newFirst.nextPosition), newFirst)
-                i++
-            }
-            // the next element was read from file and will become the next first element
-            firstElements += newFirst
+        // Find the position of the new first element.
+        if (n < index.size) {
+            index.removeFirst(n)
         } else {
-            newFirst = firstElements.first
-            newFirst.updateIfMoved(previous, header)
+            val element = elementAt(n)
+            index.clear()
+            index.add(element)
         }
+        val newFirst = index[0]
 
         // Commit the header.
         modCount.incrementAndGet()
         header.firstPosition = newFirst.position
         header.count -= n
+        header.headOffset = storedOffset
         truncateIfNeeded()
-        header.write()
+        commitHeader(dataChanged = false)
+        cursors.elementsRemoved(n)
     }
 
     /**
@@ -370,21 +581,28 @@ constructor(private val storage: QueueStorage) : Closeable, Iterable<InputStream
 
     /** Clears this queue. Truncates the file to the initial size.  */
     @Throws(IOException::class)
-    fun clear() {
+    override fun clear() {
         requireNotClosed()
 
-        firstElements.clear()
+        index.clear()
         last.reset()
         header.clear()
+        header.checksum = checksum
+        if (header.codec != codec) {
+            header.codec = codec
+            elementCodec?.close()
+            elementCodec = codec.createCodec()
+        }
 
         if (header.length != storage.minimumLength) {
             storage.resize(storage.minimumLength)
             header.length = storage.minimumLength
         }
 
-        header.write()
+        commitHeader(dataChanged = false)
 
         modCount.incrementAndGet()
+        cursors.clear()
     }
 
     @Throws(IOException::class)
@@ -392,27 +610,65 @@ constructor(private val storage: QueueStorage) : Closeable, Iterable<InputStream
         requireIO(!storage.isClosed) { "storage $header is closed" }
     }
 
+    /**
+     * Write the header. Depending on the durability policy, first force any data that the header
+     * refers to to disk and then the header itself.
+     * @param dataChanged whether elements were written since the last commit.
+     */
+    @Throws(IOException::class)
+    private fun commitHeader(dataChanged: Boolean) {
+        // a legacy header has no second slot to fall back on
+        val sync = syncTimer.commit() || header.isLegacy
+        if (sync && dataChanged) {
+            storage.sync()
+        }
+        header.write()
+        if (sync) {
+            storage.sync()
+        }
+    }
+
     @Throws(IOException::class)
     override fun close() {
+        if (!storage.isClosed && syncTimer.hasPendingChanges && durability != QueueDurability.NONE) {
+            storage.sync()
+            syncTimer.synced()
+        }
+        elementCodec?.close()
         storage.close()
     }
 
     override fun toString(): String {
-        return "QueueFile[storage=$storage, header=$header, first=$firstElements, last=$last]"
+        return "QueueFile[storage=$storage, header=$header, index=$index, last=$last, codec=$codec, checksum=$checksum]"
     }
 
+    /**
+     * Commit elements written by a [QueueFileOutputStream].
+     * @param newFirst first element written, if the queue was empty.
+     * @param newLast last element written.
+     * @param written leading elements written by the stream, as far as they fit in its index.
+     * @param count number of elements written by the stream.
+     */
     @Throws(IOException::class)
-    internal fun commitOutputStream(newFirst: QueueFileElement, newLast: QueueFileElement, count: Int) {
+    internal fun commitOutputStream(
+        newFirst: QueueFileElement,
+        newLast: QueueFileElement,
+        written: ElementIndex,
+        count: Int,
+    ) {
         if (!newLast.isEmpty) {
             last.update(newLast)
             header.lastPosition = newLast.position
         }
-        if (!newFirst.isEmpty && firstElements.isEmpty()) {
-            firstElements += newFirst
+        if (!newFirst.isEmpty && index.isEmpty) {
             header.firstPosition = newFirst.position
         }
+        // only extend the index if it contains all previous elements
+        if (index.size == header.count) {
+            index.addAll(written)
+        }
         header.count += count
-        header.write()
+        commitHeader(dataChanged = true)
         modCount.incrementAndGet()
     }
 
@@ -431,25 +687,31 @@ constructor(private val storage: QueueStorage) : Closeable, Iterable<InputStream
 
         compact(position, beginningOfFirstElement, oldLength)
 
+        // the older header slot does not match the moved data, so always force this to disk
+        storage.sync()
         header.write()
+        storage.sync()
+        syncTimer.synced()
     }
 
     // Calculate the position of the tail end of the data in the ring buffer
     // If the buffer is split, we need to make it contiguous
     private fun compact(position: Long, beginningOfFirstElement: Long, newBufferPosition: Long) {
         if (position <= beginningOfFirstElement) {
-            if (position > QUEUE_HEADER_LENGTH) {
-                val count = position - QUEUE_HEADER_LENGTH
-                storage.move(QUEUE_HEADER_LENGTH, newBufferPosition, count)
+            val headerLength = header.headerLength
+            if (position > headerLength) {
+                val count = position - headerLength
+                storage.move(headerLength, newBufferPosition, count)
             }
             modCount.incrementAndGet()
 
             // Last position was moved forward in the copy
-            val positionUpdate = newBufferPosition - QUEUE_HEADER_LENGTH
+            val positionUpdate = newBufferPosition - headerLength
             if (header.lastPosition < beginningOfFirstElement) {
                 header.lastPosition += positionUpdate
                 last.position = header.lastPosition
             }
+            index.shiftPositions(beginningOfFirstElement, positionUpdate)
         }
     }
 
@@ -457,12 +719,27 @@ constructor(private val storage: QueueStorage) : Closeable, Iterable<InputStream
         private val logger = LoggerFactory.getLogger(QueueFile::class.java)
 
         @Throws(IOException::class)
-        fun newDirect(file: File, maxSize: Long): QueueFile {
+        @JvmOverloads
+        fun newDirect(file: File, maxSize: Long, recover: Boolean = false): QueueFile {
             return try {
                 QueueFile(
                     BufferedQueueStorage(
                         DirectQueueFileStorage(file, DirectQueueFileStorage.MINIMUM_LENGTH, maxSize)
-                    )
+                    ),
+                    recover,
+                )
+            } catch (ex: IllegalArgumentException) {
+                throw IOException("Cannot create queue", ex)
+            }
+        }
+
+        @Throws(IOException::class)
+        @JvmOverloads
+        fun newMapped(file: File, maxSize: Long, recover: Boolean = false): QueueFile {
+            return try {
+                QueueFile(
+                    MappedQueueFileStorage(file, MappedQueueFileStorage.MINIMUM_LENGTH, maxSize),
+                    recover,
                 )
             } catch (ex: IllegalArgumentException) {
                 throw IOException("Cannot create queue", ex)
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarbase.util
+
+import org.radarbase.util.IO.requireIO
+import java.io.IOException
+import java.io.InputStream
+
+/**
+ * Checksum that [QueueFile] elements are stored with, in addition to the single byte checksum of
+ * the element length. Like the codec, it is recorded in the queue header.
+ */
+enum class QueueFileChecksum(
+    /** Identifier of the checksum in the queue header. */
+    internal val id: Int,
+    /** Number of bytes that the checksum adds to each element. */
+    internal val length: Int,
+) {
+    /** Element data is not verified. */
+    NONE(0, 0),
+    /** Each element ends with the CRC-32C of its stored data. */
+    CRC32C(1, 4);
+
+    companion object {
+        @Throws(IOException::class)
+        internal fun fromId(id: Int): QueueFileChecksum = values().find { it.id == id }
+            ?: throw IOException("Queue file checksum $id is not supported")
+    }
+}
+
+/**
+ * InputStream of element data that is followed by its CRC-32C. The checksum is verified once
+ * all data has been read or skipped.
+ *
+ * @param input stream of the stored element, including the checksum.
+ * @param length length of the element data, excluding the checksum.
+ */
+internal class ChecksumElementInputStream(
+    private val input: InputStream,
+    private val length: Int,
+) : InputStream() {
+    private val checksum = Crc32c()
+    private var position: Int = 0
+    private var isVerified = false
+
+    override fun available(): Int = length - position
+
+    @Throws(IOException::class)
+    override fun read(): Int {
+        if (position >= length) {
+            verify()
+            return -1
+        }
+        val result = input.read()
+        requireIO(result != -1) { "Element is truncated" }
+        checksum.update(result)
+        position++
+        if (position == length) verify()
+        return result
+    }
+
+    @Throws(IOException::class)
+    override fun read(bytes: ByteArray, offset: Int, count: Int): Int {
+        if (offset < 0 || count < 0 || count > bytes.size - offset) throw IndexOutOfBoundsException()
+        if (position >= length) {
+            verify()
+            return -1
+        }
+        if (count == 0) return 0
+        val numRead = input.read(bytes, offset, count.coerceAtMost(length - position))
+        requireIO(numRead > 0) { "Element is truncated" }
+        checksum.update(bytes, offset, numRead)
+        position += numRead
+        if (position == length) verify()
+        return numRead
+    }
+
+    /** Skipped data is still read, so that the checksum can be verified. */
+    @Throws(IOException::class)
+    override fun skip(n: Long): Long {
+        val toSkip = n.coerceIn(0L, available().toLong()).toInt()
+        val skipBuffer = ByteArray(toSkip.coerceAtMost(SKIP_BUFFER_SIZE))
+        var numSkipped = 0
+        while (numSkipped < toSkip) {
+            numSkipped += read(skipBuffer, 0, (toSkip - numSkipped).coerceAtMost(skipBuffer.size))
+        }
+        return numSkipped.toLong()
+    }
+
+    @Throws(IOException::class)
+    private fun verify() {
+        if (isVerified) return
+        isVerified = true
+        var stored = 0L
+        repeat(4) {
+            val b = input.read()
+            requireIO(b != -1) { "Element checksum is truncated" }
+            stored = (stored shl 8) or b.toLong()
+        }
+        requireIO(stored == checksum.value) { "Element checksum does not match; queue file is corrupted" }
+    }
+
+    override fun close() = input.close()
+
+    companion object {
+        private const val SKIP_BUFFER_SIZE = 4096
+    }
+}
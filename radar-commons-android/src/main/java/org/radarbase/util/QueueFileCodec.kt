@@ -0,0 +1,247 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarbase.util
+
+import org.radarbase.util.IO.requireIO
+import java.io.ByteArrayOutputStream
+import java.io.Closeable
+import java.io.IOException
+import java.io.InputStream
+import java.nio.ByteBuffer
+import java.util.zip.DataFormatException
+import java.util.zip.Deflater
+import java.util.zip.Inflater
+
+/**
+ * Codec that [QueueFile] elements are encoded with. The codec is recorded in the queue header,
+ * so that a queue is always read with the codec it was written with.
+ */
+enum class QueueFileCodec(
+    /** Identifier of the codec in the queue header. */
+    internal val id: Int,
+) {
+    /** Elements are stored as written. */
+    NONE(0) {
+        override fun createCodec(): ElementCodec? = null
+    },
+    /**
+     * Elements are compressed with Deflate. Elements that do not get smaller by compressing them
+     * are stored as written.
+     */
+    DEFLATE(1) {
+        override fun createCodec(): ElementCodec = DeflateElementCodec()
+    };
+
+    /** Create a codec to encode and decode elements with, or null if elements are not encoded. */
+    internal abstract fun createCodec(): ElementCodec?
+
+    companion object {
+        @Throws(IOException::class)
+        internal fun fromId(id: Int): QueueFileCodec = values().find { it.id == id }
+            ?: throw IOException("Queue file codec $id is not supported")
+    }
+}
+
+/** Encodes and decodes the data of single elements. Implementations are not thread-safe. */
+internal interface ElementCodec : Closeable {
+    /**
+     * Encode the first [length] bytes of [data]. The returned buffer is only valid until the next
+     * call to this method.
+     */
+    fun encode(data: ByteArray, length: Int): ByteBuffer
+
+    /**
+     * Decode the first [length] bytes of [data] to the original element data. The [data] array
+     * must be at least one byte longer than [length].
+     * @throws IOException if the data is not correctly encoded.
+     */
+    @Throws(IOException::class)
+    fun decode(data: ByteArray, length: Int): ByteArray
+}
+
+/**
+ * Element codec using Deflate. Encoded elements start with a variable-length integer containing
+ * the original data length times two, plus one if the data is compressed. The compressed data has
+ * no zlib header, since the length of the data already identifies it.
+ */
+internal class DeflateElementCodec : ElementCodec {
+    private val deflater = Deflater(Deflater.BEST_SPEED, true)
+    private val inflater = Inflater(true)
+    private var output = ByteArray(INITIAL_OUTPUT_SIZE)
+
+    override fun encode(data: ByteArray, length: Int): ByteBuffer {
+        val headerLength = varIntLength(length.toLong() shl 1)
+        if (output.size < headerLength + length) {
+            output = ByteArray(headerLength + length)
+        }
+
+        deflater.reset()
+        deflater.setInput(data, 0, length)
+        deflater.finish()
+        var compressedLength = 0
+        // stop as soon as the compressed data is not smaller than the original
+        while (!deflater.finished() && compressedLength < length) {
+            compressedLength += deflater.deflate(output, headerLength + compressedLength, length - compressedLength)
+        }
+
+        val isCompressed = deflater.finished() && compressedLength < length
+        val payloadLength = if (isCompressed) {
+            compressedLength
+        } else {
+            System.arraycopy(data, 0, output, headerLength, length)
+            length
+        }
+        writeVarInt(output, (length.toLong() shl 1) or (if (isCompressed) 1L else 0L))
+        return ByteBuffer.wrap(output, 0, headerLength + payloadLength)
+    }
+
+    @Throws(IOException::class)
+    override fun decode(data: ByteArray, length: Int): ByteArray {
+        val header = readVarInt(data, length)
+        val headerLength = varIntLength(header)
+        val originalLength = header ushr 1
+        requireIO(originalLength <= Int.MAX_VALUE) { "Element length $originalLength is too large" }
+        val result = ByteArray(originalLength.toInt())
+
+        if (header and 1L == 0L) {
+            requireIO(length - headerLength == result.size) { "Stored element length does not match" }
+            System.arraycopy(data, headerLength, result, 0, result.size)
+            return result
+        }
+
+        inflater.reset()
+        // the inflater may need an extra byte after compressed data without zlib header
+        inflater.setInput(data, headerLength, length - headerLength + 1)
+        try {
+            var decompressedLength = 0
+            while (decompressedLength < result.size) {
+                val numInflated = inflater.inflate(result, decompressedLength, result.size - decompressedLength)
+                requireIO(numInflated > 0 || !(inflater.needsInput() || inflater.finished())) {
+                    "Compressed element is truncated"
+                }
+                decompressedLength += numInflated
+            }
+        } catch (ex: DataFormatException) {
+            throw IOException("Compressed element is corrupted", ex)
+        }
+        return result
+    }
+
+    override fun close() {
+        deflater.end()
+        inflater.end()
+    }
+
+    companion object {
+        private const val INITIAL_OUTPUT_SIZE = 1024
+
+        private fun varIntLength(value: Long): Int {
+            var length = 1
+            var remaining = value ushr 7
+            while (remaining != 0L) {
+                length++
+                remaining = remaining ushr 7
+            }
+            return length
+        }
+
+        private fun writeVarInt(array: ByteArray, value: Long) {
+            var remaining = value
+            var i = 0
+            while (remaining and 0x7FL.inv() != 0L) {
+                array[i++] = ((remaining and 0x7FL) or 0x80L).toByte()
+                remaining = remaining ushr 7
+            }
+            array[i] = remaining.toByte()
+        }
+
+        @Throws(IOException::class)
+        private fun readVarInt(array: ByteArray, length: Int): Long {
+            var result = 0L
+            var i = 0
+            while (true) {
+                requireIO(i < length && i < 9) { "Element header is corrupted" }
+                val b = array[i].toLong()
+                result = result or ((b and 0x7FL) shl (7 * i))
+                i++
+                if (b and 0x80L == 0L) return result
+            }
+        }
+    }
+}
+
+/**
+ * InputStream of an element that was encoded with [codec]. The element is decoded when it is
+ * first read.
+ */
+internal class DecodedElementInputStream(
+    private val input: InputStream,
+    private val length: Int,
+    private val codec: ElementCodec,
+) : InputStream() {
+    private var data: ByteArray? = null
+    private var position: Int = 0
+
+    @Throws(IOException::class)
+    private fun decoded(): ByteArray = data ?: run {
+        val encoded = ByteArray(length + 1)
+        var numRead = 0
+        while (numRead < length) {
+            val n = input.read(encoded, numRead, length - numRead)
+            requireIO(n > 0) { "Element is truncated" }
+            numRead += n
+        }
+        codec.decode(encoded, length)
+            .also { data = it }
+    }
+
+    @Throws(IOException::class)
+    override fun available(): Int = decoded().size - position
+
+    @Throws(IOException::class)
+    override fun read(): Int {
+        val bytes = decoded()
+        return if (position < bytes.size) bytes[position++].toInt() and 0xFF else -1
+    }
+
+    @Throws(IOException::class)
+    override fun read(bytes: ByteArray, offset: Int, count: Int): Int {
+        if (offset < 0 || count < 0 || count > bytes.size - offset) throw IndexOutOfBoundsException()
+        val source = decoded()
+        if (position >= source.size) return -1
+        val numRead = count.coerceAtMost(source.size - position)
+        System.arraycopy(source, position, bytes, offset, numRead)
+        position += numRead
+        return numRead
+    }
+
+    @Throws(IOException::class)
+    override fun skip(n: Long): Long {
+        val numSkipped = n.coerceIn(0L, available().toLong()).toInt()
+        position += numSkipped
+        return numSkipped.toLong()
+    }
+
+    override fun close() = input.close()
+}
+
+/** Buffer for an element that is encoded once it is complete. */
+internal class ElementBuffer : ByteArrayOutputStream() {
+    /** Internal buffer, containing [size] bytes of element data. */
+    val buffer: ByteArray
+        get() = buf
+}
@@ -70,19 +70,6 @@ class QueueFileElement(position: Long = 0L, length: Int = 0) {
         this.length = element.length
     }
 
-    /**
-     * Update the current position if it was moved. This is deduced from the previous element's
-     * position and length and from the file length.
-     */
-    fun updateIfMoved(previousElement: QueueFileElement, header: QueueFileHeader) {
-        if (
-            position < previousElement.position
-            && previousElement.nextPosition < header.length
-        ) {
-            position = previousElement.nextPosition
-        }
-    }
-
     /** Sets the element to empty.  */
     fun reset() {
         position = 0
@@ -19,10 +19,21 @@ package org.radarbase.util
 import org.radarbase.util.IO.requireIO
 import java.io.IOException
 import java.nio.ByteBuffer
+import java.util.zip.CRC32
 
 /**
  * Header for a [QueueFile].
  *
+ * The header consists of two slots that are written alternately, each with a sequence number
+ * and a checksum. When the queue is opened, the valid slot with the highest sequence number is
+ * used, provided that its first and last element are intact. A torn or lost header write therefore
+ * falls back to the previous header, and the header does not need to be forced to disk before
+ * every update. The previous header is only used if the headers of all its elements are intact;
+ * otherwise the queue is considered corrupt and left to recovery.
+ *
+ * Files with the legacy single header of version 1 are still read and written in their original
+ * format. They are upgraded to the current format when the queue is cleared.
+ *
  * This class is an adaptation of com.squareup.tape2, allowing multi-element writes. It also
  * removes legacy support.
  *
@@ -32,16 +43,27 @@ class QueueFileHeader
  * QueueFileHeader that matches storage. If the storage already existed, the header is read from
  * the file. Otherwise, the header is initialized and written to file.
  * @param storage medium to write to.
+ * @param recover whether to use a header that refers to elements that are not intact.
  * @throws IOException if the storage cannot be read or contains invalid data.
  */
 @Throws(IOException::class)
+@JvmOverloads
 constructor(
     /** Storage to read and write the header. */
     private val storage: QueueStorage,
+    /**
+     * Whether to accept the most recent header slot with a valid checksum, even if the elements
+     * it refers to are not intact. The [QueueFile] is then responsible for finding the elements
+     * that can still be read.
+     */
+    recover: Boolean = false,
 ) {
 
     /** Buffer to read and store the header with.  */
-    private val headerBuffer = ByteBuffer.allocate(QUEUE_HEADER_LENGTH.toInt())
+    private val headerBuffer = ByteBuffer.allocate(SLOT_LENGTH.toInt())
+
+    /** Buffer to verify element headers with.  */
+    private val elementHeaderBuffer = ByteBuffer.allocate(QueueFileElement.ELEMENT_HEADER_LENGTH)
 
     /**
      * Cached file length. Always a power of 2.
@@ -55,10 +77,22 @@ constructor(
     var count: Int = 0
 
     val dataLength: Long
-        get() = length - QUEUE_HEADER_LENGTH
+        get() = length - headerLength
+
+    /** Version number, either [VERSIONED_HEADER] or [LEGACY_VERSIONED_HEADER].  */
+    var version: Int = VERSIONED_HEADER
+        private set
 
-    /** Version number. Currently fixed to [VERSIONED_HEADER].  */
-    private val version: Int
+    /** Whether the header has the legacy single slot format. */
+    val isLegacy: Boolean
+        get() = version == LEGACY_VERSIONED_HEADER
+
+    /** Number of bytes at the start of the storage that are reserved for the header. */
+    val headerLength: Long
+        get() = if (isLegacy) LEGACY_QUEUE_HEADER_LENGTH else QUEUE_HEADER_LENGTH
+
+    /** Sequence number of the last written header slot. */
+    private var sequence: Long = 0L
 
     /** Position of the first (front-most) element in the queue.  */
     var firstPosition: Long = 0
@@ -66,56 +100,260 @@ constructor(
     /** Position of the last (back-most) element in the queue.  */
     var lastPosition: Long = 0
 
+    /**
+     * Codec that elements are encoded with. This should only be changed if the queue is empty.
+     * Legacy headers cannot store a codec.
+     */
+    var codec: QueueFileCodec = QueueFileCodec.NONE
+        set(value) {
+            require(value == QueueFileCodec.NONE || !isLegacy) { "Legacy queue header cannot store codec $value" }
+            field = value
+        }
+
+    /**
+     * Checksum that elements are stored with. This should only be changed if the queue is empty.
+     * Legacy headers cannot store a checksum.
+     */
+    var checksum: QueueFileChecksum = QueueFileChecksum.NONE
+        set(value) {
+            require(value == QueueFileChecksum.NONE || !isLegacy) { "Legacy queue header cannot store checksum $value" }
+            field = value
+        }
+
+    /**
+     * Number of parts of the first element that were already processed. Legacy headers cannot
+     * store a head offset.
+     */
+    var headOffset: Int = 0
+        set(value) {
+            require(value in 0..MAXIMUM_HEAD_OFFSET) { "Head offset $value is out of range" }
+            require(value == 0 || !isLegacy) { "Legacy queue header cannot store head offset $value" }
+            field = value
+        }
+
     private val crc: Int
         get() = hashCode()
 
     init {
-        version = VERSIONED_HEADER
         if (this.storage.isPreExisting) {
-            read()
+            read(recover)
         } else {
+            storage.headerLength = headerLength
             length = this.storage.length
             requireIO(dataLength >= 0) { "Storage $storage does not contain header." }
             count = 0
             firstPosition = 0L
             lastPosition = 0L
+            // start with the first slot
+            sequence = -1L
             write()
         }
     }
 
     /** To initialize the header, read it from file.  */
     @Throws(IOException::class)
-    private fun read() {
-        headerBuffer.rewind()
+    private fun read(recover: Boolean) {
+        headerBuffer.clear()
+        headerBuffer.limit(4)
         storage.readFully(0L, headerBuffer)
+        if (headerBuffer.getInt(0) == LEGACY_VERSIONED_HEADER) {
+            version = LEGACY_VERSIONED_HEADER
+            storage.headerLength = headerLength
+            readLegacy()
+            return
+        }
+
+        storage.headerLength = headerLength
+        val failures = mutableListOf<String>()
+        val slots = (0 until SLOT_COUNT)
+            .mapNotNull { slot ->
+                try {
+                    readSlot(slot)
+                } catch (ex: IOException) {
+                    failures += "slot $slot: ${ex.message}"
+                    null
+                }
+            }
+            .sortedByDescending { it.sequence }
+        slots
+            .withIndex()
+            .firstOrNull { (i, slot) ->
+                try {
+                    if (i == 0) slot.verifyElements() else slot.verifyAllElements()
+                    true
+                } catch (ex: IOException) {
+                    failures += "slot sequence ${slot.sequence}: ${ex.message}"
+                    false
+                }
+            }
+            ?.let { (_, slot) -> load(slot) }
+            ?: slots.firstOrNull()?.takeIf { recover }?.let { slot -> load(slot) }
+            ?: throw IOException("Queue storage $storage was corrupted: no valid header. $failures")
+    }
+
+    /** Use the values of given header slot. */
+    private fun load(slot: HeaderSlot) {
+        sequence = slot.sequence
+        length = slot.length
+        count = slot.count
+        firstPosition = slot.firstPosition
+        lastPosition = slot.lastPosition
+        codec = slot.codec
+        checksum = slot.checksum
+        headOffset = slot.headOffset
+    }
+
+    /** Read and validate a header slot of the current format. */
+    @Throws(IOException::class)
+    private fun readSlot(slot: Int): HeaderSlot {
+        headerBuffer.clear()
+        storage.readFully(slot * SLOT_LENGTH, headerBuffer)
         headerBuffer.flip()
 
         val version = headerBuffer.int
         requireIO(version == VERSIONED_HEADER) { "Storage $storage is not recognized as a queue file." }
+        requireIO(slotCrc() == headerBuffer.getInt(SLOT_LENGTH.toInt() - 4)) { "Queue storage $storage was corrupted: checksum does not match." }
+        val flags = headerBuffer.int
+        val header = HeaderSlot(
+            codec = QueueFileCodec.fromId(flags and CODEC_MASK),
+            checksum = QueueFileChecksum.fromId(flags and CHECKSUM_MASK ushr CHECKSUM_SHIFT),
+            headOffset = flags ushr HEAD_OFFSET_SHIFT,
+            sequence = headerBuffer.long,
+            length = headerBuffer.long,
+            count = headerBuffer.int,
+            firstPosition = headerBuffer.long,
+            lastPosition = headerBuffer.long,
+        )
+        header.validate()
+        return header
+    }
+
+    /** To initialize a legacy header, read it from file.  */
+    @Throws(IOException::class)
+    private fun readLegacy() {
+        headerBuffer.clear()
+        headerBuffer.limit(LEGACY_QUEUE_HEADER_LENGTH.toInt())
+        storage.readFully(0L, headerBuffer)
+        headerBuffer.flip()
+
+        headerBuffer.int // version
         length = headerBuffer.long
-        requireIO(length <= storage.length) { "File is truncated. Expected length: $length, Actual length: ${storage.length}" }
         count = headerBuffer.int
         firstPosition = headerBuffer.long
         lastPosition = headerBuffer.long
+        HeaderSlot(QueueFileCodec.NONE, QueueFileChecksum.NONE, 0, 0L, length, count, firstPosition, lastPosition).validate()
+        requireIO(crc == headerBuffer.int) { "Queue storage $storage was corrupted: checksum does not match." }
+    }
 
-        requireIO(dataLength >= 0) { "File length in $storage header too small" }
+    @Throws(IOException::class)
+    private fun HeaderSlot.validate() {
+        requireIO(length <= storage.length) { "File is truncated. Expected length: $length, Actual length: ${storage.length}" }
+        requireIO(length - headerLength >= 0) { "File length in $storage header too small" }
         val lengthRange = 0 .. length
         requireIO(firstPosition in lengthRange) { "First element offset $firstPosition points outside of storage $storage" }
         requireIO(lastPosition in lengthRange) { "Last element offset $lastPosition points outside of storage $storage" }
         requireIO(count >= 0) { "Number of elements $count must be positive in $storage" }
         requireIO(count == 0 || (firstPosition != 0L && lastPosition != 0L)) { "A non-empty queue (size $count) must have a non-zero first $firstPosition and last $lastPosition position." }
-        requireIO(crc == headerBuffer.int) { "Queue storage $storage was corrupted: checksum does not match." }
     }
 
     /**
-     * Writes the header to file in a single write operation. This will flush the storage.
+     * Verify that the first and last element that the header refers to have been written.
+     * Element data is not forced to disk before every header update, so after a system crash
+     * the latest header may refer to elements that were lost.
+     */
+    @Throws(IOException::class)
+    private fun HeaderSlot.verifyElements() {
+        if (count == 0) return
+        requireIO(firstPosition >= headerLength && lastPosition >= headerLength) {
+            "Element positions overlap with the header in $storage"
+        }
+        verifyElement(firstPosition)
+        verifyElement(lastPosition)
+    }
+
+    /**
+     * Verify that all elements that the header refers to form an intact chain from the first to
+     * the last element. This is used for an older header slot: after the newer slot failed, its
+     * first and last element may have been overwritten by later writes that were only partly
+     * persisted, so the single byte checksum of the first and last element alone is not
+     * sufficient evidence that the elements in between are intact.
+     */
+    @Throws(IOException::class)
+    private fun HeaderSlot.verifyAllElements() {
+        verifyElements()
+        var position = firstPosition
+        var bytesScanned = 0L
+        for (i in 1 .. count) {
+            requireIO(position in headerLength until length) {
+                "Element $i of $count at $position points outside of storage $storage"
+            }
+            val elementLength = verifyElement(position)
+            bytesScanned += elementLength + QueueFileElement.ELEMENT_HEADER_LENGTH
+            requireIO(bytesScanned <= length - headerLength) {
+                "Elements of $storage exceed the data length ${length - headerLength}"
+            }
+            if (i < count) {
+                val next = position + QueueFileElement.ELEMENT_HEADER_LENGTH + elementLength
+                position = if (next < length) next else headerLength + next - length
+            }
+        }
+        requireIO(position == lastPosition) {
+            "Element chain of $storage ends at $position instead of last position $lastPosition"
+        }
+    }
+
+    /**
+     * Verify the header of the element at given position.
+     * @return length of the element data.
+     */
+    @Throws(IOException::class)
+    private fun verifyElement(position: Long): Int {
+        elementHeaderBuffer.clear()
+        storage.readFully(position, elementHeaderBuffer)
+        elementHeaderBuffer.flip()
+        val elementLength = elementHeaderBuffer.int
+        requireIO(elementLength > 0 && elementHeaderBuffer.get() == QueueFileElement.crc(elementLength)) {
+            "Element at $position is not correct"
+        }
+        return elementLength
+    }
+
+    /**
+     * Writes the header to file in a single write operation. This does not force the header to
+     * disk; the [QueueFile] does so according to its durability policy.
      * @throws IOException if the header could not be written
      */
     @Throws(IOException::class)
     fun write() {
+        if (isLegacy) {
+            writeLegacy()
+            return
+        }
+        sequence++
         headerBuffer.apply {
-            rewind()
+            clear()
             putInt(VERSIONED_HEADER)
+            putInt((codec.id and CODEC_MASK)
+                or (checksum.id shl CHECKSUM_SHIFT and CHECKSUM_MASK)
+                or (headOffset shl HEAD_OFFSET_SHIFT)) // flags
+            putLong(sequence)
+            putLong(length)
+            putInt(count)
+            putLong(firstPosition)
+            putLong(lastPosition)
+            putInt(slotCrc())
+
+            // then write the byte buffer out in one go
+            flip()
+        }
+        storage.writeFully((sequence and 1L) * SLOT_LENGTH, headerBuffer)
+    }
+
+    @Throws(IOException::class)
+    private fun writeLegacy() {
+        headerBuffer.apply {
+            clear()
+            putInt(LEGACY_VERSIONED_HEADER)
             putLong(length)
             putInt(count)
             putLong(firstPosition)
@@ -126,7 +364,12 @@ constructor(
             flip()
         }
         storage.writeFully(0L, headerBuffer)
-        storage.flush()
+    }
+
+    /** Checksum of the slot contents in [headerBuffer], excluding the checksum itself. */
+    private fun slotCrc(): Int = CRC32().run {
+        update(headerBuffer.array(), 0, SLOT_LENGTH.toInt() - 4)
+        value.toInt()
     }
 
     /**
@@ -156,20 +399,66 @@ constructor(
                 && lastPosition == other.lastPosition
     }
 
-    override fun toString() = "QueueFileHeader[length=$length, size=$count, first=$firstPosition, last=$lastPosition]"
+    override fun toString() = "QueueFileHeader[version=$version, sequence=$sequence, length=$length, size=$count, first=$firstPosition, last=$lastPosition, codec=$codec, checksum=$checksum, headOffset=$headOffset]"
 
-    /** Clear the positions and count. This does not change the stored file length.  */
+    /**
+     * Clear the positions, count and head offset. This does not change the stored file length.
+     * A legacy header is upgraded to the current format, since no data is stored anymore.
+     */
     fun clear() {
         count = 0
+        headOffset = 0
         firstPosition = 0L
         lastPosition = 0L
+        if (isLegacy) {
+            version = VERSIONED_HEADER
+            storage.headerLength = headerLength
+            // overwrite the legacy header with the first slot
+            sequence = -1L
+        }
     }
 
+    private data class HeaderSlot(
+        val codec: QueueFileCodec,
+        val checksum: QueueFileChecksum,
+        val headOffset: Int,
+        val sequence: Long,
+        val length: Long,
+        val count: Int,
+        val firstPosition: Long,
+        val lastPosition: Long,
+    )
+
     companion object {
+        /** Length of a single header slot in bytes. */
+        private const val SLOT_LENGTH = 48L
+
+        /** Bits of the header flags that contain the codec identifier. */
+        private const val CODEC_MASK = 0xFF
+
+        /** Bits of the header flags that contain the element checksum identifier. */
+        private const val CHECKSUM_MASK = 0xFF00
+        private const val CHECKSUM_SHIFT = 8
+
+        /** Bits of the header flags above this shift contain the head offset. */
+        private const val HEAD_OFFSET_SHIFT = 16
+
+        /** Maximum head offset that the header can store. */
+        const val MAXIMUM_HEAD_OFFSET = 0xFFFF
+
+        /** Number of header slots that are written alternately. */
+        private const val SLOT_COUNT = 2
+
         /** The header length in bytes.  */
-        const val QUEUE_HEADER_LENGTH = 36L
+        const val QUEUE_HEADER_LENGTH = SLOT_COUNT * SLOT_LENGTH
+
+        /** The header length in bytes of a legacy single slot header.  */
+        const val LEGACY_QUEUE_HEADER_LENGTH = 36L
+
+        /** Version of the double slot header.  */
+        private const val VERSIONED_HEADER = 0x00000002
 
         /** Leading bit set to 1 indicating a versioned header and the version of 1.  */
-        private const val VERSIONED_HEADER = 0x00000001
+        private const val LEGACY_VERSIONED_HEADER = 0x00000001
     }
 }
@@ -21,7 +21,6 @@ import org.radarbase.util.IO.requireIO
 import org.radarbase.util.QueueFileElement.Companion.ELEMENT_HEADER_LENGTH
 import org.slf4j.LoggerFactory
 import java.io.IOException
-import java.io.OutputStream
 import java.nio.ByteBuffer
 
 /**
@@ -37,7 +36,7 @@ class QueueFileOutputStream internal constructor(
         private val header: QueueFileHeader,
         private val storage: QueueStorage,
         position: Long,
-) : OutputStream() {
+) : ElementOutputStream() {
     private var storagePosition: Long = storage.wrapPosition(position)
 
     private var isClosed: Boolean = false
@@ -52,6 +51,9 @@ class QueueFileOutputStream internal constructor(
      */
     private val newFirst = QueueFileElement()
 
+    /** Leading elements written in this stream, as far as they fit in the queue index. */
+    private val written = ElementIndex(queue.elementIndexCapacity)
+
     /** Number of elements written in this stream. */
     private var elementsWritten: Int = 0
 
@@ -60,9 +62,24 @@ class QueueFileOutputStream internal constructor(
     /** Number of bytes that have been committed to file by this stream. */
     private var streamBytesUsed: Long = 0L
 
+    /** Value of [streamBytesUsed] before the current element was written. */
+    private var elementStartBytesUsed: Long = 0L
+
     /** Buffer to write an element header to. */
     private val elementHeaderBuffer = ByteBuffer.allocate(ELEMENT_HEADER_LENGTH)
 
+    /** Codec to encode elements with, or null if they are written directly. */
+    private val codec: ElementCodec? = queue.elementCodec
+
+    /** Data of the current element, if it is encoded once it is complete. */
+    private val pendingElement: ElementBuffer? = codec?.let { ElementBuffer() }
+
+    /** Checksum of the current element data, if elements are stored with a checksum. */
+    private val checksum: Crc32c? = Crc32c().takeIf { header.checksum == QueueFileChecksum.CRC32C }
+
+    /** Buffer to write an element checksum from. */
+    private val checksumBuffer = ByteBuffer.allocate(QueueFileChecksum.CRC32C.length)
+
     @Throws(IOException::class)
     override fun write(byteValue: Int) {
         singleByteBuffer[0] = (byteValue and 0xFF).toByte()
@@ -75,10 +92,32 @@ class QueueFileOutputStream internal constructor(
         if (count == 0) return  // no action needed
         checkNotClosed()
 
+        if (pendingElement != null) {
+            pendingElement.write(bytes, offset, count)
+        } else {
+            writeData(bytes, offset, count)
+        }
+    }
+
+    /** Write data of the current element to storage. */
+    @Throws(IOException::class)
+    private fun writeData(bytes: ByteArray, offset: Int, count: Int) {
         writeInitialHeader(count)
 
         storagePosition = storage.writeFully(storagePosition, ByteBuffer.wrap(bytes, offset, count))
         current.length += count
+        checksum?.update(bytes, offset, count)
+    }
+
+    /** Write the checksum of the current element data after that data. */
+    @Throws(IOException::class)
+    private fun writeChecksum(checksum: Crc32c) {
+        ensureCapacity(checksumBuffer.capacity().toLong())
+        checksumBuffer.clear()
+        checksumBuffer.putInt(checksum.value.toInt())
+        checksumBuffer.flip()
+        storagePosition = storage.writeFully(storagePosition, checksumBuffer)
+        current.length += checksumBuffer.capacity()
     }
 
     /** If the current element has not yet been written to, first write a header.
@@ -88,6 +127,7 @@ class QueueFileOutputStream internal constructor(
         if (current.isEmpty) {
             ensureCapacity(ELEMENT_HEADER_LENGTH + count.toLong())
             storagePosition = writeHeader(storagePosition, 0, 0, false)
+            checksum?.reset()
         } else {
             ensureCapacity(count.toLong())
         }
@@ -113,11 +153,19 @@ class QueueFileOutputStream internal constructor(
      * @throws IOException if the QueueFileStorage cannot be written to
      */
     @Throws(IOException::class)
-    operator fun next() {
+    override operator fun next() {
         checkNotClosed()
+        if (codec != null && pendingElement != null && pendingElement.size() > 0) {
+            val encoded = codec.encode(pendingElement.buffer, pendingElement.size())
+            // the element is discarded if it does not fit
+            pendingElement.reset()
+            writeData(encoded.array(), encoded.arrayOffset() + encoded.position(), encoded.remaining())
+        }
         // No data was written in this element. Skipping.
         if (current.isEmpty) return
 
+        checksum?.let { writeChecksum(it) }
+
         newLast.update(current)
         if (newFirst.isEmpty && queue.isEmpty) {
             newFirst.update(current)
@@ -128,7 +176,17 @@ class QueueFileOutputStream internal constructor(
 
         writeHeader(newLast.position, newLast.length, newLast.crc, true)
 
+        written.add(newLast)
         elementsWritten++
+        elementStartBytesUsed = streamBytesUsed
+    }
+
+    /** Discard the element that is currently being written, so the next element overwrites it. */
+    override fun discardElement() {
+        pendingElement?.reset()
+        storagePosition = current.position
+        current.length = 0
+        streamBytesUsed = elementStartBytesUsed
     }
 
     /**
@@ -174,11 +232,15 @@ class QueueFileOutputStream internal constructor(
         queue.growStorage(newLength, storagePosition, beginningOfFirstElement)
 
         if (storagePosition <= beginningOfFirstElement) {
-            val positionUpdate = oldLength - QueueFileHeader.QUEUE_HEADER_LENGTH
+            val positionUpdate = oldLength - header.headerLength
 
             if (current.position <= beginningOfFirstElement) {
                 current.position += positionUpdate
             }
+            if (!newLast.isEmpty && newLast.position < beginningOfFirstElement) {
+                newLast.position += positionUpdate
+            }
+            written.shiftPositions(beginningOfFirstElement, positionUpdate)
             storagePosition += positionUpdate
         }
     }
@@ -197,7 +259,7 @@ class QueueFileOutputStream internal constructor(
             next()
             flush()
             if (elementsWritten > 0) {
-                queue.commitOutputStream(newFirst, newLast, elementsWritten)
+                queue.commitOutputStream(newFirst, newLast, written, elementsWritten)
             }
         } finally {
             isClosed = true
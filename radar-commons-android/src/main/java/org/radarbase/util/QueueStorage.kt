@@ -16,7 +16,6 @@
 
 package org.radarbase.util
 
-import org.radarbase.util.QueueFileHeader.Companion.QUEUE_HEADER_LENGTH
 import java.io.Closeable
 import java.io.Flushable
 import java.io.IOException
@@ -50,6 +49,12 @@ interface QueueStorage : Closeable, Flushable {
     /** Whether underlying file existed when the current queue storage was created.  */
     val isPreExisting: Boolean
 
+    /**
+     * Number of bytes reserved for the queue header at the start of the storage. Data that wraps
+     * around continues after the header.
+     */
+    var headerLength: Long
+
     /**
      * Write data to storage medium. The position will wrap around.
      * @param position position to write to
@@ -63,7 +68,7 @@ interface QueueStorage : Closeable, Flushable {
     fun write(position: Long, data: ByteBuffer, mayIgnoreBuffer: Boolean = false): Long
 
     fun writeFully(position: Long, data: ByteBuffer, mayIgnoreBuffer: Boolean = false): Long {
-        require(data.remaining() <= length - position.coerceAtMost(QUEUE_HEADER_LENGTH))
+        require(data.remaining() <= length - position.coerceAtMost(headerLength))
         var newPosition = position
         do {
             newPosition = write(newPosition, data, mayIgnoreBuffer)
@@ -82,7 +87,7 @@ interface QueueStorage : Closeable, Flushable {
     fun read(position: Long, data: ByteBuffer): Long
 
     fun readFully(position: Long, data: ByteBuffer): Long {
-        require(data.remaining() <= length - position.coerceAtMost(QUEUE_HEADER_LENGTH))
+        require(data.remaining() <= length - position.coerceAtMost(headerLength))
         var newPosition = position
         do {
             newPosition = read(newPosition, data)
@@ -93,8 +98,8 @@ interface QueueStorage : Closeable, Flushable {
     /**
      * Move part of the storage to another location, overwriting any data on the previous location.
      *
-     * @throws IllegalArgumentException if `srcPosition < QueueFileHeader.QUEUE_HEADER_LENGTH` or
-     * `dstPosition < QueueFileHeader.QUEUE_HEADER_LENGTH`
+     * @throws IllegalArgumentException if `srcPosition < headerLength` or
+     * `dstPosition < headerLength`
      */
     @Throws(IOException::class)
     fun move(srcPosition: Long, dstPosition: Long, count: Long)
@@ -105,19 +110,33 @@ interface QueueStorage : Closeable, Flushable {
      * it contiguously from previously written data.
      *
      * @param size new size in bytes.
-     * @throws IllegalArgumentException if `size < QueueFileHeader.QUEUE_HEADER_LENGTH` or
+     * @throws IllegalArgumentException if `size < headerLength` or
      * if the size is increased and `size > #getMaximumSize()`.
      * @throws IOException if the storage could not be resized
      */
     @Throws(IOException::class)
     fun resize(size: Long)
 
+    /**
+     * Write any buffered data to the storage medium. This does not force the data to disk, use
+     * [sync] for that.
+     */
+    @Throws(IOException::class)
+    override fun flush()
+
+    /**
+     * Write any buffered data and force it to the storage medium, so that it survives a system
+     * crash.
+     */
+    @Throws(IOException::class)
+    fun sync()
+
     /**
      * For a given virtual [position], get a valid location in this storage. This will wrap the
      * position if it exceeds [length].
      */
     fun wrapPosition(position: Long): Long {
-        val newPosition = if (position < length) position else QueueFileHeader.QUEUE_HEADER_LENGTH + position - length
+        val newPosition = if (position < length) position else headerLength + position - length
         require(newPosition < length && position >= 0) { "Position $position invalid outside of storage length $length" }
         return newPosition
     }
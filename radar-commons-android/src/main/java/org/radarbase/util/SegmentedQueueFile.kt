@@ -0,0 +1,803 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarbase.util
+
+import org.radarbase.util.IO.requireIO
+import org.radarbase.util.QueueFileElement.Companion.ELEMENT_HEADER_LENGTH
+import org.slf4j.LoggerFactory
+import java.io.Closeable
+import java.io.EOFException
+import java.io.File
+import java.io.IOException
+import java.io.InputStream
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.zip.CRC32
+
+/**
+ * A file-based FIFO queue that stores its elements in a directory of append-only segment files.
+ * Elements are appended to the last segment, and a new segment is started once the last
+ * segment has reached the segment size. Removing elements only moves the head pointer in the
+ * header; a segment file is deleted as a whole once all its elements have been removed. Data is
+ * never moved or compacted, so the queue grows in constant time and it may exceed 2 GB.
+ *
+ * Like [QueueFile], modifications are not visible until the header is written, and data that
+ * was not committed is discarded when the queue is opened again. The header file has two slots
+ * that are written alternately, so that the previous header can be used if the latest one was
+ * not written completely.
+ * <pre>
+ * Format:
+ * header           Header, consisting of two slots
+ * <id>.segment     Segments with consecutive ids, containing elements
+ *
+ * Header slot:
+ * 4 bytes          Version
+ * 8 bytes          Sequence number
+ * 4 bytes          Element count
+ * 4 bytes          Head offset
+ * 8 bytes          First segment id
+ * 8 bytes          Head element position in the first segment
+ * 8 bytes          Last segment id
+ * 8 bytes          Length of committed data in the last segment
+ * 4 bytes          Header checksum
+ *
+ * Element:
+ * 4 bytes          Data length `n`
+ * 1 byte           Element header length checksum
+ * `n` bytes          Data
+ * </pre>
+ *
+ * **Note that this implementation is not synchronized.**
+ *
+ * @param directory directory to store the queue in. It is created if it does not exist.
+ * @param segmentSize size after which a new segment is started.
+ * @param maximumFileSize maximum number of bytes that all segments together may occupy.
+ * @param recover whether to open a corrupted queue, keeping the elements that can still be read.
+ *                Each segment is cut off at its first invalid element, and later segments are
+ *                kept. Without a valid header, all segment files in the directory are used.
+ */
+class SegmentedQueueFile @Throws(IOException::class) constructor(
+    private val directory: File,
+    val segmentSize: Long,
+    maximumFileSize: Long,
+    recover: Boolean = false,
+) : ElementQueue {
+    private val headerFile = File(directory, HEADER_FILE_NAME)
+    private val headerChannel: FileChannel
+    private val headerBuffer = ByteBuffer.allocate(SLOT_LENGTH)
+    private val elementHeaderBuffer = ByteBuffer.allocate(ELEMENT_HEADER_LENGTH)
+
+    /**
+     * Segments in the queue, from eldest to newest. The first segment contains the first element,
+     * if any, and the last segment is being appended to.
+     */
+    private val segments = ArrayList<Segment>()
+
+    /** Position of the first element in the first segment. */
+    private var firstPosition: Long = 0L
+
+    override var headOffset: Int = 0
+        private set
+
+    private var isClosed: Boolean = false
+
+    /** Sequence number of the last written header slot. */
+    private var sequence: Long = 0L
+
+    private val syncTimer = QueueSyncTimer()
+
+    /** Read cursors that were created for this queue. */
+    private val cursors = ElementCursors()
+
+    override var durability: QueueDurability
+        get() = syncTimer.durability
+        set(value) {
+            syncTimer.durability = value
+        }
+
+    override var syncInterval: Long
+        get() = syncTimer.interval
+        set(value) {
+            syncTimer.interval = value
+        }
+
+    /**
+     * The number of times this queue has been structurally modified. Used by [ElementIterator]
+     * and [SegmentInputStream] to guard against concurrent modification.
+     */
+    private val modCount = AtomicInteger(0)
+
+    override var size: Int = 0
+        private set
+
+    /** Number of bytes in all committed segment data. */
+    override val fileSize: Long
+        get() = segments.sumOf { it.length }
+
+    override var maximumFileSize: Long = maximumFileSize
+        set(value) {
+            require(value >= MINIMUM_LENGTH) {
+                "Maximum cache size $value is smaller than minimum size $MINIMUM_LENGTH"
+            }
+            field = value
+        }
+
+    /** Last segment, to which new elements are appended. */
+    internal val lastSegment: Segment
+        get() = segments.last()
+
+    init {
+        require(segmentSize > ELEMENT_HEADER_LENGTH) { "Segment size $segmentSize is too small" }
+        this.maximumFileSize = maximumFileSize
+        requireIO(directory.isDirectory || directory.mkdirs()) { "Cannot create queue directory $directory" }
+
+        val isPreExisting = headerFile.exists()
+        headerChannel = RandomAccessFile(headerFile, "rw").channel
+        try {
+            if (isPreExisting || recover) {
+                readHeader(recover)
+            } else {
+                segments += Segment(directory, 0L, 0L).apply { create() }
+                // start with the first slot
+                sequence = -1L
+                writeHeader(sync = true)
+            }
+            deleteStaleSegments()
+        } catch (ex: IOException) {
+            close()
+            throw ex
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun readHeader(recover: Boolean) {
+        val failures = mutableListOf<String>()
+        val slots = (0 until SLOT_COUNT)
+            .mapNotNull { slot ->
+                try {
+                    readSlot(slot)
+                } catch (ex: IOException) {
+                    failures += "slot $slot: ${ex.message}"
+                    null
+                }
+            }
+            .sortedByDescending { it.sequence }
+        val header = slots
+            .firstOrNull { slot ->
+                try {
+                    slot.verifySegments()
+                    true
+                } catch (ex: IOException) {
+                    failures += "slot sequence ${slot.sequence}: ${ex.message}"
+                    false
+                }
+            }
+            ?: slots.firstOrNull()?.takeIf { recover }
+            ?: headerFromSegments()?.takeIf { recover }
+                ?.also { logger.warn("Queue {} has no readable header; recovering all its segments", directory) }
+            ?: throw IOException("Queue $headerFile does not have a valid header: $failures")
+
+        for (id in header.firstId..header.lastId) {
+            val segment = Segment(directory, id, 0L)
+            if (recover && !segment.file.isFile) {
+                logger.warn("Segment {} of queue {} is missing; continuing with the next segment", id, directory)
+                segment.create()
+            }
+            segment.length = if (id == header.lastId) {
+                // discard any data that was written but not committed
+                if (segment.file.length() > header.lastLength) {
+                    segment.channel.truncate(header.lastLength)
+                }
+                segment.file.length()
+            } else segment.file.length()
+            segments += segment
+        }
+
+        sequence = header.sequence
+        firstPosition = header.firstPosition
+        headOffset = header.headOffset
+        if (recover) {
+            recoverElements(header.count)
+            writeHeader(sync = true)
+        } else {
+            if (header.firstId == header.lastId) {
+                segments.first().count = header.count
+            }
+            requireIO(header.firstPosition <= segments.first().length) { "First element of queue $directory is out of range" }
+            size = header.count
+        }
+    }
+
+    /**
+     * Header that covers all segment files in the directory, to recover a queue without a
+     * readable header. Returns null if there are no segment files.
+     */
+    private fun headerFromSegments(): HeaderSlot? {
+        val ids = directory.listFiles { _, name -> name.endsWith(SEGMENT_EXTENSION) }
+            ?.mapNotNull { it.name.removeSuffix(SEGMENT_EXTENSION).toLongOrNull() }
+            ?: return null
+        val firstId = ids.minOrNull() ?: return null
+        val lastId = ids.maxOrNull() ?: return null
+        return HeaderSlot(
+            sequence = 0L,
+            count = 0,
+            headOffset = 0,
+            firstId = firstId,
+            firstPosition = 0L,
+            lastId = lastId,
+            lastLength = Segment(directory, lastId, 0L).file.length(),
+        )
+    }
+
+    /**
+     * Count the elements that can still be read from the first element onwards. Each segment is
+     * truncated at its first invalid element, and the elements in later segments are kept.
+     * @param expectedCount number of elements according to the header.
+     */
+    @Throws(IOException::class)
+    private fun recoverElements(expectedCount: Int) {
+        firstPosition = firstPosition.coerceAtMost(segments.first().length)
+        var total = 0
+        for (i in segments.indices) {
+            val segment = segments[i]
+            val start = if (i == 0) firstPosition else 0L
+            var position = start
+            var count = 0
+            while (position < segment.length) {
+                val length = try {
+                    readElementLength(segment, position)
+                } catch (ex: IOException) {
+                    logger.warn("Dropping {} bytes of {} in queue {}: {}",
+                        segment.length - position, segment, directory, ex.message)
+                    segment.channel.truncate(position)
+                    segment.length = position
+                    if (i == 0 && position == start) {
+                        // the element that the head offset refers to was dropped
+                        headOffset = 0
+                    }
+                    break
+                }
+                position += ELEMENT_HEADER_LENGTH + length
+                count++
+            }
+            segment.count = count
+            total += count
+        }
+        if (total == 0) {
+            headOffset = 0
+        }
+        if (total != expectedCount) {
+            logger.warn("Recovered {} elements of queue {}, whose header listed {} elements.",
+                total, directory, expectedCount)
+        }
+        size = total
+    }
+
+    @Throws(IOException::class)
+    private fun readSlot(slot: Int): HeaderSlot {
+        headerBuffer.clear()
+        headerChannel.readFully(slot * SLOT_LENGTH.toLong(), headerBuffer)
+        headerBuffer.flip()
+
+        val version = headerBuffer.int
+        requireIO(version == VERSION) { "unsupported version $version" }
+        val header = HeaderSlot(
+            sequence = headerBuffer.long,
+            count = headerBuffer.int,
+            headOffset = headerBuffer.int,
+            firstId = headerBuffer.long,
+            firstPosition = headerBuffer.long,
+            lastId = headerBuffer.long,
+            lastLength = headerBuffer.long,
+        )
+        requireIO(headerBuffer.int == headerCrc()) { "checksum does not match" }
+        requireIO(header.count >= 0 && header.headOffset >= 0 && header.firstId in 0L..header.lastId
+                && header.firstPosition >= 0L && header.lastLength >= 0L) {
+            "header is invalid"
+        }
+        return header
+    }
+
+    /**
+     * Verify that all segments of a header exist. Segment data is not forced to disk before
+     * every header update, so after a system crash the latest header may refer to lost data.
+     */
+    @Throws(IOException::class)
+    private fun HeaderSlot.verifySegments() {
+        for (id in firstId..lastId) {
+            val file = Segment(directory, id, 0L).file
+            requireIO(file.isFile) { "segment $id is missing" }
+            if (id == lastId) {
+                requireIO(file.length() >= lastLength) { "segment $id was truncated" }
+            }
+        }
+    }
+
+    /** Delete any segment files that are not part of the queue anymore. */
+    private fun deleteStaleSegments() {
+        val firstId = segments.first().id
+        val lastId = segments.last().id
+        directory.listFiles { _, name -> name.endsWith(SEGMENT_EXTENSION) }
+            ?.forEach { file ->
+                val id = file.name.removeSuffix(SEGMENT_EXTENSION).toLongOrNull()
+                if (id == null || id < firstId || id > lastId) {
+                    logger.debug("Deleting stale segment {} of {}", file, this)
+                    file.delete()
+                }
+            }
+    }
+
+    /**
+     * Write the header to the next slot.
+     * @param sync whether to force the header to disk.
+     */
+    @Throws(IOException::class)
+    private fun writeHeader(sync: Boolean) {
+        if (sync) {
+            // data must be persisted before the header refers to it
+            segments.forEach { if (it.isOpen) it.channel.force(false) }
+        }
+        sequence++
+        headerBuffer.clear()
+        headerBuffer.putInt(VERSION)
+        headerBuffer.putLong(sequence)
+        headerBuffer.putInt(size)
+        headerBuffer.putInt(headOffset)
+        headerBuffer.putLong(segments.first().id)
+        headerBuffer.putLong(firstPosition)
+        headerBuffer.putLong(segments.last().id)
+        headerBuffer.putLong(segments.last().length)
+        headerBuffer.putInt(headerCrc())
+        headerBuffer.flip()
+        headerChannel.writeFully((sequence and 1L) * SLOT_LENGTH, headerBuffer)
+        if (sync) {
+            headerChannel.force(false)
+            syncTimer.synced()
+        }
+    }
+
+    /** Checksum of the header fields in [headerBuffer], excluding the checksum itself. */
+    private fun headerCrc(): Int = CRC32().run {
+        update(headerBuffer.array(), 0, SLOT_LENGTH - 4)
+        value.toInt()
+    }
+
+    /**
+     * Adds elements to the end of the queue. Elements are committed once the returned stream is
+     * closed.
+     */
+    @Throws(IOException::class)
+    override fun elementOutputStream(): SegmentedQueueFileOutputStream {
+        requireNotClosed()
+        return SegmentedQueueFileOutputStream(this, lastSegment)
+    }
+
+    @Throws(IOException::class)
+    override fun peek(): InputStream? {
+        requireNotClosed()
+        return if (!isEmpty) iterator().next() else null
+    }
+
+    /**
+     * Returns an iterator over elements in this queue.
+     *
+     * The iterator disallows modifications to be made to the queue during iteration.
+     */
+    override fun iterator(): Iterator<InputStream> = ElementIterator()
+
+    override fun newCursor(): ElementCursor = cursors.newCursor(this)
+
+    private inner class ElementIterator : Iterator<InputStream> {
+        /** Index of element to be returned by subsequent call to next.  */
+        private var nextElementIndex: Int = 0
+
+        /** Index of the segment containing the element returned by the subsequent call to next. */
+        private var segmentIndex: Int = 0
+
+        /** Position of element to be returned by subsequent call to next.  */
+        private var position: Long = firstPosition
+
+        private val expectedModCount = modCount.get()
+
+        private fun checkConditions() {
+            check(!isClosed) { "queue is closed" }
+            if (modCount.get() != expectedModCount) {
+                throw ConcurrentModificationException()
+            }
+        }
+
+        override fun hasNext(): Boolean {
+            checkConditions()
+            return nextElementIndex < size
+        }
+
+        override fun next(): InputStream {
+            checkConditions()
+            if (nextElementIndex >= size) {
+                throw NoSuchElementException()
+            }
+            var segment = segments[segmentIndex]
+            while (position >= segment.length) {
+                if (segmentIndex > 0 && segment !== lastSegment) {
+                    // done reading this segment; it is reopened if needed
+                    segment.close()
+                }
+                segment = segments[++segmentIndex]
+                position = 0L
+            }
+
+            val length = try {
+                readElementLength(segment, position)
+            } catch (ex: IOException) {
+                throw IllegalStateException("Cannot read element", ex)
+            }
+            val input = SegmentInputStream(segment, position + ELEMENT_HEADER_LENGTH, length, modCount)
+            position += ELEMENT_HEADER_LENGTH + length
+            nextElementIndex++
+            return input
+        }
+
+        override fun toString(): String {
+            return "SegmentedQueueFile.ElementIterator[segment=$segmentIndex, position=$position, index=$nextElementIndex]"
+        }
+    }
+
+    /** Read the data length of the element at given position and verify its checksum. */
+    @Throws(IOException::class)
+    private fun readElementLength(segment: Segment, position: Long): Int {
+        requireIO(position + ELEMENT_HEADER_LENGTH <= segment.length) {
+            "Element at $position exceeds $segment; queue is corrupted"
+        }
+        elementHeaderBuffer.clear()
+        segment.channel.readFully(position, elementHeaderBuffer)
+        elementHeaderBuffer.flip()
+        val length = elementHeaderBuffer.int
+        val crc = elementHeaderBuffer.get()
+        requireIO(length > 0 && crc == QueueFileElement.crc(length)
+                && position + ELEMENT_HEADER_LENGTH + length <= segment.length) {
+            "Element at $position of $segment is not correct; queue is corrupted"
+        }
+        return length
+    }
+
+    /**
+     * Removes the eldest `n` elements. Segments that no longer contain any element are deleted.
+     *
+     * @throws NoSuchElementException if more than the available elements are requested to be removed
+     */
+    @Throws(IOException::class)
+    override fun remove(n: Int) = remove(n, 0)
+
+    /**
+     * Removes the eldest `n` elements and stores [headOffset] in the header. Segments that no
+     * longer contain any element are deleted.
+     *
+     * @throws NoSuchElementException if more than the available elements are requested to be removed
+     */
+    @Throws(IOException::class)
+    override fun remove(n: Int, headOffset: Int) {
+        requireNotClosed()
+        require(n >= 0) { "Cannot remove negative ($n) number of elements." }
+        require(headOffset >= 0) { "Head offset $headOffset must not be negative." }
+        if (n == 0) {
+            if (headOffset != this.headOffset) {
+                this.headOffset = headOffset
+                writeHeader(sync = syncTimer.commit())
+            }
+            return
+        }
+        if (n == size) {
+            clear()
+            return
+        }
+        if (n > size) {
+            throw NoSuchElementException(
+                "Cannot remove more elements ($n) than present in queue ($size).")
+        }
+
+        // skip whole segments, so that only element headers in the new first segment are read
+        var segmentIndex = 0
+        var position = firstPosition
+        var remaining = n
+        while (true) {
+            val segment = segments[segmentIndex]
+            val count = segment.count.takeIf { it >= 0 }
+                ?: countElements(segment, position).also { segment.count = it }
+            if (remaining < count || segment === lastSegment) break
+            remaining -= count
+            segmentIndex++
+            position = 0L
+        }
+        val first = segments[segmentIndex]
+        repeat(remaining) {
+            position += ELEMENT_HEADER_LENGTH + readElementLength(first, position)
+        }
+        first.count -= remaining
+
+        val removedSegments = segments.subList(0, segmentIndex)
+        val obsolete = removedSegments.toList()
+        removedSegments.clear()
+        firstPosition = position
+        size -= n
+        this.headOffset = headOffset
+        modCount.incrementAndGet()
+        // the previous header refers to obsolete segments, so force the header before deleting them
+        writeHeader(sync = syncTimer.commit() || obsolete.isNotEmpty())
+        obsolete.forEach { it.delete() }
+        cursors.elementsRemoved(n)
+    }
+
+    /** Number of elements in [segment] from [position] onwards. */
+    @Throws(IOException::class)
+    private fun countElements(segment: Segment, position: Long): Int {
+        var count = 0
+        var elementPosition = position
+        while (elementPosition < segment.length) {
+            elementPosition += ELEMENT_HEADER_LENGTH + readElementLength(segment, elementPosition)
+            count++
+        }
+        return count
+    }
+
+    /** Clears this queue. All segments are deleted and a new empty segment is started.  */
+    @Throws(IOException::class)
+    override fun clear() {
+        requireNotClosed()
+        val obsolete = segments.toList()
+        segments.clear()
+        segments += Segment(directory, obsolete.last().id + 1, 0L).apply {
+            create()
+            count = 0
+        }
+        firstPosition = 0L
+        size = 0
+        headOffset = 0
+        modCount.incrementAndGet()
+        writeHeader(sync = true)
+        obsolete.forEach { it.delete() }
+        cursors.clear()
+    }
+
+    /**
+     * Commit elements written by a [SegmentedQueueFileOutputStream].
+     *
+     * @param tailLength new length of committed data in the current last segment.
+     * @param tailCount number of elements written to the current last segment.
+     * @param newSegments segments created by the stream that contain elements, in order, with
+     *                    their lengths and counts set.
+     * @param firstSegment segment containing the first new element.
+     * @param firstPosition position of the first new element in [firstSegment].
+     * @param count number of elements written.
+     */
+    @Throws(IOException::class)
+    internal fun commitOutputStream(
+        tailLength: Long,
+        tailCount: Int,
+        newSegments: List<Segment>,
+        firstSegment: Segment,
+        firstPosition: Long,
+        count: Int,
+    ) {
+        val tail = lastSegment
+        tail.length = tailLength
+        if (size == 0) {
+            // all previous elements of the tail were removed
+            tail.count = 0
+        }
+        if (tail.count >= 0) {
+            tail.count += tailCount
+        }
+        if (newSegments.isNotEmpty()) {
+            // Only keep the new tail open. Completed segments are forced to disk before closing,
+            // so a later forced header never refers to segment data that was not persisted.
+            (listOf(tail) + newSegments.dropLast(1)).forEach {
+                it.channel.force(false)
+                it.close()
+            }
+            segments += newSegments
+        }
+
+        var obsolete = emptyList<Segment>()
+        if (size == 0) {
+            val consumedSegments = segments.subList(0, segments.indexOf(firstSegment))
+            obsolete = consumedSegments.toList()
+            consumedSegments.clear()
+            this.firstPosition = firstPosition
+        }
+        size += count
+        modCount.incrementAndGet()
+        writeHeader(sync = syncTimer.commit() || obsolete.isNotEmpty())
+        obsolete.forEach { it.delete() }
+    }
+
+    @Throws(IOException::class)
+    internal fun requireNotClosed() {
+        requireIO(!isClosed) { "queue $this is closed" }
+    }
+
+    @Throws(IOException::class)
+    override fun close() {
+        if (!isClosed && syncTimer.hasPendingChanges && durability != QueueDurability.NONE) {
+            segments.forEach { if (it.isOpen) it.channel.force(false) }
+            headerChannel.force(false)
+            syncTimer.synced()
+        }
+        isClosed = true
+        segments.forEach { it.close() }
+        headerChannel.close()
+    }
+
+    override fun toString(): String {
+        return "SegmentedQueueFile<${directory.name}>[size=$size, segments=$segments, first=$firstPosition]"
+    }
+
+    /**
+     * A single segment file. Its channel is opened when needed.
+     * @param length number of bytes of committed data in the segment.
+     */
+    internal class Segment(directory: File, val id: Long, var length: Long) : Closeable {
+        val file = File(directory, "$id$SEGMENT_EXTENSION")
+
+        /**
+         * Number of elements of the queue in this segment, excluding removed elements, or -1 if
+         * it is not known yet. It is only counted when needed after the queue is opened.
+         */
+        var count: Int = -1
+        private var randomAccessFile: RandomAccessFile? = null
+        private var isDeleted = false
+
+        val isOpen: Boolean
+            get() = randomAccessFile != null
+
+        @get:Throws(IOException::class)
+        val channel: FileChannel
+            get() {
+                requireIO(!isDeleted) { "Segment $file was deleted" }
+                val raf = randomAccessFile ?: RandomAccessFile(file, "rw")
+                    .also { randomAccessFile = it }
+                return raf.channel
+            }
+
+        /** Creates the segment file, removing any existing data. */
+        @Throws(IOException::class)
+        fun create() {
+            channel.truncate(0L)
+        }
+
+        @Throws(IOException::class)
+        fun delete() {
+            close()
+            isDeleted = true
+            if (!file.delete() && file.exists()) {
+                logger.warn("Cannot delete segment {}", file)
+            }
+        }
+
+        @Throws(IOException::class)
+        override fun close() {
+            randomAccessFile?.close()
+            randomAccessFile = null
+        }
+
+        override fun toString() = "Segment[id=$id, length=$length, count=$count]"
+    }
+
+    private class SegmentInputStream(
+        private val segment: Segment,
+        private var position: Long,
+        private val totalLength: Int,
+        private val modificationCount: AtomicInteger,
+    ) : InputStream() {
+        private val expectedModCount: Int = modificationCount.get()
+        private val singleByteArray = ByteArray(1)
+        private var bytesRead: Int = 0
+
+        private val elementAvailable: Int
+            get() = totalLength - bytesRead
+
+        override fun available() = elementAvailable
+
+        override fun skip(byteCount: Long): Long {
+            val countAvailable = byteCount.coerceIn(0L, elementAvailable.toLong()).toInt()
+            bytesRead += countAvailable
+            position += countAvailable
+            return countAvailable.toLong()
+        }
+
+        @Throws(IOException::class)
+        override fun read(): Int {
+            requireIO(read(singleByteArray, 0, 1) == 1) { "Cannot read byte from $segment" }
+            return singleByteArray[0].toInt() and 0xFF
+        }
+
+        @Throws(IOException::class)
+        override fun read(bytes: ByteArray, offset: Int, count: Int): Int {
+            if (elementAvailable == 0) return -1
+            if (count < 0) throw IndexOutOfBoundsException("length < 0")
+            if (count == 0) return 0
+            requireIO(modificationCount.get() == expectedModCount) { "Queue modified while reading InputStream of $segment" }
+
+            val buffer = ByteBuffer.wrap(bytes, offset, count.coerceAtMost(elementAvailable))
+            val numRead = segment.channel.read(buffer, position)
+            if (numRead == -1) throw EOFException("Unexpected end of $segment")
+            position += numRead
+            bytesRead += numRead
+            return numRead
+        }
+
+        override fun toString(): String = "SegmentInputStream[length=$totalLength,bytesRead=$bytesRead]"
+    }
+
+    private data class HeaderSlot(
+        val sequence: Long,
+        val count: Int,
+        val headOffset: Int,
+        val firstId: Long,
+        val firstPosition: Long,
+        val lastId: Long,
+        val lastLength: Long,
+    )
+
+    companion object {
+        private val logger = LoggerFactory.getLogger(SegmentedQueueFile::class.java)
+
+        private const val VERSION = 2
+        /** Length of a single header slot in bytes. */
+        private const val SLOT_LENGTH = 56
+
+        /** Number of header slots that are written alternately. */
+        private const val SLOT_COUNT = 2
+        private const val HEADER_FILE_NAME = "header"
+        private const val SEGMENT_EXTENSION = ".segment"
+
+        /** Minimum maximum size of the queue. */
+        const val MINIMUM_LENGTH = 4096L
+
+        /** Default segment size. */
+        const val DEFAULT_SEGMENT_SIZE = 8_388_608L // 8 MiB
+
+        @JvmOverloads
+        @Throws(IOException::class)
+        fun newSegmented(directory: File, maxSize: Long, recover: Boolean = false): SegmentedQueueFile {
+            return try {
+                SegmentedQueueFile(directory, DEFAULT_SEGMENT_SIZE, maxSize, recover)
+            } catch (ex: IllegalArgumentException) {
+                throw IOException("Cannot create queue", ex)
+            }
+        }
+
+        @Throws(IOException::class)
+        internal fun FileChannel.readFully(position: Long, buffer: ByteBuffer) {
+            var currentPosition = position
+            while (buffer.hasRemaining()) {
+                val numRead = read(buffer, currentPosition)
+                if (numRead == -1) throw EOFException("Cannot read beyond end of file")
+                currentPosition += numRead
+            }
+        }
+
+        @Throws(IOException::class)
+        internal fun FileChannel.writeFully(position: Long, buffer: ByteBuffer) {
+            var currentPosition = position
+            while (buffer.hasRemaining()) {
+                currentPosition += write(buffer, currentPosition)
+            }
+        }
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarbase.util
+
+import org.radarbase.util.IO.checkOffsetAndCount
+import org.radarbase.util.IO.requireIO
+import org.radarbase.util.QueueFileElement.Companion.ELEMENT_HEADER_LENGTH
+import org.radarbase.util.SegmentedQueueFile.Companion.writeFully
+import org.slf4j.LoggerFactory
+import java.io.IOException
+import java.nio.ByteBuffer
+
+/**
+ * An OutputStream that appends elements to a [SegmentedQueueFile]. After finished writing one
+ * element, call [next] to start writing the next. Elements never span multiple segments; a new
+ * segment is started before writing an element if the current segment is full.
+ *
+ * It is very important to [close] this OutputStream, as this is the only way that the
+ * data is actually committed to file.
+ */
+class SegmentedQueueFileOutputStream internal constructor(
+    private val queue: SegmentedQueueFile,
+    private val tail: SegmentedQueueFile.Segment,
+) : ElementOutputStream() {
+    /** Segment that is currently written to. */
+    private var segment: SegmentedQueueFile.Segment = tail
+
+    /** Position in [segment] that the next byte will be written to. */
+    private var position: Long = tail.length
+
+    /** Position in [segment] that the current element header is written to. */
+    private var elementPosition: Long = position
+
+    /** Number of data bytes written in the current element. */
+    private var elementLength: Int = 0
+
+    /** Segments that were started by this stream. */
+    private val newSegments = ArrayList<SegmentedQueueFile.Segment>()
+
+    /** Length of committed data in the segment that was the tail when this stream started. */
+    private var tailLength: Long = tail.length
+
+    /** Number of elements written to the segment that was the tail when this stream started. */
+    private var tailCount: Int = 0
+
+    /** Segment and position of the first element that was written by this stream. */
+    private var firstSegment: SegmentedQueueFile.Segment? = null
+    private var firstPosition: Long = 0L
+
+    /** Segment containing the last complete element written by this stream. */
+    private var lastSegment: SegmentedQueueFile.Segment? = null
+
+    /** Number of elements written in this stream. */
+    private var elementsWritten: Int = 0
+
+    /** Number of bytes that this stream has added to the queue. */
+    private var streamBytesUsed: Long = 0L
+
+    /** Write buffer. Its first byte corresponds to [bufferPosition] in [segment]. */
+    private val buffer = ByteBuffer.allocate(BUFFER_SIZE)
+    private var bufferPosition: Long = position
+
+    private val singleByteBuffer = ByteArray(1)
+
+    private var isClosed: Boolean = false
+
+    @Throws(IOException::class)
+    override fun write(byteValue: Int) {
+        singleByteBuffer[0] = (byteValue and 0xFF).toByte()
+        write(singleByteBuffer, 0, 1)
+    }
+
+    @Throws(IOException::class)
+    override fun write(bytes: ByteArray, offset: Int, count: Int) {
+        bytes.checkOffsetAndCount(offset, count)
+        if (count == 0) return  // no action needed
+        checkNotClosed()
+
+        if (elementLength == 0) {
+            ensureCapacity(ELEMENT_HEADER_LENGTH + count.toLong())
+            if (position >= queue.segmentSize) {
+                startSegment()
+            }
+            elementPosition = position
+            // the header is filled in when the element is complete
+            writeBuffered(ByteBuffer.wrap(EMPTY_HEADER))
+        } else {
+            try {
+                ensureCapacity(count.toLong())
+            } catch (ex: IllegalStateException) {
+                discardElement()
+                throw ex
+            }
+        }
+        writeBuffered(ByteBuffer.wrap(bytes, offset, count))
+        elementLength += count
+    }
+
+    @Throws(IOException::class)
+    private fun writeBuffered(data: ByteBuffer) {
+        val count = data.remaining()
+        if (count > buffer.remaining()) {
+            flushBuffer()
+            if (count >= buffer.capacity()) {
+                segment.channel.writeFully(position, data)
+                position += count
+                bufferPosition = position
+                return
+            }
+        }
+        buffer.put(data)
+        position += count
+    }
+
+    @Throws(IOException::class)
+    private fun flushBuffer() {
+        buffer.flip()
+        segment.channel.writeFully(bufferPosition, buffer)
+        buffer.clear()
+        bufferPosition = position
+    }
+
+    /**
+     * Start a new segment after the current one. The current segment is truncated, so data of
+     * earlier streams that was not committed is not read as part of it when the queue is opened
+     * again.
+     */
+    @Throws(IOException::class)
+    private fun startSegment() {
+        flushBuffer()
+        if (segment === tail) {
+            tailLength = position
+        } else {
+            segment.length = position
+        }
+        if (segment.channel.size() > position) {
+            segment.channel.truncate(position)
+        }
+        logger.debug("Starting new segment in {}", queue)
+        segment = SegmentedQueueFile.Segment(segment.file.parentFile!!, segment.id + 1, 0L).apply {
+            create()
+            count = 0
+        }
+        newSegments += segment
+        position = 0L
+        bufferPosition = 0L
+    }
+
+    /**
+     * Checks whether the queue can contain given number of additional bytes.
+     * @throws IllegalStateException if the queue is full.
+     */
+    private fun ensureCapacity(length: Long) {
+        val newStreamBytesUsed = streamBytesUsed + length
+        check(queue.fileSize + newStreamBytesUsed <= queue.maximumFileSize) { "Data does not fit in queue" }
+        streamBytesUsed = newStreamBytesUsed
+    }
+
+    /** Discard the element that is currently being written, so the next element overwrites it. */
+    override fun discardElement() {
+        if (elementLength == 0) return
+        streamBytesUsed -= position - elementPosition
+        if (elementPosition >= bufferPosition) {
+            buffer.position((elementPosition - bufferPosition).toInt())
+        } else {
+            buffer.clear()
+            bufferPosition = elementPosition
+        }
+        position = elementPosition
+        elementLength = 0
+    }
+
+    @Throws(IOException::class)
+    private fun checkNotClosed() {
+        requireIO(!isClosed) { "Cannot write to $queue, output stream is closed." }
+        queue.requireNotClosed()
+    }
+
+    @Throws(IOException::class)
+    override operator fun next() {
+        checkNotClosed()
+        // No data was written in this element. Skipping.
+        if (elementLength == 0) return
+
+        if (elementPosition >= bufferPosition) {
+            val index = (elementPosition - bufferPosition).toInt()
+            buffer.putInt(index, elementLength)
+            buffer.put(index + 4, QueueFileElement.crc(elementLength))
+        } else {
+            val header = ByteBuffer.allocate(ELEMENT_HEADER_LENGTH)
+            header.putInt(elementLength)
+            header.put(QueueFileElement.crc(elementLength))
+            header.flip()
+            segment.channel.writeFully(elementPosition, header)
+        }
+
+        if (firstSegment == null) {
+            firstSegment = segment
+            firstPosition = elementPosition
+        }
+        if (segment === tail) {
+            tailLength = position
+            tailCount++
+        } else {
+            segment.length = position
+            segment.count++
+        }
+        lastSegment = segment
+        elementLength = 0
+        elementsWritten++
+    }
+
+    @Throws(IOException::class)
+    override fun flush() {
+        checkNotClosed()
+        flushBuffer()
+    }
+
+    /**
+     * Closes the stream and commits it to file. Segments that were started but did not receive
+     * a complete element are discarded.
+     * @throws IOException if the output stream cannot be written to.
+     */
+    @Throws(IOException::class)
+    override fun close() {
+        if (isClosed) return
+        try {
+            next()
+            flushBuffer()
+            val last = lastSegment
+            val committedSegments = if (last == null || last === tail) {
+                emptyList()
+            } else {
+                newSegments.subList(0, newSegments.indexOf(last) + 1)
+            }
+            newSegments.subList(committedSegments.size, newSegments.size)
+                .forEach { it.delete() }
+
+            if (elementsWritten > 0) {
+                queue.commitOutputStream(tailLength, tailCount, committedSegments, firstSegment!!, firstPosition, elementsWritten)
+            }
+        } finally {
+            isClosed = true
+        }
+    }
+
+    override fun toString(): String {
+        return "SegmentedQueueFileOutputStream[segment=$segment, position=$position, elements=$elementsWritten]"
+    }
+
+    companion object {
+        private val logger = LoggerFactory.getLogger(SegmentedQueueFileOutputStream::class.java)
+
+        private const val BUFFER_SIZE = 8192
+
+        private val EMPTY_HEADER = ByteArray(ELEMENT_HEADER_LENGTH)
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2017 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.radarbase.util
+
+import org.radarbase.util.IO.requireIO
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+
+/**
+ * Non-negative integers of variable length. Each byte stores seven bits, least significant bits
+ * first, and has its highest bit set if more bytes follow.
+ */
+object VarInt {
+    /** Maximum number of bytes of an encoded integer. */
+    const val MAX_SIZE = 5
+
+    /** Number of bytes that [value] takes when encoded. */
+    fun size(value: Int): Int {
+        require(value >= 0) { "Cannot encode negative value $value" }
+        var size = 1
+        var remaining = value ushr 7
+        while (remaining != 0) {
+            size++
+            remaining = remaining ushr 7
+        }
+        return size
+    }
+
+    /** Write [value] to [output]. */
+    @Throws(IOException::class)
+    fun write(value: Int, output: OutputStream) {
+        require(value >= 0) { "Cannot encode negative value $value" }
+        var remaining = value
+        while (remaining and 0x7F.inv() != 0) {
+            output.write((remaining and 0x7F) or 0x80)
+            remaining = remaining ushr 7
+        }
+        output.write(remaining)
+    }
+
+    /**
+     * Read a value from [data], starting at [offset] and ending before [limit].
+     * @throws IOException if no complete value is stored there.
+     */
+    @Throws(IOException::class)
+    fun read(data: ByteArray, offset: Int, limit: Int): Int {
+        var result = 0
+        var i = 0
+        while (true) {
+            requireIO(offset + i < limit && i < MAX_SIZE) { "Variable-length integer is truncated" }
+            val b = data[offset + i].toInt()
+            result = result or ((b and 0x7F) shl (7 * i))
+            i++
+            if (b and 0x80 == 0) return result.checkEncoding(i)
+        }
+    }
+
+    /**
+     * Read a value from [input].
+     * @throws IOException if the stream does not start with a complete value.
+     */
+    @Throws(IOException::class)
+    fun read(input: InputStream): Int {
+        var result = 0
+        var i = 0
+        while (true) {
+            val b = input.read()
+            requireIO(b != -1 && i < MAX_SIZE) { "Variable-length integer is truncated" }
+            result = result or ((b and 0x7F) shl (7 * i))
+            i++
+            if (b and 0x80 == 0) return result.checkEncoding(i)
+        }
+    }
+
+    /** Only allow a single encoding per value, so the encoded size follows from the value. */
+    @Throws(IOException::class)
+    private fun Int.checkEncoding(encodedSize: Int): Int {
+        requireIO(this >= 0 && size(this) == encodedSize) { "Variable-length integer is not correctly encoded" }
+        return this
+    }
+}
@@ -0,0 +1,91 @@
+package org.radarbase.android.data.serialization
+
+import org.apache.avro.Schema
+import org.apache.avro.generic.GenericData
+import org.apache.avro.generic.GenericDatumReader
+import org.apache.avro.generic.GenericDatumWriter
+import org.apache.avro.generic.GenericRecord
+import org.apache.avro.generic.GenericRecordBuilder
+import org.apache.avro.io.DatumReader
+import org.apache.avro.io.DatumWriter
+import org.apache.avro.io.DecoderFactory
+import org.apache.avro.io.EncoderFactory
+import org.apache.avro.util.Utf8
+import org.junit.Assert.*
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+
+class AvroCodecTest {
+    private val schema = Schema.Parser().parse("""
+        {"type": "record", "name": "Value", "fields": [
+            {"name": "time", "type": "double"},
+            {"name": "count", "type": "int"},
+            {"name": "total", "type": "long"},
+            {"name": "ratio", "type": "float"},
+            {"name": "enabled", "type": "boolean"},
+            {"name": "label", "type": ["null", "string"]},
+            {"name": "name", "type": {"type": "string", "avro.java.string": "String"}},
+            {"name": "state", "type": {"type": "enum", "name": "State", "symbols": ["ON", "OFF"]}},
+            {"name": "samples", "type": {"type": "array", "items": "float"}},
+            {"name": "attributes", "type": {"type": "map", "values": "string"}},
+            {"name": "hash", "type": {"type": "fixed", "name": "Hash", "size": 4}},
+            {"name": "data", "type": "bytes"},
+            {"name": "next", "type": ["null", "Value"], "default": null}
+        ]}
+    """.trimIndent())
+
+    private fun value(i: Int, next: GenericRecord? = null): GenericRecord = GenericRecordBuilder(schema)
+        .set("time", 1_600_000_000.0 + i)
+        .set("count", -i)
+        .set("total", i * 1_000_000_000L)
+        .set("ratio", i / 3f)
+        .set("enabled", i % 2 == 0)
+        .set("label", if (i % 2 == 0) null else Utf8("label$i"))
+        .set("name", "name$i")
+        .set("state", GenericData.EnumSymbol(schema.getField("state").schema(), if (i % 2 == 0) "ON" else "OFF"))
+        .set("samples", GenericData.Array(schema.getField("samples").schema(), List(i) { it.toFloat() }))
+        .set("attributes", mapOf(Utf8("a") to Utf8("b$i")))
+        .set("hash", GenericData.Fixed(schema.getField("hash").schema(), byteArrayOf(1, 2, 3, i.toByte())))
+        .set("data", ByteBuffer.wrap(ByteArray(i) { it.toByte() }))
+        .set("next", next)
+        .build()
+
+    private fun DatumWriter<Any?>.encode(datum: Any?): ByteArray = ByteArrayOutputStream().use { output ->
+        val encoder = EncoderFactory.get().binaryEncoder(output, null)
+        write(datum, encoder)
+        encoder.flush()
+        output.toByteArray()
+    }
+
+    private fun DatumReader<Any?>.decode(data: ByteArray, reuse: Any? = null): Any? =
+        read(reuse, DecoderFactory.get().binaryDecoder(data, null))
+
+    @Test
+    fun testSameEncoding() {
+        val codec = AvroCodec(schema, GenericData.get())
+        val writer = GenericDatumWriter<Any?>(schema, GenericData.get())
+        val reader = GenericDatumReader<Any?>(schema, schema, GenericData.get())
+
+        listOf(value(0), value(1), value(4, next = value(3, next = value(2)))).forEach { datum ->
+            val encoded = codec.encode(datum)
+            assertArrayEquals(writer.encode(datum), encoded)
+            val decoded = codec.decode(encoded)
+            assertEquals(reader.decode(encoded), decoded)
+            assertEquals(datum, decoded)
+            assertTrue((decoded as GenericRecord).get("name") is String)
+        }
+    }
+
+    @Test
+    fun testReuse() {
+        val codec = AvroCodec(schema, GenericData.get())
+        val first = codec.decode(codec.encode(value(3))) as GenericRecord
+        val samples = first.get("samples")
+
+        val second = codec.decode(codec.encode(value(5)), first)
+        assertSame(first, second)
+        assertSame(samples, first.get("samples"))
+        assertEquals(value(5), second)
+    }
+}
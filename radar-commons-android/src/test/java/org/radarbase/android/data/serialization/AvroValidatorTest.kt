@@ -0,0 +1,92 @@
+package org.radarbase.android.data.serialization
+
+import org.apache.avro.Schema
+import org.apache.avro.generic.GenericData
+import org.apache.avro.generic.GenericRecordBuilder
+import org.apache.avro.util.Utf8
+import org.junit.Assert.*
+import org.junit.Test
+import java.nio.ByteBuffer
+
+class AvroValidatorTest {
+    private val schema = Schema.Parser().parse("""
+        {"type": "record", "name": "Node", "namespace": "test", "fields": [
+            {"name": "time", "type": "double"},
+            {"name": "value", "type": ["null", "float"], "default": null},
+            {"name": "label", "type": "string"},
+            {"name": "kind", "type": {"type": "enum", "name": "Kind", "symbols": ["A", "B"]}},
+            {"name": "data", "type": "bytes"},
+            {"name": "counts", "type": {"type": "map", "values": "int"}},
+            {"name": "children", "type": {"type": "array", "items": "Node"}}
+        ]}
+    """.trimIndent())
+
+    private val kindSchema = schema.getField("kind").schema()
+
+    private fun node(
+        time: Double = 1.0,
+        value: Float? = null,
+        label: CharSequence = "label",
+        kind: String = "A",
+        counts: Map<String, Any> = mapOf("a" to 1),
+        children: List<Any> = listOf(),
+    ) = GenericRecordBuilder(schema)
+        .set("time", time)
+        .set("value", value)
+        .set("label", label)
+        .set("kind", GenericData.EnumSymbol(kindSchema, kind))
+        .set("data", ByteBuffer.wrap(byteArrayOf(1, 2)))
+        .set("counts", counts)
+        .set("children", children)
+        .build()
+
+    @Test
+    fun testValidate() {
+        val validator = AvroValidator(schema)
+        val valid = listOf(
+            node(),
+            node(value = 2.5f, label = Utf8("utf8")),
+            node(children = listOf(node(kind = "B"), node(children = listOf(node())))),
+        )
+        valid.forEach {
+            assertTrue(validator.validate(it))
+            assertEquals(GenericData.get().validate(schema, it), validator.validate(it))
+        }
+
+        val invalid = listOf(
+            node(kind = "C"),
+            node(counts = mapOf("a" to "b")),
+            node(children = listOf(node(kind = "C"))),
+            node(children = listOf("child")),
+            null,
+            "node",
+        )
+        invalid.forEach {
+            assertFalse(validator.validate(it))
+            assertEquals(GenericData.get().validate(schema, it), validator.validate(it))
+        }
+    }
+
+    @Test
+    fun testNonFiniteNumbers() {
+        val validator = AvroValidator(schema)
+        assertFalse(validator.validate(node(time = Double.NaN)))
+        assertFalse(validator.validate(node(value = Float.POSITIVE_INFINITY)))
+        assertFalse(validator.validate(node(children = listOf(node(time = Double.NEGATIVE_INFINITY)))))
+
+        val nonFiniteValidator = AvroValidator(schema, allowNonFiniteNumbers = true)
+        assertTrue(nonFiniteValidator.validate(node(time = Double.NaN)))
+        assertTrue(nonFiniteValidator.validate(node(value = Float.POSITIVE_INFINITY)))
+    }
+
+    @Test
+    fun testUnionRecordName() {
+        val other = Schema.createRecord("Other", null, "test", false, listOf(
+            Schema.Field("time", Schema.create(Schema.Type.DOUBLE), null, null as Any?)))
+        val union = Schema.createUnion(listOf(Schema.create(Schema.Type.NULL), other))
+        val validator = AvroValidator(union)
+        assertTrue(validator.validate(null))
+        assertTrue(validator.validate(GenericRecordBuilder(other).set("time", 1.0).build()))
+        assertFalse(validator.validate(node()))
+    }
+}
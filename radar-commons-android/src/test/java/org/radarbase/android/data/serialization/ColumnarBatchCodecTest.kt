@@ -0,0 +1,100 @@
+package org.radarbase.android.data.serialization
+
+import org.apache.avro.Schema
+import org.apache.avro.generic.GenericData
+import org.apache.avro.generic.GenericDatumWriter
+import org.apache.avro.generic.GenericRecord
+import org.apache.avro.generic.GenericRecordBuilder
+import org.apache.avro.io.EncoderFactory
+import org.junit.Assert.*
+import org.junit.Test
+import org.radarbase.util.VarInt
+import java.io.ByteArrayOutputStream
+import kotlin.math.sin
+
+class ColumnarBatchCodecTest {
+    private val schema = Schema.Parser().parse("""
+        {"type": "record", "name": "Acceleration", "fields": [
+            {"name": "time", "type": "double"},
+            {"name": "timeReceived", "type": "double"},
+            {"name": "x", "type": "float"},
+            {"name": "y", "type": "float"},
+            {"name": "battery", "type": "double"},
+            {"name": "count", "type": "int"},
+            {"name": "total", "type": "long"}
+        ]}
+    """.trimIndent())
+
+    private fun value(i: Int): GenericRecord = GenericRecordBuilder(schema)
+        .set("time", 1_600_000_000.0 + i * 0.02)
+        .set("timeReceived", 1_600_000_000.5 + i * 0.02 + (i % 3) * 0.001)
+        .set("x", when (i) {
+            10 -> Float.NaN
+            11 -> -0.0f
+            12 -> Float.POSITIVE_INFINITY
+            else -> sin(i / 10.0).toFloat()
+        })
+        .set("y", 9.81f)
+        .set("battery", if (i < 50) 0.75 else 0.5)
+        .set("count", -i)
+        .set("total", Long.MAX_VALUE - i)
+        .build()
+
+    /** Avro encoding of [values], each preceded by its length. */
+    private fun payloads(values: List<GenericRecord>): ByteArray {
+        val writer = GenericDatumWriter<GenericRecord>(schema, GenericData.get())
+        val output = ByteArrayOutputStream()
+        values.forEach { value ->
+            val valueOutput = ByteArrayOutputStream()
+            val encoder = EncoderFactory.get().directBinaryEncoder(valueOutput, null)
+            writer.write(value, encoder)
+            VarInt.write(valueOutput.size(), output)
+            valueOutput.writeTo(output)
+        }
+        return output.toByteArray()
+    }
+
+    private fun ColumnarBatchCodec.roundTrip(payloads: ByteArray, count: Int): ByteArray {
+        val encoded = ByteArrayOutputStream()
+            .also { encode(payloads, payloads.size, count, it) }
+            .toByteArray()
+        assertArrayEquals(payloads, decode(encoded, 0, encoded.size, count))
+        return encoded
+    }
+
+    @Test
+    fun testRoundTrip() {
+        val codec = requireNotNull(ColumnarBatchCodec.create(schema))
+        val payloads = payloads(List(100) { value(it) })
+
+        val encoded = codec.roundTrip(payloads, 100)
+        assertEquals(1, encoded[0].toInt())
+        assertTrue("Encoded size ${encoded.size} is not smaller than ${payloads.size}", encoded.size < payloads.size / 2)
+
+        // the codec is reused between batches
+        codec.roundTrip(payloads(List(1) { value(it) }), 1)
+        codec.roundTrip(payloads(List(300) { value(it) }), 300)
+    }
+
+    @Test
+    fun testPlainFallback() {
+        val intSchema = Schema.Parser().parse("""
+            {"type": "record", "name": "Count", "fields": [{"name": "count", "type": "int"}]}
+        """.trimIndent())
+        val codec = requireNotNull(ColumnarBatchCodec.create(intSchema))
+        // zero, encoded with a needless continuation byte
+        val payloads = byteArrayOf(2, 0x80.toByte(), 0)
+
+        val encoded = codec.roundTrip(payloads, 1)
+        assertEquals(0, encoded[0].toInt())
+    }
+
+    @Test
+    fun testUnsupportedSchema() {
+        val stringSchema = Schema.Parser().parse("""
+            {"type": "record", "name": "Label", "fields": [{"name": "label", "type": "string"}]}
+        """.trimIndent())
+        assertNull(ColumnarBatchCodec.create(stringSchema))
+        assertNull(ColumnarBatchCodec.create(Schema.create(Schema.Type.DOUBLE)))
+    }
+}
@@ -0,0 +1,120 @@
+package org.radarbase.android.data.serialization
+
+import org.apache.avro.Schema
+import org.apache.avro.generic.GenericData
+import org.apache.avro.generic.GenericRecord
+import org.apache.avro.generic.GenericRecordBuilder
+import org.junit.Assert.*
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.radarbase.data.Record
+import org.radarbase.topic.AvroTopic
+import org.radarbase.util.BackedObjectQueue
+import org.radarbase.util.QueueFile
+
+class TapeAvroDeserializerTest {
+    @Rule
+    @JvmField
+    val tempDir = TemporaryFolder()
+
+    private val keySchema = Schema.Parser().parse("""
+        {"type": "record", "name": "Key", "fields": [
+            {"name": "userId", "type": "string"},
+            {"name": "sourceId", "type": "string"}
+        ]}
+    """.trimIndent())
+    private val valueSchema = Schema.Parser().parse("""
+        {"type": "record", "name": "Value", "fields": [
+            {"name": "time", "type": "double"},
+            {"name": "label", "type": "string"}
+        ]}
+    """.trimIndent())
+    private val topic = AvroTopic("test", keySchema, valueSchema, GenericRecord::class.java, GenericRecord::class.java)
+
+    private fun key(sourceId: String): GenericRecord = GenericRecordBuilder(keySchema)
+        .set("userId", "u")
+        .set("sourceId", sourceId)
+        .build()
+
+    private fun value(i: Int, time: Double = i.toDouble()): GenericRecord = GenericRecordBuilder(valueSchema)
+        .set("time", time)
+        .set("label", "value$i")
+        .build()
+
+    private fun newQueue(
+        deserializer: TapeAvroDeserializer<GenericRecord, GenericRecord>,
+    ) = BackedObjectQueue(
+        QueueFile.newDirect(tempDir.newFile().also { it.delete() }, 1_000_000),
+        TapeAvroSerializer(topic, GenericData.get(), AvroValidator(keySchema, true), AvroValidator(valueSchema, true)),
+        deserializer,
+    )
+
+    @Test
+    fun testSharedKey() {
+        val deserializer = TapeAvroDeserializer<GenericRecord, GenericRecord>(topic, GenericData.get())
+        newQueue(deserializer).use { queue ->
+            queue += List(3) { Record(key("a"), value(it)) } + List(2) { Record(key("b"), value(it + 3)) }
+
+            val records = queue.peek(5, 100_000).requireNoNulls()
+            assertEquals(List(3) { key("a") } + List(2) { key("b") }, records.map { it.key })
+            assertEquals(List(5) { value(it).toString() }, records.map { it.value.toString() })
+            assertSame(records[0].key, records[2].key)
+            assertSame(records[3].key, records[4].key)
+            assertNotSame(records[0].key, records[3].key)
+        }
+    }
+
+    @Test
+    fun testRecycleValues() {
+        val deserializer = TapeAvroDeserializer<GenericRecord, GenericRecord>(topic, GenericData.get())
+        newQueue(deserializer).use { queue ->
+            queue += List(4) { Record(key("a"), value(it)) }
+
+            val first = queue.peek(2, 100_000).requireNoNulls()
+            queue -= 2
+            deserializer.recycle(first.map { it.value })
+
+            val second = queue.peek(2, 100_000).requireNoNulls()
+            assertEquals(listOf(value(2).toString(), value(3).toString()), second.map { it.value.toString() })
+            assertSame(first[1].value, second[0].value)
+            assertSame(first[0].value, second[1].value)
+        }
+    }
+
+    @Test
+    fun testTrustedRead() {
+        val deserializer = TapeAvroDeserializer<GenericRecord, GenericRecord>(topic, GenericData.get())
+        newQueue(deserializer).use { queue ->
+            queue += Record(key("a"), value(0, Double.NaN))
+
+            assertThrows(IllegalArgumentException::class.java) { queue.peek(1, 100_000) }
+            val trusted = queue.peek(1, 100_000, trustedOffset = 0).single()
+            assertTrue(requireNotNull(trusted).value.get("time").let { it is Double && it.isNaN() })
+        }
+    }
+
+    @Test
+    fun testBatchedFormat() {
+        val factory = TapeAvroSerializationFactory(TapeAvroFormat.BATCHED)
+        assertEquals(".tape2", factory.fileExtension)
+        val queueFile = QueueFile.newDirect(tempDir.newFile().also { it.delete() }, 1_000_000)
+        val records = List(3) { Record(key("a"), value(it)) } + List(2) { Record(key("b"), value(it + 3)) }
+
+        val recordQueue = factory.createRecordQueue(queueFile, topic)
+
+        BackedObjectQueue(recordQueue, factory.createSerializer(topic), factory.createDeserializer(topic)).use { queue ->
+            queue += records
+            assertEquals(5, queue.size)
+            // one element per key
+            assertEquals(2, queueFile.size)
+            val read = queue.peek(5, 100_000).requireNoNulls()
+            assertEquals(records.map { it.key }, read.map { it.key })
+            assertEquals(records.map { it.value.toString() }, read.map { it.value.toString() })
+
+            val raw = requireNotNull(factory.createRawRecordReader(topic).read(recordQueue.iterator(), 10, 100_000))
+            assertEquals(key("a"), raw.key)
+            assertEquals(3, raw.size)
+        }
+    }
+}
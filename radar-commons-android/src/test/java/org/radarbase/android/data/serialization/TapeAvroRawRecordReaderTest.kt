@@ -0,0 +1,100 @@
+package org.radarbase.android.data.serialization
+
+import org.apache.avro.Schema
+import org.apache.avro.generic.GenericData
+import org.apache.avro.generic.GenericRecord
+import org.apache.avro.generic.GenericRecordBuilder
+import org.apache.avro.io.DecoderFactory
+import org.apache.avro.io.EncoderFactory
+import org.junit.Assert.*
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.radarbase.android.data.RawRecordData
+import org.radarbase.data.Record
+import org.radarbase.topic.AvroTopic
+import org.radarbase.util.QueueFile
+import java.io.ByteArrayOutputStream
+
+class TapeAvroRawRecordReaderTest {
+    @Rule
+    @JvmField
+    val tempDir = TemporaryFolder()
+
+    private val keySchema = Schema.Parser().parse("""
+        {"type": "record", "name": "Key", "fields": [
+            {"name": "userId", "type": "string"},
+            {"name": "sourceId", "type": "string"}
+        ]}
+    """.trimIndent())
+    private val valueSchema = Schema.Parser().parse("""
+        {"type": "record", "name": "Value", "fields": [
+            {"name": "time", "type": "double"},
+            {"name": "label", "type": "string"}
+        ]}
+    """.trimIndent())
+    private val topic = AvroTopic("test", keySchema, valueSchema, GenericRecord::class.java, GenericRecord::class.java)
+
+    private fun key(sourceId: String): GenericRecord = GenericRecordBuilder(keySchema)
+        .set("userId", "u")
+        .set("sourceId", sourceId)
+        .build()
+
+    private fun value(i: Int): GenericRecord = GenericRecordBuilder(valueSchema)
+        .set("time", i.toDouble())
+        .set("label", "value$i")
+        .build()
+
+    private fun QueueFile.add(records: List<Record<GenericRecord, GenericRecord>>) {
+        val serializer = TapeAvroSerializer(topic, GenericData.get())
+        elementOutputStream().use { out ->
+            records.forEach {
+                serializer.serialize(it, out)
+                out.next()
+            }
+        }
+    }
+
+    private fun decodeValue(data: RawRecordData, i: Int): GenericRecord {
+        val bytes = ByteArrayOutputStream().use { out ->
+            val encoder = EncoderFactory.get().directBinaryEncoder(out, null)
+            data.writeValue(i, encoder)
+            encoder.flush()
+            out.toByteArray()
+        }
+        val decoder = DecoderFactory.get().binaryDecoder(bytes, null)
+        val valueBytes = decoder.readBytes(null)
+        val valueDecoder = DecoderFactory.get().binaryDecoder(valueBytes.array(), valueBytes.position(), valueBytes.remaining(), null)
+        return GenericData.get().createDatumReader(valueSchema).read(null, valueDecoder) as GenericRecord
+    }
+
+    @Test
+    fun testReadRaw() {
+        val records = List(5) { Record(key("a"), value(it)) } + List(3) { Record(key("b"), value(it + 5)) }
+
+        QueueFile.newDirect(tempDir.newFile().also { it.delete() }, 1_000_000).use { queue ->
+            queue.add(records)
+            val reader = TapeAvroRawRecordReader(topic, GenericData.get())
+
+            val data = requireNotNull(reader.read(queue.iterator(), 10, 100_000))
+            assertEquals(key("a"), data.key)
+            assertEquals(5, data.size)
+            repeat(5) { assertEquals(value(it), decodeValue(data, it)) }
+
+            val limited = requireNotNull(reader.read(queue.iterator(), 2, 100_000))
+            assertEquals(2, limited.size)
+
+            // at least one record is read
+            assertEquals(1, requireNotNull(reader.read(queue.iterator(), 10, 1)).size)
+
+            queue.remove(5)
+            val other = requireNotNull(reader.read(queue.iterator(), 10, 100_000))
+            assertEquals(key("b"), other.key)
+            assertEquals(3, other.size)
+            repeat(3) { assertEquals(value(it + 5), decodeValue(other, it)) }
+
+            queue.remove(3)
+            assertNull(reader.read(queue.iterator(), 10, 100_000))
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package org.radarbase.android.kafka
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class AdaptiveBatchSizeTest {
+    private val config = SubmitterConfiguration(
+        amountLimit = 1000,
+        sizeLimit = 100_000L,
+        adaptiveBatchSize = true,
+        uploadTargetLatency = 1000L,
+    )
+
+    @Test
+    fun testDisabled() {
+        val batchSizes = AdaptiveBatchSize()
+        val disabled = config.copy(adaptiveBatchSize = false)
+        batchSizes.onFailure("a", disabled)
+        batchSizes.onSuccess("a", 5000L, disabled)
+        assertEquals(AdaptiveBatchSize.Limits(1000, 100_000L), batchSizes.limits("a", disabled))
+    }
+
+    @Test
+    fun testIncreaseAndDecrease() {
+        val batchSizes = AdaptiveBatchSize()
+        assertEquals(AdaptiveBatchSize.Limits(1000, 100_000L), batchSizes.limits("a", config))
+
+        batchSizes.onSuccess("a", 5000L, config)
+        assertEquals(AdaptiveBatchSize.Limits(500, 50_000L), batchSizes.limits("a", config))
+        batchSizes.onFailure("a", config)
+        assertEquals(AdaptiveBatchSize.Limits(250, 25_000L), batchSizes.limits("a", config))
+        // other topics are not affected
+        assertEquals(AdaptiveBatchSize.Limits(1000, 100_000L), batchSizes.limits("b", config))
+
+        batchSizes.onSuccess("a", 100L, config)
+        assertEquals(AdaptiveBatchSize.Limits(350, 35_000L), batchSizes.limits("a", config))
+        repeat(10) { batchSizes.onSuccess("a", 100L, config) }
+        assertEquals(AdaptiveBatchSize.Limits(1000, 100_000L), batchSizes.limits("a", config))
+    }
+
+    @Test
+    fun testMinimum() {
+        val batchSizes = AdaptiveBatchSize()
+        repeat(20) { batchSizes.onFailure("a", config) }
+        assertEquals(AdaptiveBatchSize.Limits(15, 1562L), batchSizes.limits("a", config))
+    }
+}
@@ -0,0 +1,58 @@
+package org.radarbase.android.kafka
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class UploadSchedulerTest {
+    private val config = SubmitterConfiguration(
+        amountLimit = 1000,
+        sizeLimit = 100_000L,
+        topicWeights = mapOf("a" to 4f, "b" to 1f),
+    )
+
+    private fun UploadScheduler.schedule(topicNames: Collection<String>, time: Long) =
+        schedule(topicNames, config, time) { AdaptiveBatchSize.Limits(config.amountLimit, config.sizeLimit) }
+
+    @Test
+    fun testWeights() {
+        val scheduler = UploadScheduler()
+        assertEquals(listOf(
+            Pair("a", AdaptiveBatchSize.Limits(1000, 100_000L)),
+            Pair("c", AdaptiveBatchSize.Limits(250, 25_000L)),
+            Pair("b", AdaptiveBatchSize.Limits(250, 25_000L)),
+        ), scheduler.schedule(listOf("c", "b", "a"), 0L))
+
+        // the largest weight of the scheduled topics gets a full request
+        assertEquals(listOf(
+            Pair("b", AdaptiveBatchSize.Limits(1000, 100_000L)),
+        ), scheduler.schedule(listOf("b"), 0L))
+        assertEquals(emptyList<Pair<String, AdaptiveBatchSize.Limits>>(), scheduler.schedule(emptyList(), 0L))
+    }
+
+    @Test
+    fun testBacklogAge() {
+        val scheduler = UploadScheduler()
+        scheduler.onUploaded("b", hasMore = true, time = 0L)
+        scheduler.onUploaded("b", hasMore = true, time = 1_000L)
+        scheduler.onUploaded("c", hasMore = false, time = 1_000L)
+        assertEquals(mapOf("b" to 2_000L), scheduler.backlogAges(2_000L))
+        assertEquals(listOf("a", "b", "c"), scheduler.schedule(listOf("a", "b", "c"), 2_000L).map { it.first })
+
+        // after a long backlog, b goes before a, but its share does not change
+        val schedule = scheduler.schedule(listOf("a", "b", "c"), 3_600_000L)
+        assertEquals(listOf("b", "a", "c"), schedule.map { it.first })
+        assertEquals(AdaptiveBatchSize.Limits(250, 25_000L), schedule[0].second)
+
+        scheduler.onUploaded("b", hasMore = false, time = 3_600_000L)
+        assertEquals(emptyMap<String, Long>(), scheduler.backlogAges(3_600_000L))
+    }
+
+    @Test
+    fun testParseTopicWeights() {
+        assertEquals(
+            mapOf("a" to 2f, "b" to 0.5f),
+            SubmitterConfiguration.parseTopicWeights(" a: 2 ,b:0.5,c,d:-1,e:x,:3,"),
+        )
+        assertEquals(emptyMap<String, Float>(), SubmitterConfiguration.parseTopicWeights(""))
+    }
+}
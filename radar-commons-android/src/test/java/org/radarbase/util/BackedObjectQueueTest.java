@@ -67,7 +67,29 @@ public class BackedObjectQueueTest {
         });
     }
 
-    private void testBinaryObject(Function<File, QueueFile> queueFileSupplier) throws IOException {
+    @Test
+    public void testMappedBinaryObject() throws IOException {
+        testBinaryObject(f -> {
+            try {
+                return QueueFile.Companion.newMapped(f, 450000000);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        });
+    }
+
+    @Test
+    public void testSegmentedBinaryObject() throws IOException {
+        testBinaryObject(f -> {
+            try {
+                return SegmentedQueueFile.Companion.newSegmented(f, 450000000);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        });
+    }
+
+    private void testBinaryObject(Function<File, ElementQueue> queueFileSupplier) throws IOException {
         File file = folder.newFile();
         Random random = new Random();
         byte[] data = new byte[176482];
@@ -114,7 +136,29 @@ public class BackedObjectQueueTest {
         });
     }
 
-    private void testMultipleRegularObject(Function<File, QueueFile> queueFileSupplier) throws IOException {
+    @Test
+    public void testMultipleMappedRegularObject() throws IOException {
+        testMultipleRegularObject(f -> {
+            try {
+                return QueueFile.Companion.newMapped(f, 10000);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        });
+    }
+
+    @Test
+    public void testMultipleSegmentedRegularObject() throws IOException {
+        testMultipleRegularObject(f -> {
+            try {
+                return SegmentedQueueFile.Companion.newSegmented(f, 10000);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        });
+    }
+
+    private void testMultipleRegularObject(Function<File, ElementQueue> queueFileSupplier) throws IOException {
         File file = folder.newFile();
         assertTrue(file.delete());
         AvroTopic<ObservationKey, ObservationKey> topic = new AvroTopic<>("test",
@@ -162,7 +206,7 @@ public class BackedObjectQueueTest {
         });
     }
 
-    private void testRegularObject(Function<File, QueueFile> queueFileSupplier) throws IOException {
+    private void testRegularObject(Function<File, ElementQueue> queueFileSupplier) throws IOException {
         File file = folder.newFile();
         assertTrue(file.delete());
         AvroTopic<ObservationKey, ObservationKey> topic = new AvroTopic<>("test",
@@ -209,7 +253,7 @@ public class BackedObjectQueueTest {
         });
     }
 
-    private void testFloatObject(Function<File, QueueFile> queueFileSupplier) throws IOException {
+    private void testFloatObject(Function<File, ElementQueue> queueFileSupplier) throws IOException {
         File file = folder.newFile();
         assertTrue(file.delete());
         AvroTopic<ObservationKey, PhoneLight> topic = new AvroTopic<>("test",
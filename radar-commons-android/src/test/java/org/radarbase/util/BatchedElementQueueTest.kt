@@ -0,0 +1,201 @@
+package org.radarbase.util
+
+import org.junit.Assert.*
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.io.OutputStream
+
+class BatchedElementQueueTest {
+    @Rule
+    @JvmField
+    val tempDir = TemporaryFolder()
+
+    private fun newFile(): File = tempDir.newFile().also { assertTrue(it.delete()) }
+
+    /** Element with given prefix and payload, in the layout of [BatchedElementQueue]. */
+    private fun element(prefix: String, payload: String): ByteArray = ByteArrayOutputStream().use { out ->
+        VarInt.write(prefix.length, out)
+        out.write(prefix.toByteArray())
+        out.write(payload.toByteArray())
+        out.toByteArray()
+    }
+
+    private fun ElementQueue.add(elements: List<ByteArray>) {
+        elementOutputStream().use { out ->
+            elements.forEach {
+                out.write(it)
+                out.next()
+            }
+        }
+    }
+
+    private fun ElementQueue.readAll(offset: Int = 0): List<String> = iterator(offset).asSequence()
+        .map { input -> input.use { String(it.readBytes()) } }
+        .toList()
+
+    private fun expected(prefix: String, payload: String) = String(element(prefix, payload))
+
+    @Test
+    fun testBatches() {
+        val file = newFile()
+        val queueFile = QueueFile.newDirect(file, 1_000_000)
+        val queue = BatchedElementQueue(queueFile, maximumBatchSize = 3)
+        queue.add(List(5) { element("key", "value$it") } + List(2) { element("other", "value$it") })
+
+        assertEquals(7, queue.size)
+        // batches of 3 and 2 elements of key and 2 elements of other
+        assertEquals(3, queueFile.size)
+        assertEquals(List(5) { expected("key", "value$it") } + List(2) { expected("other", "value$it") }, queue.readAll())
+        assertEquals(listOf(expected("key", "value4"), expected("other", "value0")), queue.readAll(4).take(2))
+
+        queue.remove(2)
+        assertEquals(5, queue.size)
+        assertEquals(3, queueFile.size)
+        assertEquals(expected("key", "value2"), queue.peek()?.use { String(it.readBytes()) })
+        queue.remove(2)
+        assertEquals(3, queue.size)
+        assertEquals(2, queueFile.size)
+        assertEquals(listOf(expected("key", "value4"), expected("other", "value0"), expected("other", "value1")), queue.readAll())
+        queue.close()
+
+        // partial removal of a batch is stored in the queue header
+        BatchedElementQueue(QueueFile.newDirect(file, 1_000_000)).use { reopened ->
+            assertEquals(3, reopened.size)
+            assertEquals(expected("key", "value4"), reopened.peek()?.use { String(it.readBytes()) })
+            reopened.remove(3)
+            assertTrue(reopened.isEmpty)
+            assertNull(reopened.peek())
+        }
+    }
+
+    @Test
+    fun testHeadOffsetSegmented() {
+        val directory = tempDir.newFolder()
+        BatchedElementQueue(SegmentedQueueFile.newSegmented(directory, 1_000_000)).use { queue ->
+            queue.add(List(5) { element("key", "value$it") })
+            queue.remove(1)
+            queue.remove(2)
+        }
+        BatchedElementQueue(SegmentedQueueFile.newSegmented(directory, 1_000_000)).use { reopened ->
+            assertEquals(2, reopened.size)
+            assertEquals(3, reopened.queue.headOffset)
+            assertEquals(listOf(expected("key", "value3"), expected("key", "value4")), reopened.readAll())
+        }
+    }
+
+    @Test
+    fun testCodec() {
+        val file = newFile()
+        // stores the payloads with all bits inverted
+        val codec = object : BatchCodec {
+            override fun encode(payloads: ByteArray, length: Int, count: Int, output: OutputStream) {
+                for (i in 0 until length) output.write(payloads[i].toInt().inv())
+            }
+
+            override fun decode(data: ByteArray, offset: Int, length: Int, count: Int): ByteArray =
+                ByteArray(length) { data[offset + it].toInt().inv().toByte() }
+        }
+        val elements = List(3) { element("key", "value$it") } + element("other", "value3")
+        BatchedElementQueue(QueueFile.newDirect(file, 1_000_000), codec = codec).use { queue ->
+            queue.add(elements)
+            assertEquals(4, queue.size)
+            assertEquals(elements.map { String(it) }, queue.readAll())
+            assertFalse(String(queue.queue.peek()!!.use { it.readBytes() }).contains("value"))
+        }
+
+        BatchedElementQueue(QueueFile.newDirect(file, 1_000_000), codec = codec).use { queue ->
+            assertEquals(4, queue.size)
+            assertEquals(elements.drop(1).map { String(it) }, queue.readAll(1))
+        }
+    }
+
+    @Test
+    fun testFailedBatchIsDiscarded() {
+        val file = newFile()
+        // fails halfway through encoding a batch that contains "fail"
+        val codec = object : BatchCodec {
+            override fun encode(payloads: ByteArray, length: Int, count: Int, output: OutputStream) {
+                output.write(payloads, 0, length / 2)
+                if (String(payloads, 0, length).contains("fail")) throw java.io.IOException("encoding failed")
+                output.write(payloads, length / 2, length - length / 2)
+            }
+
+            override fun decode(data: ByteArray, offset: Int, length: Int, count: Int): ByteArray =
+                data.copyOfRange(offset, offset + length)
+        }
+        BatchedElementQueue(QueueFile.newDirect(file, 1_000_000), codec = codec).use { queue ->
+            try {
+                queue.add(List(2) { element("key", "value$it") } + element("other", "fail"))
+                fail("Encoding the last batch should fail")
+            } catch (ex: java.io.IOException) {
+                // expected
+            }
+            assertEquals(2, queue.size)
+            assertEquals(1, queue.queue.size)
+            assertEquals(List(2) { expected("key", "value$it") }, queue.readAll())
+        }
+        BatchedElementQueue(QueueFile.newDirect(file, 1_000_000), codec = codec).use { queue ->
+            assertEquals(List(2) { expected("key", "value$it") }, queue.readAll())
+        }
+    }
+
+    @Test
+    fun testBatchLength() {
+        QueueFile.newDirect(newFile(), 1_000_000).use { queueFile ->
+            val queue = BatchedElementQueue(queueFile, maximumBatchLength = 20)
+            queue.add(List(4) { element("key", "value$it") })
+            queue.add(listOf(element("key", "a".repeat(100))))
+            // each batch contains at most 20 bytes of payload, unless a single element is larger
+            assertEquals(3, queueFile.size)
+            assertEquals(5, queue.size)
+            assertEquals(expected("key", "a".repeat(100)), queue.readAll(4).single())
+        }
+    }
+
+    @Test
+    fun testStreams() {
+        QueueFile.newDirect(newFile(), 1_000_000).use { queueFile ->
+            val queue = BatchedElementQueue(queueFile)
+            queue.add(listOf(element("key", "value")))
+            val input = requireNotNull(queue.peek())
+            assertEquals(9, input.available())
+            assertEquals(2, input.skip(2))
+            assertEquals(7, input.available())
+            val buffer = ByteArray(10)
+            assertEquals(2, input.read(buffer, 0, 10))
+            assertEquals("ey", String(buffer, 0, 2))
+            assertEquals('v'.code, input.read())
+            assertEquals(4, input.read(buffer, 0, 10))
+            assertEquals("alue", String(buffer, 0, 4))
+            assertEquals(-1, input.read())
+        }
+    }
+
+    @Test
+    fun testCursor() {
+        QueueFile.newDirect(newFile(), 1_000_000).use { queueFile ->
+            val queue = BatchedElementQueue(queueFile)
+            queue.add(List(5) { element("key", "value$it") })
+            val cursor = queue.newCursor()
+            cursor.advance(3)
+            queue.remove(2)
+            assertEquals(1, cursor.offset)
+            assertEquals(listOf(expected("key", "value3"), expected("key", "value4")), queue.readAll(cursor.offset))
+            cursor.commit()
+            assertEquals(2, queue.size)
+            queue.clear()
+            assertEquals(0, cursor.offset)
+            assertEquals(0, queueFile.size)
+        }
+    }
+
+    @Test(expected = java.io.IOException::class)
+    fun testMissingPrefix() {
+        QueueFile.newDirect(newFile(), 1_000_000).use { queueFile ->
+            BatchedElementQueue(queueFile).add(listOf(byteArrayOf(10, 1, 2)))
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package org.radarbase.util
+
+import org.junit.Assert.*
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.radarbase.util.QueueFileHeader.Companion.QUEUE_HEADER_LENGTH
+import java.nio.ByteBuffer
+import java.util.*
+
+class BufferedQueueStorageTest {
+    @Rule
+    @JvmField
+    val tempDir = TemporaryFolder()
+
+    private fun newStorage(length: Long): DirectQueueFileStorage {
+        val tmpFile = tempDir.newFile()
+        assertTrue(tmpFile.delete())
+        return DirectQueueFileStorage(tmpFile, length, length)
+    }
+
+    @Test
+    fun testReadDoesNotFlushWrites() {
+        val direct = newStorage(65536)
+        val expected = ByteArray(100) { it.toByte() }
+        direct.writeFully(QUEUE_HEADER_LENGTH, ByteBuffer.wrap(expected))
+
+        val storage = BufferedQueueStorage(direct)
+        storage.writeFully(30_000L, ByteBuffer.wrap(ByteArray(100) { 1 }))
+
+        val actual = ByteArray(100)
+        storage.readFully(QUEUE_HEADER_LENGTH, ByteBuffer.wrap(actual))
+        assertArrayEquals(expected, actual)
+        storage.readFully(QUEUE_HEADER_LENGTH, ByteBuffer.wrap(actual))
+
+        // written data is still buffered
+        direct.readFully(30_000L, ByteBuffer.wrap(actual))
+        assertArrayEquals(ByteArray(100), actual)
+
+        storage.writeFully(30_100L, ByteBuffer.wrap(ByteArray(100) { 1 }))
+        storage.readFully(30_000L, ByteBuffer.wrap(actual))
+        assertArrayEquals(ByteArray(100) { 1 }, actual)
+
+        val statistics = storage.statistics
+        assertEquals(1L, statistics.readHits)
+        assertEquals(2L, statistics.readMisses)
+        assertEquals(2L, statistics.writeHits)
+        assertEquals(0L, statistics.writeMisses)
+    }
+
+    @Test
+    fun testResizeReleasesReadBuffer() {
+        val tmpFile = tempDir.newFile()
+        assertTrue(tmpFile.delete())
+        val pool = ByteBufferPool(65536L)
+        val storage = BufferedQueueStorage(DirectQueueFileStorage(tmpFile, 8192, 65536), bufferPool = pool)
+        storage.readFully(QUEUE_HEADER_LENGTH, ByteBuffer.allocate(100))
+        assertEquals(8192L, pool.statistics.borrowedBytes)
+
+        storage.resize(16384)
+        assertEquals(0L, pool.statistics.borrowedBytes)
+        storage.close()
+    }
+
+    @Test
+    fun testRandomAccess() {
+        val length = 16384L
+        val random = Random(1L)
+        val model = ByteArray(length.toInt())
+
+        val storage = BufferedQueueStorage(newStorage(length), 4096, 1024, readAhead = true)
+        repeat(2000) {
+            val position = QUEUE_HEADER_LENGTH + random.nextInt((length - QUEUE_HEADER_LENGTH).toInt())
+            val count = 1 + random.nextInt(2000)
+            if (random.nextBoolean()) {
+                val data = ByteArray(count).apply { random.nextBytes(this) }
+                storage.writeFully(position, ByteBuffer.wrap(data), random.nextInt(4) == 0)
+                data.forEachIndexed { i, b -> model[storage.wrapPosition(position + i).toInt()] = b }
+            } else {
+                val data = ByteArray(count)
+                storage.readFully(position, ByteBuffer.wrap(data))
+                data.forEachIndexed { i, b ->
+                    assertEquals(model[storage.wrapPosition(position + i).toInt()], b)
+                }
+            }
+        }
+        storage.flush()
+        assertTrue(storage.statistics.readHits > 0)
+        assertTrue(storage.statistics.writeHits > 0)
+    }
+}
@@ -0,0 +1,60 @@
+package org.radarbase.util
+
+import org.junit.Assert.*
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.radarbase.util.QueueFileHeader.Companion.QUEUE_HEADER_LENGTH
+import java.nio.ByteBuffer
+
+class ByteBufferPoolTest {
+    @Rule
+    @JvmField
+    val tempDir = TemporaryFolder()
+
+    @Test
+    fun testReuse() {
+        val pool = ByteBufferPool(8192)
+        val buffer = pool.borrow(4096)
+        assertTrue(buffer.isDirect)
+        buffer.putInt(1)
+        pool.release(buffer)
+        assertEquals(ByteBufferPool.Statistics(4096, 0, 0, 1, 0), pool.statistics)
+
+        val reused = pool.borrow(4096)
+        assertSame(buffer, reused)
+        assertEquals(0, reused.position())
+        assertEquals(4096, reused.limit())
+        assertEquals(ByteBufferPool.Statistics(0, 4096, 1, 1, 0), pool.statistics)
+        // different size
+        pool.borrow(1024)
+        assertEquals(2L, pool.statistics.misses)
+    }
+
+    @Test
+    fun testCapacity() {
+        val pool = ByteBufferPool(8192)
+        val buffers = List(3) { pool.borrow(4096) }
+        buffers.forEach { pool.release(it) }
+        assertEquals(ByteBufferPool.Statistics(8192, 0, 0, 3, 1), pool.statistics)
+        pool.capacity = 4096
+        assertEquals(ByteBufferPool.Statistics(4096, 0, 0, 3, 2), pool.statistics)
+    }
+
+    @Test
+    fun testBufferedStorageReturnsBuffers() {
+        val file = tempDir.newFile()
+        assertTrue(file.delete())
+        val pool = ByteBufferPool(65536)
+        val storage = BufferedQueueStorage(DirectQueueFileStorage(file, 16384, 16384), 4096, 2048, bufferPool = pool)
+        storage.writeFully(QUEUE_HEADER_LENGTH, ByteBuffer.wrap(ByteArray(100)))
+        assertEquals(2048L, pool.statistics.borrowedBytes)
+        storage.readFully(8000L, ByteBuffer.wrap(ByteArray(100)))
+        assertEquals(6144L, pool.statistics.borrowedBytes)
+        storage.flush()
+        assertEquals(4096L, pool.statistics.borrowedBytes)
+        storage.writeFully(QUEUE_HEADER_LENGTH + 100L, ByteBuffer.wrap(ByteArray(100)))
+        storage.close()
+        assertEquals(ByteBufferPool.Statistics(6144, 0, 1, 2, 0), pool.statistics)
+    }
+}
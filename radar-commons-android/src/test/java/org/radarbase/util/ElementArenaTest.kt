@@ -0,0 +1,43 @@
+package org.radarbase.util
+
+import org.junit.Assert.*
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+class ElementArenaTest {
+    @Rule
+    @JvmField
+    val tempDir = TemporaryFolder()
+
+    @Test
+    fun testWriteTo() {
+        val arena = ElementArena(4)
+        arena.write(byteArrayOf(1, 2, 3))
+        arena.next()
+        // empty elements are not stored
+        arena.next()
+        arena.write(4)
+        arena.write(byteArrayOf(5, 6, 7, 8, 9))
+        arena.next()
+        arena.write(10)
+        arena.discard()
+        assertEquals(2, arena.size)
+        assertEquals(9, arena.byteSize)
+
+        QueueFile.newDirect(tempDir.newFile().also { it.delete() }, 1_000_000).use { queue ->
+            arena.writeTo(queue)
+            assertEquals(
+                listOf(listOf<Byte>(1, 2, 3), listOf<Byte>(4, 5, 6, 7, 8, 9)),
+                queue.iterator().asSequence().map { input -> input.use { it.readBytes().toList() } }.toList(),
+            )
+        }
+
+        arena.clear()
+        assertTrue(arena.isEmpty)
+        assertEquals(0, arena.byteSize)
+        arena.write(11)
+        arena.next()
+        assertEquals(1, arena.size)
+    }
+}
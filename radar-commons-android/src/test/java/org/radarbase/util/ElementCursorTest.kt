@@ -0,0 +1,92 @@
+package org.radarbase.util
+
+import org.junit.Assert.*
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+
+class ElementCursorTest {
+    @Rule
+    @JvmField
+    val tempDir = TemporaryFolder()
+
+    private fun newFile(): File = tempDir.newFile().also { assertTrue(it.delete()) }
+
+    private fun ElementQueue.add(range: IntRange) {
+        elementOutputStream().use { out ->
+            range.forEach {
+                out.write(it)
+                out.next()
+            }
+        }
+    }
+
+    /** Read at most [n] elements after the cursor and move the cursor past them. */
+    private fun ElementCursor.readBatch(n: Int): List<Int> {
+        val result = iterator().asSequence()
+            .take(n)
+            .map { input -> input.use { it.read() } }
+            .toList()
+        advance(result.size)
+        return result
+    }
+
+    private fun testPipelinedReads(queue: ElementQueue) {
+        queue.add(0 until 10)
+        val cursor = queue.newCursor()
+        assertEquals((0 until 3).toList(), cursor.readBatch(3))
+        assertEquals((3 until 6).toList(), cursor.readBatch(3))
+        assertEquals(6, cursor.offset)
+        assertEquals(10, queue.size)
+
+        // the first batch was acknowledged
+        queue.remove(3)
+        assertEquals(3, cursor.offset)
+        assertEquals((6 until 9).toList(), cursor.readBatch(3))
+
+        // the second batch failed, so read everything again
+        cursor.reset()
+        assertEquals((3 until 8).toList(), cursor.readBatch(5))
+        cursor.commit()
+        assertEquals(0, cursor.offset)
+        assertEquals(listOf(8, 9), queue.map { input -> input.use { it.read() } })
+
+        queue.add(10 until 12)
+        assertEquals(listOf(8, 9, 10), cursor.readBatch(3))
+        queue.clear()
+        assertEquals(0, cursor.offset)
+        assertEquals(emptyList<Int>(), cursor.readBatch(3))
+        cursor.close()
+    }
+
+    @Test
+    fun testQueueFile() {
+        QueueFile.newDirect(newFile(), 100_000).use { queue ->
+            testPipelinedReads(queue)
+        }
+    }
+
+    @Test
+    fun testSegmentedQueueFile() {
+        SegmentedQueueFile(newFile(), 4096, 100_000).use { queue ->
+            testPipelinedReads(queue)
+        }
+    }
+
+    @Test
+    fun testIteratorOffsetBeyondIndex() {
+        val file = newFile()
+        QueueFile.newDirect(file, 100_000).use { queue ->
+            queue.add(0 until 20)
+        }
+        QueueFile.newDirect(file, 100_000).use { queue ->
+            queue.elementIndexCapacity = 4
+            assertEquals(12, queue.iterator(12).next().use { it.read() })
+            assertFalse(queue.iterator(20).hasNext())
+            assertThrows(IndexOutOfBoundsException::class.java) { queue.iterator(21) }
+            queue.remove(5)
+            assertEquals(17, queue.iterator(12).next().use { it.read() })
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package org.radarbase.util
+
+import org.junit.Assert.*
+import org.junit.Test
+
+class ElementIndexTest {
+    @Test
+    fun testRingWraps() {
+        val index = ElementIndex(8)
+        repeat(6) { assertTrue(index.add(it * 10L, it)) }
+        index.removeFirst(4)
+        repeat(6) { assertTrue(index.add((it + 6) * 10L, it + 6)) }
+        assertEquals(8, index.size)
+        assertTrue(index.isFull)
+        assertFalse(index.add(120L, 12))
+        (0 until 8).forEach {
+            assertEquals((it + 4) * 10L, index.position(it))
+            assertEquals(it + 4, index.length(it))
+        }
+        assertThrows(IndexOutOfBoundsException::class.java) { index.position(8) }
+    }
+
+    @Test
+    fun testAddAllStopsWhenFull() {
+        val other = ElementIndex()
+        repeat(5) { other.add(it.toLong(), 1) }
+        val index = ElementIndex(3)
+        index.add(100L, 1)
+        index.addAll(other)
+        assertEquals(3, index.size)
+        assertEquals(100L, index.position(0))
+        assertEquals(1L, index.position(2))
+    }
+
+    @Test
+    fun testReduceCapacity() {
+        val index = ElementIndex(100)
+        repeat(50) { index.add(it.toLong(), 1) }
+        index.maximumCapacity = 10
+        assertEquals(10, index.size)
+        assertEquals(9L, index.position(9))
+        assertFalse(index.add(50L, 1))
+    }
+
+    @Test
+    fun testShiftPositions() {
+        val index = ElementIndex()
+        listOf(500L, 900L, 100L, 300L).forEach { index.add(it, 1) }
+        index.shiftPositions(500L, 1000L)
+        assertEquals(listOf(500L, 900L, 1100L, 1300L), (0 until index.size).map { index.position(it) })
+    }
+}
@@ -0,0 +1,156 @@
+package org.radarbase.util
+
+import org.junit.Assert.*
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.radarbase.util.QueueFileHeader.Companion.QUEUE_HEADER_LENGTH
+import java.nio.ByteBuffer
+import java.util.concurrent.ThreadLocalRandom
+
+class MappedQueueFileStorageTest {
+    @Rule
+    @JvmField
+    val tempDir = TemporaryFolder()
+
+    @Test
+    fun testRead() {
+        val tmpFile = tempDir.newFile()
+        assertTrue(tmpFile.delete())
+        val mappedQueue = MappedQueueFileStorage(tmpFile, 4096, 4096)
+        val expected = ByteArray(10).apply {
+            ThreadLocalRandom.current().nextBytes(this)
+        }
+        val actual = ByteArray(10)
+        assertEquals(QUEUE_HEADER_LENGTH + 10L, mappedQueue.writeFully(QUEUE_HEADER_LENGTH, ByteBuffer.wrap(expected)))
+        assertEquals(QUEUE_HEADER_LENGTH + 10L, mappedQueue.readFully(QUEUE_HEADER_LENGTH, ByteBuffer.wrap(actual)))
+        assertArrayEquals(expected, actual)
+    }
+
+    @Test
+    fun testWrap() {
+        val tmpFile = tempDir.newFile()
+        assertTrue(tmpFile.delete())
+        val mappedQueue = MappedQueueFileStorage(tmpFile, 4096, 4096)
+        val expected = ByteArray(10).apply {
+            ThreadLocalRandom.current().nextBytes(this)
+        }
+        val actual = ByteArray(10)
+        assertEquals(4L + QUEUE_HEADER_LENGTH, mappedQueue.writeFully(4090, ByteBuffer.wrap(expected)))
+        assertEquals(4L + QUEUE_HEADER_LENGTH, mappedQueue.readFully(4090, ByteBuffer.wrap(actual)))
+        assertArrayEquals(expected, actual)
+    }
+
+    @Test
+    fun testResize() {
+        val tmpFile = tempDir.newFile()
+        assertTrue(tmpFile.delete())
+        val mappedQueue = MappedQueueFileStorage(tmpFile, 4096, 8192)
+        val expected = ByteArray(10).apply {
+            ThreadLocalRandom.current().nextBytes(this)
+        }
+        val actual = ByteArray(10)
+        assertEquals(4L + QUEUE_HEADER_LENGTH, mappedQueue.writeFully(4090, ByteBuffer.wrap(expected)))
+        assertEquals(4L + QUEUE_HEADER_LENGTH, mappedQueue.readFully(4090, ByteBuffer.wrap(actual)))
+        assertArrayEquals(expected, actual)
+
+        mappedQueue.resize(2 * 4096)
+        assertEquals(8192L, tmpFile.length())
+        mappedQueue.move(QUEUE_HEADER_LENGTH, 4096L, 4L)
+        assertEquals(4100L, mappedQueue.readFully(4090L, ByteBuffer.wrap(actual)))
+        assertArrayEquals(expected, actual)
+    }
+
+    @Test
+    fun testMaximumLengthAbove2GB() {
+        val tmpFile = tempDir.newFile()
+        assertTrue(tmpFile.delete())
+        val mappedQueue = MappedQueueFileStorage(tmpFile, 4096, 8L shl 30)
+        assertEquals(8L shl 30, mappedQueue.maximumLength)
+        mappedQueue.maximumLength = 16L shl 30
+        assertEquals(16L shl 30, mappedQueue.maximumLength)
+        mappedQueue.close()
+    }
+
+    @Test
+    fun testChunks() {
+        val tmpFile = tempDir.newFile()
+        assertTrue(tmpFile.delete())
+        val mappedQueue = MappedQueueFileStorage(tmpFile, 4096, 16384, chunkSize = 4096)
+        val expected = ByteArray(100).apply {
+            ThreadLocalRandom.current().nextBytes(this)
+        }
+        val actual = ByteArray(100)
+
+        mappedQueue.resize(10000)
+        assertEquals(4146L, mappedQueue.writeFully(4046, ByteBuffer.wrap(expected)))
+        assertEquals(4146L, mappedQueue.readFully(4046, ByteBuffer.wrap(actual)))
+        assertArrayEquals(expected, actual)
+
+        mappedQueue.resize(12000)
+        mappedQueue.move(4046L, 9950L, 100L)
+        assertEquals(10050L, mappedQueue.readFully(9950L, ByteBuffer.wrap(actual)))
+        assertArrayEquals(expected, actual)
+
+        mappedQueue.resize(8192)
+        assertEquals(8192L, tmpFile.length())
+        actual.fill(0)
+        assertEquals(4146L, mappedQueue.readFully(4046, ByteBuffer.wrap(actual)))
+        assertArrayEquals(expected, actual)
+        mappedQueue.close()
+    }
+
+    @Test
+    fun testReopen() {
+        val tmpFile = tempDir.newFile()
+        assertTrue(tmpFile.delete())
+        val expected = ByteArray(10).apply {
+            ThreadLocalRandom.current().nextBytes(this)
+        }
+        MappedQueueFileStorage(tmpFile, 4096, 4096).use {
+            it.writeFully(QUEUE_HEADER_LENGTH, ByteBuffer.wrap(expected))
+            it.flush()
+        }
+        val actual = ByteArray(10)
+        MappedQueueFileStorage(tmpFile, 4096, 4096).use {
+            assertTrue(it.isPreExisting)
+            it.readFully(QUEUE_HEADER_LENGTH, ByteBuffer.wrap(actual))
+        }
+        assertArrayEquals(expected, actual)
+    }
+
+    @Test
+    fun testQueueGrowsWhileWrapped() {
+        val tmpFile = tempDir.newFile()
+        assertTrue(tmpFile.delete())
+        val buffer = ByteArray(1000)
+        QueueFile.newMapped(tmpFile, 16384L).use { queue ->
+            queue.elementOutputStream().use { out ->
+                repeat(3) {
+                    out.write(buffer.apply { fill(it.toByte()) })
+                    out.next()
+                }
+            }
+            queue.remove(2)
+            // wraps around the end of the file and then doubles its size
+            queue.elementOutputStream().use { out ->
+                repeat(4) {
+                    out.write(buffer.apply { fill((it + 3).toByte()) })
+                    out.next()
+                }
+            }
+            assertEquals(5, queue.size)
+            assertEquals(8192L, queue.fileSize)
+        }
+        QueueFile.newMapped(tmpFile, 16384L).use { queue ->
+            assertEquals(5, queue.size)
+            queue.forEachIndexed { i, input ->
+                input.use {
+                    val actual = ByteArray(1000)
+                    assertEquals(1000, it.read(actual))
+                    assertTrue(actual.all { b -> b == (i + 2).toByte() })
+                }
+            }
+        }
+    }
+}
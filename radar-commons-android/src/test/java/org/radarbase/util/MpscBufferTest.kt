@@ -0,0 +1,47 @@
+package org.radarbase.util
+
+import org.junit.Assert.*
+import org.junit.Test
+import kotlin.concurrent.thread
+
+class MpscBufferTest {
+    @Test
+    fun testDrainInOrder() {
+        val buffer = MpscBuffer<Int>()
+        assertTrue(buffer.isEmpty)
+        assertTrue(buffer.add(0))
+        assertFalse(buffer.add(1))
+        assertFalse(buffer.add(2))
+
+        val drained = mutableListOf(-1)
+        assertEquals(3, buffer.drainTo(drained))
+        assertEquals(listOf(-1, 0, 1, 2), drained)
+        assertTrue(buffer.isEmpty)
+        assertEquals(0, buffer.drainTo(drained))
+        assertTrue(buffer.add(3))
+    }
+
+    @Test
+    fun testConcurrentProducers() {
+        val buffer = MpscBuffer<Pair<Int, Int>>()
+        val numProducers = 4
+        val numElements = 10_000
+        val producers = List(numProducers) { producer ->
+            thread {
+                repeat(numElements) { buffer.add(Pair(producer, it)) }
+            }
+        }
+
+        val drained = ArrayList<Pair<Int, Int>>()
+        while (producers.any { it.isAlive }) {
+            buffer.drainTo(drained)
+        }
+        buffer.drainTo(drained)
+
+        assertEquals(numProducers * numElements, drained.size)
+        // elements of each producer are drained in the order they were added
+        drained.groupBy({ it.first }, { it.second }).values.forEach { elements ->
+            assertEquals(List(numElements) { it }, elements)
+        }
+    }
+}
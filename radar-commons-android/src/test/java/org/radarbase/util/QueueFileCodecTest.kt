@@ -0,0 +1,92 @@
+package org.radarbase.util
+
+import org.junit.Assert.*
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import java.util.*
+
+class QueueFileCodecTest {
+    @Rule
+    @JvmField
+    val tempDir = TemporaryFolder()
+
+    private fun newFile(): File = tempDir.newFile().also { assertTrue(it.delete()) }
+
+    private fun QueueFile.add(elements: List<ByteArray>) {
+        elementOutputStream().use { out ->
+            elements.forEach {
+                out.write(it)
+                out.next()
+            }
+        }
+    }
+
+    private fun QueueFile.assertContents(elements: List<ByteArray>) {
+        assertEquals(elements.size, size)
+        zip(elements).forEach { (input, expected) ->
+            input.use {
+                assertEquals(expected.size, it.available())
+                assertArrayEquals(expected, it.readBytes())
+            }
+        }
+    }
+
+    @Test
+    fun testCompressedElements() {
+        val random = Random(1L)
+        val compressible = List(100) { i -> ByteArray(500) { (i % 3).toByte() } }
+        val incompressible = List(5) { ByteArray(500).apply { random.nextBytes(this) } }
+        val elements = compressible + incompressible
+
+        val file = newFile()
+        QueueFile.newDirect(file, 1_000_000).use { queue ->
+            queue.codec = QueueFileCodec.DEFLATE
+            queue.add(elements)
+            queue.assertContents(elements)
+            // compressible elements take only a fraction of the space
+            assertTrue(queue.usedBytes < 6 * 500 + 100 * 50)
+        }
+        QueueFile.newDirect(file, 1_000_000).use { queue ->
+            assertEquals(QueueFileCodec.DEFLATE, queue.codec)
+            queue.assertContents(elements)
+            queue.remove(100)
+            queue.assertContents(incompressible)
+        }
+    }
+
+    @Test
+    fun testCodecChangesWhenEmpty() {
+        val elements = List(10) { ByteArray(100) { 1 } }
+        val file = newFile()
+        QueueFile.newDirect(file, 1_000_000).use { queue ->
+            queue.add(elements)
+        }
+        QueueFile.newDirect(file, 1_000_000).use { queue ->
+            queue.codec = QueueFileCodec.DEFLATE
+            // existing uncompressed data is still read
+            queue.assertContents(elements)
+            queue.remove(10)
+            queue.add(elements)
+            assertTrue(queue.usedBytes < 10 * 100)
+        }
+        QueueFile.newDirect(file, 1_000_000).use { queue ->
+            assertEquals(QueueFileCodec.DEFLATE, queue.codec)
+            queue.assertContents(elements)
+        }
+    }
+
+    @Test
+    fun testFullQueueDiscardsElement() {
+        val random = Random(1L)
+        val element = ByteArray(1000).apply { random.nextBytes(this) }
+        QueueFile.newDirect(newFile(), 4096).use { queue ->
+            queue.codec = QueueFileCodec.DEFLATE
+            assertThrows(IllegalStateException::class.java) {
+                queue.add(List(5) { element })
+            }
+            queue.assertContents(List(3) { element })
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package org.radarbase.util
+
+import org.junit.Assert.*
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.radarbase.util.QueueFileHeader.Companion.LEGACY_QUEUE_HEADER_LENGTH
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+
+class QueueFileHeaderTest {
+    @Rule
+    @JvmField
+    val tempDir = TemporaryFolder()
+
+    private fun QueueFile.add(vararg values: Int) {
+        elementOutputStream().use { out ->
+            values.forEach {
+                out.write(ByteArray(10) { _ -> it.toByte() })
+                out.next()
+            }
+        }
+    }
+
+    private fun QueueFile.assertContents(vararg values: Int) {
+        assertEquals(values.size, size)
+        zip(values.toList()).forEach { (input, expected) ->
+            input.use {
+                assertArrayEquals(ByteArray(10) { expected.toByte() }, it.readBytes())
+            }
+        }
+    }
+
+    @Test
+    fun testTornHeaderFallsBack() {
+        val file = tempDir.newFile()
+        assertTrue(file.delete())
+        QueueFile.newDirect(file, 10_000).use { queue ->
+            queue.durability = QueueDurability.NONE
+            queue.add(1, 2)
+            // written to the first slot
+            queue.add(3)
+        }
+        RandomAccessFile(file, "rw").use {
+            it.seek(20)
+            it.writeInt(0x12345678)
+        }
+        QueueFile.newDirect(file, 10_000).use { queue ->
+            queue.assertContents(1, 2)
+        }
+    }
+
+    @Test
+    fun testLostDataFallsBack() {
+        val file = tempDir.newFile()
+        assertTrue(file.delete())
+        QueueFile.newDirect(file, 10_000).use { queue ->
+            queue.add(1, 2)
+            queue.add(3)
+        }
+        // element 3 starts after the header and two elements of 15 bytes
+        RandomAccessFile(file, "rw").use {
+            it.seek(QueueFileHeader.QUEUE_HEADER_LENGTH + 30)
+            it.writeInt(0)
+        }
+        QueueFile.newDirect(file, 10_000).use { queue ->
+            queue.assertContents(1, 2)
+        }
+    }
+
+    @Test
+    fun testFallbackWithCorruptElementIsRejected() {
+        val file = tempDir.newFile()
+        assertTrue(file.delete())
+        QueueFile.newDirect(file, 10_000).use { queue ->
+            queue.add(1, 2, 3)
+            queue.add(4)
+        }
+        // elements of 15 bytes start after the header: lose element 4 and corrupt element 2
+        RandomAccessFile(file, "rw").use {
+            it.seek(QueueFileHeader.QUEUE_HEADER_LENGTH + 45)
+            it.writeInt(0)
+            it.seek(QueueFileHeader.QUEUE_HEADER_LENGTH + 15)
+            it.writeInt(0x12345678)
+        }
+        assertThrows(IOException::class.java) {
+            QueueFile.newDirect(file, 10_000).close()
+        }
+        QueueFile.newDirect(file, 10_000, recover = true).use { queue ->
+            queue.assertContents(1)
+        }
+    }
+
+    @Test
+    fun testLegacyHeader() {
+        val file = tempDir.newFile()
+        writeLegacyQueue(file)
+
+        QueueFile.newDirect(file, 10_000).use { queue ->
+            queue.assertContents(1)
+            queue.add(2)
+        }
+        QueueFile.newDirect(file, 10_000).use { queue ->
+            queue.assertContents(1, 2)
+            // upgrades the header
+            queue.remove(2)
+            queue.add(3)
+        }
+        RandomAccessFile(file, "r").use {
+            assertEquals(2, it.readInt())
+        }
+        QueueFile.newDirect(file, 10_000).use { queue ->
+            queue.assertContents(3)
+        }
+    }
+
+    private fun writeLegacyQueue(file: File) {
+        val length = 4096L
+        val position = LEGACY_QUEUE_HEADER_LENGTH
+        var crc = 1
+        crc = 31 * crc + (length shr 32 xor length).toInt()
+        crc = 31 * crc + 1
+        crc = 31 * crc + (position shr 32 xor position).toInt()
+        crc = 31 * crc + (position shr 32 xor position).toInt()
+
+        val buffer = ByteBuffer.allocate(length.toInt()).apply {
+            putInt(1)
+            putLong(length)
+            putInt(1)
+            putLong(position)
+            putLong(position)
+            putInt(crc)
+            putInt(10)
+            put(QueueFileElement.crc(10))
+            put(ByteArray(10) { 1 })
+        }
+        RandomAccessFile(file, "rw").use {
+            it.write(buffer.array())
+        }
+    }
+}
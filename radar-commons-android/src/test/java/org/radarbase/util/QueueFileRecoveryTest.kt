@@ -0,0 +1,132 @@
+package org.radarbase.util
+
+import org.junit.Assert.*
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.radarbase.util.QueueFileElement.Companion.ELEMENT_HEADER_LENGTH
+import org.radarbase.util.QueueFileHeader.Companion.QUEUE_HEADER_LENGTH
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+
+class QueueFileRecoveryTest {
+    @Rule
+    @JvmField
+    val tempDir = TemporaryFolder()
+
+    private fun newFile(): File = tempDir.newFile().also { assertTrue(it.delete()) }
+
+    private val elements = List(10) { i -> ByteArray(100) { i.toByte() } }
+
+    /** Position of the element with given index, if all elements have [elementLength] bytes. */
+    private fun elementPosition(i: Int, elementLength: Int) =
+        QUEUE_HEADER_LENGTH + i * (ELEMENT_HEADER_LENGTH + elementLength)
+
+    private fun File.overwrite(position: Long, value: Int) {
+        RandomAccessFile(this, "rw").use {
+            it.seek(position)
+            it.writeInt(value)
+        }
+    }
+
+    private fun newQueue(file: File, checksum: QueueFileChecksum): QueueFile {
+        QueueFile.newDirect(file, 1_000_000).use { queue ->
+            queue.checksum = checksum
+            queue.elementOutputStream().use { out ->
+                elements.forEach {
+                    out.write(it)
+                    out.next()
+                }
+            }
+        }
+        return QueueFile.newDirect(file, 1_000_000)
+    }
+
+    private fun QueueFile.assertContents(expected: List<ByteArray>) {
+        assertEquals(expected.size, size)
+        zip(expected).forEach { (input, element) ->
+            input.use { assertArrayEquals(element, it.readBytes()) }
+        }
+    }
+
+    @Test
+    fun testCrc32c() {
+        val checksum = Crc32c()
+        val bytes = "123456789".toByteArray()
+        checksum.update(bytes, 0, bytes.size)
+        assertEquals(0xE3069283L, checksum.value)
+        checksum.reset()
+        "123456789".toByteArray().forEach { checksum.update(it.toInt()) }
+        assertEquals(0xE3069283L, checksum.value)
+    }
+
+    @Test
+    fun testRecoverCorruptedElementHeader() {
+        val file = newFile()
+        newQueue(file, QueueFileChecksum.NONE).close()
+        file.overwrite(elementPosition(6, 100), 12345)
+
+        assertThrows(IllegalStateException::class.java) {
+            QueueFile.newDirect(file, 1_000_000).use { queue -> queue.forEach { it.close() } }
+        }
+        QueueFile.newDirect(file, 1_000_000, recover = true).use { queue ->
+            queue.assertContents(elements.subList(0, 6))
+        }
+        // the recovered header was stored
+        QueueFile.newDirect(file, 1_000_000).use { queue ->
+            queue.assertContents(elements.subList(0, 6))
+            queue.elementOutputStream().use { out ->
+                out.write(elements[6])
+            }
+            queue.assertContents(elements.subList(0, 7))
+        }
+    }
+
+    @Test
+    fun testRecoverCorruptedHeaders() {
+        val file = newFile()
+        QueueFile.newDirect(file, 1_000_000).use { queue ->
+            // write in two steps, so the header slots refer to elements 4 and 9
+            elements.chunked(5).forEach { chunk ->
+                queue.elementOutputStream().use { out ->
+                    chunk.forEach {
+                        out.write(it)
+                        out.next()
+                    }
+                }
+            }
+        }
+        file.overwrite(elementPosition(4, 100), 12345)
+        file.overwrite(elementPosition(9, 100), 12345)
+
+        assertThrows(IOException::class.java) { QueueFile.newDirect(file, 1_000_000) }
+        QueueFile.newDirect(file, 1_000_000, recover = true).use { queue ->
+            queue.assertContents(elements.subList(0, 4))
+        }
+    }
+
+    @Test
+    fun testChecksum() {
+        val file = newFile()
+        newQueue(file, QueueFileChecksum.CRC32C).use { queue ->
+            assertEquals(QueueFileChecksum.CRC32C, queue.checksum)
+            queue.assertContents(elements)
+            queue.remove(2)
+            queue.assertContents(elements.subList(2, 10))
+        }
+        // corrupt the data of the fourth element
+        file.overwrite(elementPosition(3, 104) + ELEMENT_HEADER_LENGTH + 10, 12345)
+
+        QueueFile.newDirect(file, 1_000_000).use { queue ->
+            val iterator = queue.iterator()
+            iterator.next().use { assertArrayEquals(elements[2], it.readBytes()) }
+            assertThrows(IOException::class.java) {
+                iterator.next().use { it.readBytes() }
+            }
+        }
+        QueueFile.newDirect(file, 1_000_000, recover = true).use { queue ->
+            queue.assertContents(elements.subList(2, 3))
+        }
+    }
+}
@@ -231,6 +231,80 @@ class QueueFileTest {
         }
     }
 
+    @Test
+    @Throws(Exception::class)
+    fun removeWithPartialIndex() {
+        val file = folder.newFile()
+        assertTrue(file.delete())
+        QueueFile.newDirect(file, MAX_SIZE).use { queue ->
+            queue.elementOutputStream().use { out ->
+                repeat(10) {
+                    out.write(it)
+                    out.next()
+                }
+            }
+        }
+        QueueFile.newDirect(file, MAX_SIZE).use { queue ->
+            // only the first element is known after opening
+            queue.remove(3)
+            queue.peek()!!.use { assertEquals(3, it.read()) }
+            // index the remaining elements
+            assertEquals((3 until 10).toList(), queue.map { it.use { input -> input.read() } })
+            queue.elementOutputStream().use { out ->
+                out.write(10)
+                out.next()
+            }
+            queue.remove(6)
+            assertEquals(listOf(9, 10), queue.map { it.use { input -> input.read() } })
+        }
+    }
+
+    @Test
+    @Throws(Exception::class)
+    fun removeWithBoundedIndex() {
+        val queue = createQueue()
+        queue.elementIndexCapacity = 2
+        queue.elementOutputStream().use { out ->
+            repeat(10) {
+                out.write(it)
+                out.next()
+            }
+        }
+        assertEquals((0 until 10).toList(), queue.map { it.use { input -> input.read() } })
+        queue.remove(1)
+        queue.peek()!!.use { assertEquals(1, it.read()) }
+        queue.remove(4)
+        assertEquals((5 until 10).toList(), queue.map { it.use { input -> input.read() } })
+        queue.remove(5)
+        assertTrue(queue.isEmpty)
+    }
+
+    @Test
+    @Throws(Exception::class)
+    fun removeAfterGrowingWrappedQueue() {
+        val queue = createQueue()
+        val buffer = ByteArray(1000)
+        queue.elementOutputStream().use { out ->
+            repeat(3) {
+                buffer.fill(it.toByte())
+                out.write(buffer)
+                out.next()
+            }
+        }
+        queue.remove(2)
+        // wraps around the end of the file and then grows it
+        queue.elementOutputStream().use { out ->
+            (3 until 10).forEach {
+                buffer.fill(it.toByte())
+                out.write(buffer)
+                out.next()
+            }
+        }
+        assertEquals((2 until 10).toList(), queue.map { it.use { input -> input.readBytes()[999].toInt() } })
+        queue.remove(5)
+        assertEquals((7 until 10).toList(), queue.map { it.use { input -> input.readBytes()[999].toInt() } })
+    }
+
     @Test
     @Throws(Exception::class)
     fun clear() {
@@ -320,7 +394,7 @@ class QueueFileTest {
         assertTrue(file.delete())
         var queue = QueueFile.newDirect(file, size)
         val list = LinkedList<Element>()
-        var bytesUsed = 36L
+        var bytesUsed = QUEUE_HEADER_LENGTH
 
         try {
             repeat(numberOfOperations) {
@@ -342,7 +416,7 @@ class QueueFileTest {
                         logger.info("Running {} operation", operation)
                         queue.clear()
                         list.clear()
-                        bytesUsed = 36
+                        bytesUsed = QUEUE_HEADER_LENGTH
                     }
                     Operation.REMOVE -> bytesUsed -= remove(list, queue, random)
                     Operation.READ -> read(list, queue, buffer, random)
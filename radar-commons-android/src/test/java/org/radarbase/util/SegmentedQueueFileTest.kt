@@ -0,0 +1,200 @@
+package org.radarbase.util
+
+import org.junit.Assert.*
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+
+class SegmentedQueueFileTest {
+    @Rule
+    @JvmField
+    val tempDir = TemporaryFolder()
+
+    private fun newDirectory(): File = tempDir.newFolder().also { assertTrue(it.delete()) }
+
+    private fun File.segmentCount(): Int = list { _, name -> name.endsWith(".segment") }!!.size
+
+    private fun SegmentedQueueFile.add(range: IntRange) {
+        elementOutputStream().use { out ->
+            range.forEach {
+                out.write(ByteArray(ELEMENT_SIZE) { _ -> it.toByte() })
+                out.next()
+            }
+        }
+    }
+
+    private fun SegmentedQueueFile.assertContents(range: IntRange) {
+        assertEquals(range.count(), size)
+        zip(range).forEach { (input, expected) ->
+            input.use {
+                val actual = it.readBytes()
+                assertEquals(ELEMENT_SIZE, actual.size)
+                assertTrue(actual.all { b -> b == expected.toByte() })
+            }
+        }
+    }
+
+    @Test
+    fun testAddAcrossSegments() {
+        val directory = newDirectory()
+        SegmentedQueueFile(directory, 1024, 1_000_000).use { queue ->
+            queue.add(0 until 20)
+            queue.assertContents(0 until 20)
+            assertEquals(4, directory.segmentCount())
+            assertEquals(20L * (ELEMENT_SIZE + 5), queue.fileSize)
+        }
+        SegmentedQueueFile(directory, 1024, 1_000_000).use { queue ->
+            queue.assertContents(0 until 20)
+            queue.add(20 until 25)
+            queue.assertContents(0 until 25)
+        }
+    }
+
+    @Test
+    fun testRemoveDeletesSegments() {
+        val directory = newDirectory()
+        SegmentedQueueFile(directory, 1024, 1_000_000).use { queue ->
+            queue.add(0 until 20)
+            queue.remove(9)
+            assertEquals(3, directory.segmentCount())
+            queue.assertContents(9 until 20)
+            assertEquals(9, queue.peek()!!.use { it.read() })
+        }
+        SegmentedQueueFile(directory, 1024, 1_000_000).use { queue ->
+            queue.assertContents(9 until 20)
+            queue.remove(11)
+            assertTrue(queue.isEmpty)
+            assertNull(queue.peek())
+            assertEquals(1, directory.segmentCount())
+            queue.add(0 until 2)
+            queue.assertContents(0 until 2)
+        }
+    }
+
+    @Test
+    fun testUncommittedDataIsDiscarded() {
+        val directory = newDirectory()
+        SegmentedQueueFile(directory, 1024, 1_000_000).use { queue ->
+            queue.add(0 until 2)
+            val out = queue.elementOutputStream()
+            repeat(10) {
+                out.write(ByteArray(ELEMENT_SIZE))
+                out.next()
+            }
+            out.flush()
+            assertEquals(2, queue.size)
+        }
+        SegmentedQueueFile(directory, 1024, 1_000_000).use { queue ->
+            queue.assertContents(0 until 2)
+            assertEquals(1, directory.segmentCount())
+            queue.add(2 until 4)
+            queue.assertContents(0 until 4)
+        }
+    }
+
+    @Test
+    fun testUncommittedDataBeforeNewSegmentIsDiscarded() {
+        val directory = newDirectory()
+        SegmentedQueueFile(directory, 1024, 1_000_000).use { queue ->
+            queue.add(0 until 2)
+            // an aborted stream leaves data beyond what later streams write to the segment
+            val out = queue.elementOutputStream()
+            out.write(ByteArray(900))
+            out.next()
+            out.flush()
+            queue.add(2 until 10)
+            queue.assertContents(0 until 10)
+        }
+        SegmentedQueueFile(directory, 1024, 1_000_000).use { queue ->
+            queue.assertContents(0 until 10)
+        }
+    }
+
+    @Test
+    fun testRemoveAcrossSegmentsAfterReopen() {
+        val directory = newDirectory()
+        SegmentedQueueFile(directory, 1024, 1_000_000).use { queue ->
+            queue.add(0 until 20)
+            queue.remove(2)
+        }
+        SegmentedQueueFile(directory, 1024, 1_000_000).use { queue ->
+            queue.remove(11)
+            queue.assertContents(13 until 20)
+            assertEquals(2, directory.segmentCount())
+            queue.add(20 until 22)
+            queue.remove(5)
+            queue.assertContents(18 until 22)
+        }
+        SegmentedQueueFile(directory, 1024, 1_000_000).use { queue ->
+            queue.assertContents(18 until 22)
+        }
+    }
+
+    @Test
+    fun testRecoverCorruptSegment() {
+        val directory = newDirectory()
+        SegmentedQueueFile(directory, 1024, 1_000_000).use { queue ->
+            queue.add(0 until 20)
+        }
+        // corrupt the header of the third element of the second segment
+        java.io.RandomAccessFile(File(directory, "1.segment"), "rw").use {
+            it.seek(2L * (ELEMENT_SIZE + 5))
+            it.writeInt(-1)
+        }
+        SegmentedQueueFile(directory, 1024, 1_000_000, recover = true).use { queue ->
+            // segments hold six elements each, so elements 8 until 12 are dropped
+            assertEquals(16, queue.size)
+            assertEquals((0 until 8) + (12 until 20), queue.map { input -> input.use { it.read() } })
+            queue.remove(8)
+            assertEquals(12, queue.peek()!!.use { it.read() })
+        }
+        SegmentedQueueFile(directory, 1024, 1_000_000).use { queue ->
+            assertEquals(8, queue.size)
+            assertEquals(12, queue.peek()!!.use { it.read() })
+        }
+    }
+
+    @Test
+    fun testRecoverWithoutHeader() {
+        val directory = newDirectory()
+        SegmentedQueueFile(directory, 1024, 1_000_000).use { queue ->
+            queue.add(0 until 20)
+        }
+        File(directory, "header").writeBytes(ByteArray(200))
+        SegmentedQueueFile(directory, 1024, 1_000_000, recover = true).use { queue ->
+            queue.assertContents(0 until 20)
+        }
+        SegmentedQueueFile(directory, 1024, 1_000_000).use { queue ->
+            queue.assertContents(0 until 20)
+        }
+    }
+
+    @Test
+    fun testFull() {
+        val directory = newDirectory()
+        SegmentedQueueFile(directory, 1024, 4096).use { queue ->
+            assertThrows(IllegalStateException::class.java) {
+                queue.add(0 until 30)
+            }
+            assertEquals(4096 / (ELEMENT_SIZE + 5), queue.size)
+            queue.remove(queue.size)
+            queue.add(0 until 2)
+            queue.assertContents(0 until 2)
+        }
+    }
+
+    @Test
+    fun testLargeMaximumSize() {
+        val directory = newDirectory()
+        SegmentedQueueFile.newSegmented(directory, 5_000_000_000L).use { queue ->
+            assertEquals(5_000_000_000L, queue.maximumFileSize)
+            queue.add(0 until 2)
+            queue.assertContents(0 until 2)
+        }
+    }
+
+    companion object {
+        private const val ELEMENT_SIZE = 195
+    }
+}